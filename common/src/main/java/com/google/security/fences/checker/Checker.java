@@ -2,7 +2,6 @@ package com.google.security.fences.checker;
 
 import java.io.IOException;
 import java.util.List;
-import java.util.Map;
 
 import org.apache.maven.artifact.Artifact;
 import org.apache.maven.plugin.logging.Log;
@@ -13,21 +12,27 @@ import org.objectweb.asm.Label;
 import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Optional;
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
-import com.google.common.collect.Maps;
 import com.google.security.fences.classpath.AbstractClassesVisitor;
 import com.google.security.fences.classpath.ClassRoot;
+import com.google.security.fences.config.HumanReadableText;
 import com.google.security.fences.config.Rationale;
 import com.google.security.fences.inheritance.InheritanceGraph;
 import com.google.security.fences.namespace.Namespace;
 import com.google.security.fences.policy.AccessLevel;
 import com.google.security.fences.policy.ApiElement;
 import com.google.security.fences.policy.ApiElementType;
+import com.google.security.fences.policy.ApplicationOrderCache;
+import com.google.security.fences.policy.CompiledPolicy;
+import com.google.security.fences.policy.FencedClassIndex;
 import com.google.security.fences.policy.Policy;
-import com.google.security.fences.policy.PolicyApplicationOrder;
 import com.google.security.fences.reporting.Violation;
+import com.google.security.fences.util.DeferredLog;
 import com.google.security.fences.util.LazyString;
 import com.google.security.fences.util.MisconfigurationException;
 import com.google.security.fences.util.Utils;
@@ -37,8 +42,11 @@ import com.google.security.fences.util.Utils;
  */
 public final class Checker extends AbstractClassesVisitor {
   final Log log;
-  final Policy policy;
+  final CompiledPolicy policy;
   final InheritanceGraph inheritanceGraph;
+  final FencedClassIndex fencedClasses;
+  final DecisionCache decisions;
+  final ApplicationOrderCache applicationOrders;
   private final List<Violation> violations =
       Lists.newArrayList();
 
@@ -51,9 +59,37 @@ public final class Checker extends AbstractClassesVisitor {
    * @param policy the policy to apply.
    */
   public Checker(Log log, InheritanceGraph inheritanceGraph, Policy policy) {
+    this(log, inheritanceGraph, policy, CompiledPolicy.compile(policy));
+  }
+
+  private Checker(
+      Log log, InheritanceGraph inheritanceGraph, Policy policy,
+      CompiledPolicy compiledPolicy) {
+    this(log, inheritanceGraph, compiledPolicy,
+         FencedClassIndex.build(policy, inheritanceGraph),
+         new DecisionCache(compiledPolicy),
+         new ApplicationOrderCache(inheritanceGraph));
+  }
+
+  /**
+   * @param policy the compiled policy to apply.
+   * @param fencedClasses an index built from the given policy and graph
+   *     which may be shared by checkers of different class roots.
+   * @param decisions access decisions made under the given policy and graph
+   *     which may be shared by checkers of different class roots.
+   * @param applicationOrders orders computed from the given graph which may
+   *     be shared by checkers of different class roots.
+   */
+  public Checker(
+      Log log, InheritanceGraph inheritanceGraph, CompiledPolicy policy,
+      FencedClassIndex fencedClasses, DecisionCache decisions,
+      ApplicationOrderCache applicationOrders) {
     this.log = log;
     this.inheritanceGraph = inheritanceGraph;
     this.policy = policy;
+    this.fencedClasses = fencedClasses;
+    this.decisions = decisions;
+    this.applicationOrders = applicationOrders;
   }
 
   /**
@@ -69,10 +105,32 @@ public final class Checker extends AbstractClassesVisitor {
     log.debug("Visiting " + root);
   }
 
+  @Override
+  protected AbstractClassesVisitor forkForClassRoot(ClassRoot root) {
+    // The fork buffers its log so that messages from roots checked
+    // concurrently are not interleaved.
+    return new Checker(
+        new DeferredLog(log), inheritanceGraph, policy, fencedClasses,
+        decisions, applicationOrders);
+  }
+
+  @Override
+  protected void joinClassRoot(ClassRoot root, AbstractClassesVisitor fork) {
+    Checker forkedChecker = (Checker) fork;
+    ((DeferredLog) forkedChecker.log).flush();
+    violations.addAll(forkedChecker.violations);
+  }
+
   @Override
   protected ClassVisitor makeVisitorForClass(
       ClassRoot root, String relPath, ClassReader reader)
   throws IOException {
+    if (!refersToFencedClass(reader)) {
+      if (superVerboseLogging) {
+        log.debug(". Skipping class " + reader.getClassName());
+      }
+      return null;
+    }
     try {
       return new ClassChecker(root.art, reader);
     } catch (MisconfigurationException ex) {
@@ -80,11 +138,40 @@ public final class Checker extends AbstractClassesVisitor {
     }
   }
 
+  /** The tag of {@code CONSTANT_Class} constant pool entries. JVMS 4.4.1 */
+  private static final int CONSTANT_CLASS = 7;
+
+  /**
+   * False if the class cannot contain a use that the policy denies.
+   * <p>
+   * Every field and method instruction refers to its owner via a
+   * {@code CONSTANT_Class} constant pool entry, so this looks only at those
+   * which is much cheaper than visiting every method body.
+   */
+  @VisibleForTesting
+  boolean refersToFencedClass(ClassReader reader) {
+    char[] buf = new char[reader.getMaxStringLength()];
+    // Entry 0 is unused, and the entry after a long or double is unusable,
+    // so getItem returns 0 for both.
+    for (int i = 1, n = reader.getItemCount(); i < n; ++i) {
+      int index = reader.getItem(i);
+      if (index != 0 && reader.b[index - 1] == CONSTANT_CLASS) {
+        String className = reader.readUTF8(index, buf);
+        if (fencedClasses.mightBeFenced(className)) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
   final class ClassChecker extends ClassVisitor {
     final Artifact art;
     final ClassReader reader;
     final String className;
     final Namespace ns;
+    /** The policy row for ns which is shared with other namespaces. */
+    final int policyRow;
     private Optional<String> sourceFilePath = Optional.absent();
 
     ClassChecker(Artifact art, ClassReader reader)
@@ -94,6 +181,7 @@ public final class Checker extends AbstractClassesVisitor {
       this.reader = reader;
       this.className = reader.getClassName();
       this.ns = Namespace.fromInternalClassName(className);
+      this.policyRow = policy.rowId(ns);
     }
 
     @Override
@@ -112,7 +200,8 @@ public final class Checker extends AbstractClassesVisitor {
     public MethodVisitor visitMethod(
         int access, String name, String desc, String signature,
         String[] exceptions) {
-      return new MethodChecker(art, reader, sourceFilePath, ns, name);
+      return new MethodChecker(
+          art, reader, sourceFilePath, ns, policyRow, name);
     }
   }
 
@@ -121,19 +210,19 @@ public final class Checker extends AbstractClassesVisitor {
     final Optional<String> sourceFilePath;
     final String className;
     final Namespace ns;
+    final int policyRow;
     final String methodName;
-    private final Map<ApiElement, Map<String, PolicyResult>> memoTable =
-        Maps.newLinkedHashMap();
     private int latestLineNumber = -1;
 
     MethodChecker(
         Artifact art, ClassReader reader, Optional<String> sourceFilePath,
-        Namespace ns, String methodName) {
+        Namespace ns, int policyRow, String methodName) {
       super(Opcodes.ASM5);
       this.art = art;
       this.sourceFilePath = sourceFilePath;
       this.className = reader.getClassName();
       this.ns = ns;
+      this.policyRow = policyRow;
       this.methodName = methodName;
     }
 
@@ -145,6 +234,9 @@ public final class Checker extends AbstractClassesVisitor {
     @Override
     public void visitFieldInsn(
         int opcode, String owner, String name, String desc) {
+      if (!fencedClasses.mightBeFenced(owner)) {
+        return;
+      }
       ApiElement classEl = ApiElement.fromInternalClassName(owner);
       ApiElement fieldApiElement = classEl.child(name, ApiElementType.FIELD);
       requireAccessAllowed(fieldApiElement, desc);
@@ -159,6 +251,9 @@ public final class Checker extends AbstractClassesVisitor {
     @Override
     public void visitMethodInsn(
         int opcode, String owner, String name, String desc, boolean itf) {
+      if (!fencedClasses.mightBeFenced(owner)) {
+        return;
+      }
       ApiElement classEl = ApiElement.fromInternalClassName(owner);
       ApiElement methodApiElement = classEl.child(
           name,
@@ -180,12 +275,7 @@ public final class Checker extends AbstractClassesVisitor {
      */
     @SuppressWarnings("synthetic-access")
     void requireAccessAllowed(final ApiElement el, String descriptor) {
-      Map<String, PolicyResult> descriptorMemoTable = memoTable.get(el);
-      if (descriptorMemoTable == null) {
-        descriptorMemoTable = Maps.newLinkedHashMap();
-        memoTable.put(el, descriptorMemoTable);
-      }
-      PolicyResult r = descriptorMemoTable.get(descriptor);
+      PolicyResult r = decisions.get(policyRow, el, descriptor);
       if (r == null) {
         if (superVerboseLogging) {
           log.debug(new LazyString() {
@@ -196,8 +286,8 @@ public final class Checker extends AbstractClassesVisitor {
             }
           });
         }
-        r = Checker.this.applyAccessPolicy(ns, el, descriptor);
-        descriptorMemoTable.put(descriptor, r);
+        r = Checker.this.applyAccessPolicy(policyRow, el, descriptor);
+        decisions.put(policyRow, el, descriptor, r);
       }
       switch (r.accessLevel) {
         case ALLOWED:
@@ -210,7 +300,7 @@ public final class Checker extends AbstractClassesVisitor {
               latestLineNumber,
               el,
               r.target,
-              r.rationale);
+              r.rationale.get());
           Checker.this.violations.add(v);
           return;
       }
@@ -221,8 +311,11 @@ public final class Checker extends AbstractClassesVisitor {
   static final class PolicyResult {
     /** The policy decision. */
     final AccessLevel accessLevel;
-    /** The rationale for the decision. */
-    final Rationale rationale;
+    /**
+     * The rationale for the decision which is only built when needed to
+     * report a violation since it requires checking the text.
+     */
+    final Supplier<Rationale> rationale;
     /**
      * The API element based upon which the decision was made.
      * This may be an API element defined on an ancestor of the
@@ -233,12 +326,13 @@ public final class Checker extends AbstractClassesVisitor {
     static PolicyResult defaultResult(ApiElement target) {
       return new PolicyResult(
         AccessLevel.ALLOWED,  // Default to plain old Java rules.
-        Rationale.EMPTY,
+        Suppliers.ofInstance(Rationale.EMPTY),
         target);
     }
 
     PolicyResult(
-        AccessLevel accessLevel, Rationale rationale, ApiElement target) {
+        AccessLevel accessLevel, Supplier<Rationale> rationale,
+        ApiElement target) {
       this.accessLevel = accessLevel;
       this.rationale = rationale;
       this.target = target;
@@ -246,47 +340,29 @@ public final class Checker extends AbstractClassesVisitor {
   }
 
   PolicyResult applyAccessPolicy(
-      Namespace from, ApiElement to, String descriptor) {
-    // Find the most-specific rationale.
-    Iterable<Policy.NamespacePolicy> applicable = policy.forNamespace(from);
-
-    for (ApiElement el :
-         new PolicyApplicationOrder(to, descriptor, inheritanceGraph, log)) {
-      AccessLevel levelFromPolicy = null;
-      Rationale.Builder rationaleBuilder = new Rationale.Builder();
-      for (Policy.NamespacePolicy nsp : applicable) {
-        Optional<Policy.AccessControlDecision> d =
-            nsp.accessPolicyForApiElement(el);
-        if (d.isPresent()) {
-          Policy.AccessControlDecision acd = d.get();
-          AccessLevel dLvl = acd.accessLevel;
-          if (levelFromPolicy == null) {
-            levelFromPolicy = dLvl;
-          }
-          if (dLvl == levelFromPolicy && !acd.rationale.isEmpty()) {
-            try {
-              rationaleBuilder.addBody(acd.rationale);
-            } catch (MisconfigurationException ex) {
-              // Should not happen since this came from a rationale.
-              throw new AssertionError(null, ex);
-            }
-            break;
-          }
-        }
-      }
-
-      try {
-        rationaleBuilder.addAddendum(policy.getAddenda(to));
-      } catch (MisconfigurationException ex) {
-        // Should not happen since this came from a rationale.
-        throw new AssertionError(null, ex);
-      }
-
+      int fromRow, final ApiElement to, String descriptor) {
+    for (ApiElement el
+         : applicationOrders.applicationOrder(to, descriptor, log)) {
+      int column = policy.columnId(el);
+      AccessLevel levelFromPolicy = policy.accessLevel(fromRow, column);
       if (levelFromPolicy != null) {
+        final HumanReadableText body = policy.rationale(fromRow, column);
         return new PolicyResult(
-            // Default to java rules.
             levelFromPolicy,
-            rationaleBuilder.build(),
+            Suppliers.memoize(new Supplier<Rationale>() {
+              @Override
+              public Rationale get() {
+                Rationale.Builder rationaleBuilder = new Rationale.Builder();
+                try {
+                  rationaleBuilder.addBody(body);
+                  rationaleBuilder.addAddendum(policy.policy.getAddenda(to));
+                } catch (MisconfigurationException ex) {
+                  // Should not happen since this came from a rationale.
+                  throw new AssertionError(null, ex);
+                }
+                return rationaleBuilder.build();
+              }
+            }),
             el);
       }
     }
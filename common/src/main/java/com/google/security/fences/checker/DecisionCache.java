@@ -0,0 +1,102 @@
+package com.google.security.fences.checker;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import javax.annotation.Nullable;
+
+import com.google.security.fences.policy.ApiElement;
+import com.google.security.fences.policy.CompiledPolicy;
+
+/**
+ * Access decisions shared by all the checkers in a build so that a decision
+ * like whether {@code java.lang.String#equals} may be called is computed
+ * once per group of namespaces instead of once per method that calls it.
+ * <p>
+ * Decisions are keyed by the {@linkplain CompiledPolicy#rowId policy row}
+ * for the accessing class which is that of the deepest policy trie entry
+ * that applies to it, so classes in the same package share decisions unless
+ * a fence names one of them specifically.
+ * <p>
+ * This is safe to use from multiple threads.
+ */
+public final class DecisionCache {
+  private final int rowCount;
+  /**
+   * Keyed by accessed element, then by descriptor, then indexed by row, so
+   * that lookups of canonical elements neither allocate keys nor walk parent
+   * chains.
+   */
+  private final ConcurrentMap<
+      ApiElement,
+      ConcurrentMap<String, AtomicReferenceArray<Checker.PolicyResult>>>
+      decisions = new ConcurrentHashMap<
+          ApiElement,
+          ConcurrentMap<String, AtomicReferenceArray<Checker.PolicyResult>>>();
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+
+  /** @param policy the policy whose rows decisions are made for. */
+  public DecisionCache(CompiledPolicy policy) {
+    this.rowCount = policy.getRowCount();
+  }
+
+  /** The cached decision if any. */
+  @Nullable Checker.PolicyResult get(
+      int fromRow, ApiElement to, String descriptor) {
+    Checker.PolicyResult r = null;
+    ConcurrentMap<String, AtomicReferenceArray<Checker.PolicyResult>>
+        byDescriptor = decisions.get(to);
+    if (byDescriptor != null) {
+      AtomicReferenceArray<Checker.PolicyResult> byRow =
+          byDescriptor.get(descriptor);
+      if (byRow != null) {
+        r = byRow.get(fromRow);
+      }
+    }
+    (r != null ? hits : misses).incrementAndGet();
+    return r;
+  }
+
+  /**
+   * Caches a decision.  Concurrent checkers might compute the same decision
+   * but that's fine since decisions do not depend on which checker made them.
+   */
+  void put(
+      int fromRow, ApiElement to, String descriptor, Checker.PolicyResult r) {
+    ConcurrentMap<String, AtomicReferenceArray<Checker.PolicyResult>>
+        byDescriptor = decisions.get(to);
+    if (byDescriptor == null) {
+      ConcurrentMap<String, AtomicReferenceArray<Checker.PolicyResult>>
+          newByDescriptor = new ConcurrentHashMap<
+              String, AtomicReferenceArray<Checker.PolicyResult>>(4);
+      byDescriptor = decisions.putIfAbsent(to, newByDescriptor);
+      if (byDescriptor == null) {
+        byDescriptor = newByDescriptor;
+      }
+    }
+    AtomicReferenceArray<Checker.PolicyResult> byRow =
+        byDescriptor.get(descriptor);
+    if (byRow == null) {
+      AtomicReferenceArray<Checker.PolicyResult> newByRow =
+          new AtomicReferenceArray<Checker.PolicyResult>(rowCount);
+      byRow = byDescriptor.putIfAbsent(descriptor, newByRow);
+      if (byRow == null) {
+        byRow = newByRow;
+      }
+    }
+    byRow.compareAndSet(fromRow, null, r);
+  }
+
+  /** The number of decisions that were found in the cache. */
+  public long getHitCount() {
+    return hits.get();
+  }
+
+  /** The number of decisions that had to be computed. */
+  public long getMissCount() {
+    return misses.get();
+  }
+}
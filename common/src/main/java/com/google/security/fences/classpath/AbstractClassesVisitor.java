@@ -1,20 +1,30 @@
 package com.google.security.fences.classpath;
 
 import java.io.IOException;
-import java.io.InputStream;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import javax.annotation.Nullable;
 
 import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.ClassVisitor;
 
-import com.google.common.base.Predicate;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
 
 /**
  * Visits all the classes performing some operation.
  */
 public abstract class AbstractClassesVisitor {
 
-  /** Called to construct an ASM ClassVisitor which is then visited. */
-  protected abstract ClassVisitor makeVisitorForClass(
+  /**
+   * Called to construct an ASM ClassVisitor which is then visited.
+   *
+   * @return null to skip the class without parsing any more of it.
+   */
+  protected abstract @Nullable ClassVisitor makeVisitorForClass(
       ClassRoot root, String relPath, ClassReader r)
   throws IOException;
 
@@ -30,6 +40,56 @@ public abstract class AbstractClassesVisitor {
     // Does nothing by default
   }
 
+  /**
+   * Called to make a visitor that accumulates the results of visiting one
+   * class root, or one chunk of a large root, separately so that roots
+   * can be visited concurrently.
+   * <p>
+   * The fork is used by one worker thread and then it is passed to
+   * {@link #joinClassRoot} on the thread that called
+   * {@link #visitAll(Iterable, ForkJoinPool)}.
+   * Only the fork for a root's first chunk sees {@link #startClassRoot} and
+   * only the fork for its last chunk sees {@link #finishClassRoot}.
+   *
+   * @return null if this visitor does not support concurrent visiting in
+   *     which case all roots are visited in order on the calling thread.
+   */
+  @SuppressWarnings("unused")
+  protected @Nullable AbstractClassesVisitor forkForClassRoot(ClassRoot cr) {
+    return null;
+  }
+
+  /**
+   * Called to fold the results accumulated by a
+   * {@linkplain #forkForClassRoot fork} into this visitor.
+   * Forks are joined in the same order as their class roots and chunks, so
+   * the joined results do not depend on the order in which workers finish.
+   */
+  @SuppressWarnings("unused")
+  protected void joinClassRoot(ClassRoot cr, AbstractClassesVisitor fork)
+  throws IOException {
+    // Does nothing by default
+  }
+
+  private ClassBytesCache.Use classBytesCacheUse = ClassBytesCache.Use.NONE;
+
+  /**
+   * Keeps copies of the archived class files read, within the cache's
+   * budget, so that a later visitor that {@linkplain #reuseClassBytes reuses}
+   * them need not read and inflate them again.
+   */
+  public final void retainClassBytes(ClassBytesCache cache) {
+    this.classBytesCacheUse = cache.retaining();
+  }
+
+  /**
+   * Parses class files retained by an earlier visitor instead of reading
+   * them from their archive.
+   */
+  public final void reuseClassBytes(ClassBytesCache cache) {
+    this.classBytesCacheUse = cache.reusing();
+  }
+
   /**
    * Visits all the given roots in order.
    * The order in which classes under a root are visited depends on the
@@ -38,28 +98,209 @@ public abstract class AbstractClassesVisitor {
   public final void visitAll(Iterable<? extends ClassRoot> roots)
   throws IOException {
     for (ClassRoot root : roots) {
-      startClassRoot(root);
-      root.readEachPathMatching(
-          new Predicate<String>() {
-            @Override
-            public boolean apply(String relativePath) {
-              return relativePath.endsWith(".class");
-            }
-          },
-          new ClassRoot.IOConsumer<InputStream, Boolean>() {
-            @Override
-            public Boolean consume(
-                ClassRoot cr, String relPath, InputStream is)
-            throws IOException {
-              ClassReader reader = new ClassReader(is);
-              ClassVisitor classChecker = makeVisitorForClass(
-                  cr, relPath, reader);
-              reader.accept(classChecker, 0 /* flags */);
-              return true;
-            }
-          });
-      finishClassRoot(root);
+      visitClassRoot(root);
+    }
+  }
+
+  /**
+   * Visits all the given roots, fanning them out to the pool's workers when
+   * this visitor can be {@linkplain #forkForClassRoot forked}.
+   * Large roots are split into chunks of class files, listed via an
+   * archive's central directory or a directory walk, so that one big JAR or
+   * output directory does not end up being scanned by a single worker.
+   * Archives that can't be mapped are visited whole.
+   * <p>
+   * The results are the same as those of {@link #visitAll(Iterable)} since
+   * forks are joined in class root order, and chunks in the order in which
+   * a sequential visit would reach their class files.
+   */
+  public final void visitAll(
+      Iterable<? extends ClassRoot> roots, ForkJoinPool pool)
+  throws IOException {
+    ImmutableList<ClassRoot> rootList = ImmutableList.copyOf(roots);
+    int parallelism = pool.getParallelism();
+    // Ask before opening any archives so that a visitor that can't be forked
+    // does not have them mapped and listed only to start over.
+    AbstractClassesVisitor firstFork =
+        parallelism > 1 && !rootList.isEmpty()
+        ? forkForClassRoot(rootList.get(0))
+        : null;
+    if (firstFork == null) {
+      visitAll(rootList);
+      return;
+    }
+
+    List<ForkedClassRoot> tasks = Lists.newArrayList();
+    for (ClassRoot root : rootList) {
+      // Opened once and shared by the root's chunks so that each does not
+      // map the archive and read its central directory again.
+      MappedArchive archive = root.tryOpenArchive();
+      // Archives are split by entry instead of by name since an archive may
+      // have several entries with the same name.
+      List<List<MappedArchive.Entry>> entryChunks = ImmutableList.of();
+      List<List<String>> pathChunks = ImmutableList.of();
+      if (archive != null) {
+        entryChunks = split(
+            root.listEntriesMatching(ClassRoot.IS_CLASS_FILE, archive),
+            parallelism);
+      } else if (root.kind == ClassRoot.ClassRootKind.BUILD_OUTPUT_DIRECTORY) {
+        pathChunks = split(
+            root.listPathsMatching(ClassRoot.IS_CLASS_FILE, null),
+            parallelism);
+      }
+      // One task visits the whole root when it is not split.
+      int n = Math.max(1, entryChunks.size() + pathChunks.size());
+
+      for (int i = 0; i < n; ++i) {
+        AbstractClassesVisitor fork;
+        if (firstFork != null) {
+          fork = firstFork;
+          firstFork = null;
+        } else {
+          fork = forkForClassRoot(root);
+          Preconditions.checkState(fork != null, "Fork for %s", root);
+        }
+        fork.classBytesCacheUse = classBytesCacheUse;
+        tasks.add(new ForkedClassRoot(
+            root, archive, fork,
+            i < entryChunks.size() ? entryChunks.get(i) : null,
+            i < pathChunks.size() ? pathChunks.get(i) : null,
+            i == 0, i + 1 == n));
+      }
+    }
+
+    if (tasks.size() == 1) {
+      // Not worth handing off, but visit the archive already opened.
+      tasks.get(0).invoke();
+    } else {
+      for (ForkedClassRoot task : tasks) {
+        pool.execute(task);
+      }
+    }
+
+    try {
+      for (ForkedClassRoot task : tasks) {
+        task.join();
+        if (task.failure != null) {
+          throw task.failure;
+        }
+        joinClassRoot(task.root, task.fork);
+      }
+    } finally {
+      // If a join failed, don't leave workers scanning roots that no-one
+      // is going to look at.
+      for (ForkedClassRoot task : tasks) {
+        task.cancel(false);
+      }
+    }
+  }
+
+  /** Splits a root's class files into chunks, or none if it is small. */
+  private static <T> List<List<T>> split(List<T> classFiles, int parallelism) {
+    int chunkSize = chunkSize(classFiles.size(), parallelism);
+    if (chunkSize < classFiles.size()) {
+      return Lists.partition(classFiles, chunkSize);
+    }
+    return ImmutableList.of();
+  }
+
+  /** Roots with fewer class files than this are not split. */
+  static final int MIN_CHUNK_SIZE = 128;
+
+  /**
+   * The number of class files per chunk.  We aim for a few chunks per
+   * worker so that workers that finish early can steal work.
+   */
+  static int chunkSize(int classFileCount, int parallelism) {
+    int chunksPerRoot = parallelism * 4;
+    return Math.max(
+        MIN_CHUNK_SIZE,
+        (classFileCount + chunksPerRoot - 1) / chunksPerRoot);
+  }
+
+  /**
+   * Visits one class root, or a chunk of one, with a fork on a worker
+   * thread.
+   */
+  private static final class ForkedClassRoot extends RecursiveAction {
+    private static final long serialVersionUID = -2110345618297377593L;
+
+    final ClassRoot root;
+    /** The root's archive if it could be mapped. */
+    final @Nullable MappedArchive archive;
+    final AbstractClassesVisitor fork;
+    /** The archive entries to visit, if the root is a split archive. */
+    final @Nullable List<MappedArchive.Entry> entryChunk;
+    /** The class files to visit, if the root is a split directory. */
+    final @Nullable List<String> pathChunk;
+    final boolean isFirstChunk;
+    final boolean isLastChunk;
+    /** Set on the worker if visiting failed. */
+    IOException failure;
+
+    ForkedClassRoot(
+        ClassRoot root, @Nullable MappedArchive archive,
+        AbstractClassesVisitor fork,
+        @Nullable List<MappedArchive.Entry> entryChunk,
+        @Nullable List<String> pathChunk,
+        boolean isFirstChunk, boolean isLastChunk) {
+      this.root = root;
+      this.archive = archive;
+      this.fork = fork;
+      this.entryChunk = entryChunk;
+      this.pathChunk = pathChunk;
+      this.isFirstChunk = isFirstChunk;
+      this.isLastChunk = isLastChunk;
     }
+
+    @Override
+    protected void compute() {
+      try {
+        // Since chunks are joined in order, calling start on the first and
+        // finish on the last is indistinguishable from a sequential visit.
+        if (isFirstChunk) {
+          fork.startClassRoot(root);
+        }
+        if (entryChunk != null) {
+          root.readClasses(
+              entryChunk, archive, fork.classBytesCacheUse,
+              fork.classFileVisitor);
+        } else if (pathChunk != null) {
+          root.readClassFiles(pathChunk, fork.classFileVisitor);
+        } else {
+          root.readEachClassMatching(
+              ClassRoot.IS_CLASS_FILE, archive, fork.classBytesCacheUse,
+              fork.classFileVisitor);
+        }
+        if (isLastChunk) {
+          fork.finishClassRoot(root);
+        }
+      } catch (IOException ex) {
+        this.failure = ex;
+      }
+    }
+  }
+
+  private void visitClassRoot(ClassRoot root) throws IOException {
+    startClassRoot(root);
+    root.readEachClassMatching(
+        ClassRoot.IS_CLASS_FILE, classBytesCacheUse, classFileVisitor);
+    finishClassRoot(root);
   }
 
+  private final ClassRoot.IOConsumer<ClassReader, Boolean> classFileVisitor =
+      new ClassRoot.IOConsumer<ClassReader, Boolean>() {
+        @Override
+        public Boolean consume(
+            ClassRoot cr, String relPath, ClassReader reader)
+        throws IOException {
+          ClassVisitor classChecker = makeVisitorForClass(
+              cr, relPath, reader);
+          if (classChecker == null) {
+            return false;
+          }
+          reader.accept(classChecker, 0 /* flags */);
+          return true;
+        }
+      };
 }
@@ -1,16 +1,20 @@
 package com.google.security.fences.classpath;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.List;
 import java.util.Set;
 
 import javax.annotation.Nullable;
 
 import org.apache.maven.artifact.Artifact;
+import org.apache.maven.artifact.DefaultArtifact;
+import org.apache.maven.artifact.handler.DefaultArtifactHandler;
 import org.apache.maven.artifact.repository.ArtifactRepository;
 import org.apache.maven.artifact.resolver.ArtifactNotFoundException;
 import org.apache.maven.artifact.resolver.ArtifactResolutionException;
 import org.apache.maven.artifact.resolver.ArtifactResolver;
+import org.apache.maven.artifact.versioning.VersionRange;
 import org.apache.maven.model.Build;
 import org.apache.maven.plugin.logging.Log;
 import org.apache.maven.project.MavenProject;
@@ -18,8 +22,11 @@ import org.apache.maven.shared.dependency.tree.DependencyNode;
 import org.apache.maven.shared.dependency.tree.DependencyTreeBuilder;
 import org.apache.maven.shared.dependency.tree.DependencyTreeBuilderException;
 
+import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
+import com.google.common.base.Predicate;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Sets;
 import com.google.security.fences.util.LazyString;
 import com.google.security.fences.util.MisconfigurationException;
@@ -106,7 +113,8 @@ public final class ArtifactFinder {
     boolean hasClassRoot = !"pom".equals(project.getPackaging());
     File buildOutputDirectory = null;
 
-    // TODO: Do we need to descend into WARs and other packaging types?
+    // WARs and other packaging types that bundle libraries are handled by
+    // addZipClassRoot which adds roots for nested archives.
     if (hasClassRoot) {
       // First, figure out whether to get the classes from an output
       // directory or from a packaged ZIP file like a JAR.
@@ -207,7 +215,7 @@ public final class ArtifactFinder {
     return scope;
   }
 
-  private void addZipClassRoot(final Artifact art)
+  void addZipClassRoot(final Artifact art)
   throws MisconfigurationException {
     final File artFile = art.getFile();
     if (artFile == null) {
@@ -221,7 +229,77 @@ public final class ArtifactFinder {
         return "Found zip file " + artFile + " for " + Utils.artToString(art);
       }
     });
-    classRoots.add(new ClassRoot(
-        art, artFile, ClassRoot.ClassRootKind.ZIPFILE));
+    ClassRoot zipRoot = new ClassRoot(
+        art, artFile, ClassRoot.ClassRootKind.ZIPFILE);
+    classRoots.add(zipRoot);
+    if (TYPES_THAT_BUNDLE_LIBRARIES.contains(art.getType())) {
+      addNestedClassRoots(zipRoot);
+    }
   }
+
+  /**
+   * Types of artifact that can bundle libraries.
+   * For a project's own artifact, the type is its packaging.
+   * Spring Boot executable JARs are of type {@code jar}.
+   */
+  private static final ImmutableSet<String> TYPES_THAT_BUNDLE_LIBRARIES =
+      ImmutableSet.of("jar", "war", "ear");
+
+  /**
+   * Adds roots for libraries bundled inside an archive like a WAR's
+   * {@code WEB-INF/lib/*.jar}, a Spring Boot executable JAR's
+   * {@code BOOT-INF/lib/*.jar}, or an EAR's modules.
+   * These are read in place instead of being extracted.
+   * Libraries nested more than one level deep, like a JAR in a WAR in an
+   * EAR, are not found.
+   * An archive that can't be listed is logged and has no nested roots
+   * since the rule should not fail on an artifact that turns out not to
+   * hold classes.
+   */
+  private void addNestedClassRoots(ClassRoot zipRoot) {
+    final Artifact art = zipRoot.art;
+    final boolean isEar = "ear".equals(art.getType());
+    ImmutableList<String> nestedArchives;
+    try {
+      nestedArchives = zipRoot.listPathsMatching(new Predicate<String>() {
+        @Override
+        public boolean apply(String relPath) {
+          if (!relPath.endsWith(".jar")) {
+            return false;
+          }
+          String dir = relPath.substring(0, relPath.lastIndexOf('/') + 1);
+          return NESTED_LIBRARY_DIRECTORIES.contains(dir)
+              || (isEar && ("".equals(dir) || "lib/".equals(dir)));
+        }
+      });
+    } catch (IOException ex) {
+      log.warn(
+          "Not looking for libraries in " + Utils.artToString(art)
+          + " since it could not be read", ex);
+      return;
+    }
+    for (final String nestedArchive : nestedArchives) {
+      Artifact nestedArt = new DefaultArtifact(
+          art.getGroupId(), art.getArtifactId(),
+          VersionRange.createFromVersion(art.getVersion()),
+          art.getScope(), "jar", nestedArchive,
+          new DefaultArtifactHandler("jar"));
+      nestedArt.setFile(art.getFile());
+      log.info(new LazyString() {
+        @Override
+        protected String makeString() {
+          return "Found nested zip file " + nestedArchive
+              + " in " + Utils.artToString(art);
+        }
+      });
+      classRoots.add(new ClassRoot(
+          nestedArt, zipRoot.classRoot,
+          ClassRoot.ClassRootKind.NESTED_ZIPFILE,
+          Optional.of(nestedArchive)));
+    }
+  }
+
+  /** Directories in archives whose JARs are loaded along with the archive. */
+  private static final ImmutableSet<String> NESTED_LIBRARY_DIRECTORIES =
+      ImmutableSet.of("WEB-INF/lib/", "BOOT-INF/lib/");
 }
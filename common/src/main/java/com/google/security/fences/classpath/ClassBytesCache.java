@@ -0,0 +1,182 @@
+package com.google.security.fences.classpath;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Holds on to the bytes of classes read from archives so that a later pass
+ * over the same class roots can parse them again without re-reading and
+ * re-inflating them.
+ * <p>
+ * The cache has a budget in bytes.  Classes that would exceed the budget are
+ * not retained, so a later pass reads them from the archive as usual.
+ * Bytes are handed out once since each later pass visits each class once,
+ * which frees the budget as the later pass proceeds.
+ * <p>
+ * Bytes are kept per archive entry, not per name, since an archive may have
+ * several entries with the same name and a later pass must get each one's
+ * own bytes.
+ * <p>
+ * This is safe to use from multiple threads.
+ */
+public final class ClassBytesCache {
+  private final long maxBytes;
+  private final AtomicLong usedBytes = new AtomicLong();
+  private final AtomicLong hits = new AtomicLong();
+  /** Keyed by root, then by the offset of the entry's local header. */
+  private final ConcurrentMap<ClassRoot, ConcurrentMap<Integer, byte[]>>
+      byRoot = new ConcurrentHashMap<ClassRoot,
+                                     ConcurrentMap<Integer, byte[]>>();
+
+  /**
+   * @param maxBytes the most class file bytes retained at any one time.
+   */
+  public ClassBytesCache(long maxBytes) {
+    Preconditions.checkArgument(maxBytes >= 0, maxBytes);
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * Retains a copy of the given bytes if there is room in the budget.
+   */
+  void put(
+      ClassRoot root, MappedArchive.Entry entry, byte[] bytes, int off,
+      int len) {
+    while (true) {
+      long used = usedBytes.get();
+      if (used + len > maxBytes) {
+        return;
+      }
+      if (usedBytes.compareAndSet(used, used + len)) {
+        break;
+      }
+    }
+    ConcurrentMap<Integer, byte[]> forRoot = byRoot.get(root);
+    if (forRoot == null) {
+      ConcurrentMap<Integer, byte[]> newForRoot =
+          new ConcurrentHashMap<Integer, byte[]>();
+      forRoot = byRoot.putIfAbsent(root, newForRoot);
+      if (forRoot == null) {
+        forRoot = newForRoot;
+      }
+    }
+    byte[] old = forRoot.put(
+        entry.localHeaderOffset, Arrays.copyOfRange(bytes, off, off + len));
+    if (old != null) {
+      usedBytes.addAndGet(-old.length);
+    }
+  }
+
+  /**
+   * Removes and returns the bytes retained for the given class if any.
+   */
+  @Nullable byte[] take(ClassRoot root, MappedArchive.Entry entry) {
+    ConcurrentMap<Integer, byte[]> forRoot = byRoot.get(root);
+    if (forRoot == null) {
+      return null;
+    }
+    byte[] bytes = forRoot.remove(entry.localHeaderOffset);
+    if (bytes != null) {
+      usedBytes.addAndGet(-bytes.length);
+      hits.incrementAndGet();
+    }
+    return bytes;
+  }
+
+  /**
+   * Drops the bytes retained for a class root that a later pass is not
+   * going to visit, so that they do not hold onto the budget.
+   */
+  public void discard(ClassRoot root) {
+    ConcurrentMap<Integer, byte[]> forRoot = byRoot.remove(root);
+    if (forRoot != null) {
+      long discarded = 0;
+      for (byte[] bytes : forRoot.values()) {
+        discarded += bytes.length;
+      }
+      usedBytes.addAndGet(-discarded);
+    }
+  }
+
+  /**
+   * A use that retains the bytes of classes read so that a later pass can
+   * {@linkplain #reusing reuse} them.
+   */
+  Use retaining() {
+    return new Use() {
+      @Override
+      @Nullable byte[] lookup(ClassRoot root, MappedArchive.Entry entry) {
+        return null;
+      }
+
+      @Override
+      void read(
+          ClassRoot root, MappedArchive.Entry entry, byte[] bytes, int off,
+          int len) {
+        put(root, entry, bytes, off, len);
+      }
+    };
+  }
+
+  /**
+   * A use that takes the bytes of classes retained by an earlier pass.
+   */
+  Use reusing() {
+    return new Use() {
+      @Override
+      @Nullable byte[] lookup(ClassRoot root, MappedArchive.Entry entry) {
+        return take(root, entry);
+      }
+
+      @Override
+      void read(
+          ClassRoot root, MappedArchive.Entry entry, byte[] bytes, int off,
+          int len) {
+        // Nothing later needs these bytes.
+      }
+    };
+  }
+
+  /** How a pass over class roots uses a cache. */
+  abstract static class Use {
+    /** Bytes for the given class, if available, instead of reading it. */
+    abstract @Nullable byte[] lookup(
+        ClassRoot root, MappedArchive.Entry entry);
+
+    /** Called with the bytes of a class read from the class root. */
+    abstract void read(
+        ClassRoot root, MappedArchive.Entry entry, byte[] bytes, int off,
+        int len);
+
+    /** Does not use any cache. */
+    static final Use NONE = new Use() {
+      @Override
+      @Nullable byte[] lookup(ClassRoot root, MappedArchive.Entry entry) {
+        return null;
+      }
+
+      @Override
+      void read(
+          ClassRoot root, MappedArchive.Entry entry, byte[] bytes, int off,
+          int len) {
+        // Does nothing
+      }
+    };
+  }
+
+  /** The number of classes whose bytes have been {@linkplain #take taken}. */
+  public long getHitCount() {
+    return hits.get();
+  }
+
+  /** The count of bytes currently retained. */
+  public long getRetainedByteCount() {
+    return usedBytes.get();
+  }
+}
@@ -0,0 +1,85 @@
+package com.google.security.fences.classpath;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Map;
+
+import org.objectweb.asm.ClassReader;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * The class files under one class root by the internal names of the classes
+ * that they declare, so that classes can be read on demand instead of
+ * scanning the whole root.
+ * <p>
+ * Names come from the paths of class files, so indices are only made for
+ * roots whose class files are all in directories that are packages.
+ * <p>
+ * This is safe to use from multiple threads.
+ *
+ * @see ClassRoot#indexClassFiles
+ */
+public final class ClassFileIndex {
+  /** The indexed root. */
+  public final ClassRoot root;
+  private final ImmutableMap<String, String> relPathsByName;
+  /** Used to read from archives that can't be mapped. */
+  private final Optional<ZipFilePool> zipFiles;
+
+  ClassFileIndex(
+      ClassRoot root, Map<String, String> relPathsByName,
+      Optional<ZipFilePool> zipFiles) {
+    this.root = root;
+    this.relPathsByName = ImmutableMap.copyOf(relPathsByName);
+    this.zipFiles = zipFiles;
+  }
+
+  /**
+   * Maps internal class names, like {@code com/example/Foo}, to the
+   * relative paths of their class files, in the order in which a
+   * {@link AbstractClassesVisitor} would visit them.
+   * Where there are several, like in a multi-release JAR, the first wins.
+   */
+  public ImmutableMap<String, String> classFiles() {
+    return relPathsByName;
+  }
+
+  /** Reads the class file at the given relative path. */
+  public ClassReader read(String relPath) throws IOException {
+    // Archives that can be mapped are kept mapped by the root so reads are
+    // cheap.  This asks the root each time instead of keeping the archive
+    // so that reads after the root is released open it again.
+    MappedArchive archive = root.tryOpenArchive();
+    if (archive == null) {
+      ClassRoot.IOConsumer<InputStream, ClassReader> parse =
+          new ClassRoot.IOConsumer<InputStream, ClassReader>() {
+            @Override
+            public ClassReader consume(
+                ClassRoot cr, String relativePath, InputStream is)
+            throws IOException {
+              return new ClassReader(is);
+            }
+          };
+      return zipFiles.isPresent()
+          ? root.readRelativePath(relPath, zipFiles.get(), parse)
+          : root.readRelativePath(relPath, parse);
+    }
+    MappedArchive.Entry e = archive.getEntry(relPath);
+    if (e == null) {
+      throw new FileNotFoundException(
+          "Could not find " + relPath + " in " + root);
+    }
+    MappedArchive.Scratch scratch = MappedArchive.Scratch.acquire();
+    try {
+      int length = archive.read(e, scratch);
+      // The scratch buffer is reused so the reader needs its own copy.
+      return new ClassReader(Arrays.copyOf(scratch.out, length));
+    } finally {
+      scratch.release();
+    }
+  }
+}
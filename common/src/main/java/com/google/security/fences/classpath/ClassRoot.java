@@ -1,20 +1,46 @@
 package com.google.security.fences.classpath;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Enumeration;
+import java.util.List;
 import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
 import java.util.zip.ZipFile;
 import java.util.zip.ZipInputStream;
 
+import javax.annotation.Nullable;
+
 import org.apache.maven.artifact.Artifact;
+import org.objectweb.asm.ClassReader;
 
+import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Predicate;
-import com.google.common.collect.ImmutableMap;
+import com.google.common.base.Predicates;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.hash.Funnels;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
 import com.google.security.fences.util.Utils;
 
 /**
@@ -22,17 +48,44 @@ import com.google.security.fences.util.Utils;
  * path.
  */
 public final class ClassRoot {
+  /** Used to compute {@link #contentHash}. */
+  public static final HashFunction CONTENT_HASH_FUNCTION = Hashing.sha256();
+
   /** The artifact whose content is at classRoot. */
   public final Artifact art;
   /** Either a JAR (ZIP) file or a class root directory. */
   public final File classRoot;
   /** The kind of class root whether an archive or a root directory. */
   public final ClassRoot.ClassRootKind kind;
+  /**
+   * For {@link ClassRootKind#NESTED_ZIPFILE} roots, the path within the
+   * archive at classRoot of the archive that contains the classes.
+   */
+  public final Optional<String> pathInArchive;
+  /**
+   * For archive roots, the archive, opened on first use and kept so that it
+   * is mapped once however many passes read it, and since opening a
+   * compressed nested archive means inflating all of it.
+   * Absent if it can't be mapped.  Null until opened.
+   */
+  private volatile Optional<MappedArchive> openedArchive;
+  /** A hash of the archive's content once computed. */
+  private volatile HashCode contentHash;
+  private final Object archiveLock = new Object();
 
   ClassRoot(Artifact art, File classRoot, ClassRoot.ClassRootKind kind) {
+    this(art, classRoot, kind, Optional.<String>absent());
+  }
+
+  ClassRoot(
+      Artifact art, File classRoot, ClassRoot.ClassRootKind kind,
+      Optional<String> pathInArchive) {
+    Preconditions.checkArgument(
+        pathInArchive.isPresent() == (kind == ClassRootKind.NESTED_ZIPFILE));
     this.art = art;
     this.classRoot = classRoot;
     this.kind = kind;
+    this.pathInArchive = pathInArchive;
   }
 
   /**
@@ -49,44 +102,92 @@ public final class ClassRoot {
       case ZIPFILE:
         ZipFile zf = new ZipFile(classRoot);
         try {
-          ZipEntry e = zf.getEntry(path);
-          if (e == null) {
-            throw new FileNotFoundException(
-                "Could not find " + path + " in " + Utils.artToString(art));
-          }
-          InputStream is = zf.getInputStream(e);
-          try {
-            return c.consume(this, path, is);
-          } finally {
-            is.close();
-          }
+          return readZipEntry(zf, path, c);
         } finally {
           zf.close();
         }
-
+      case NESTED_ZIPFILE:
+        return readNestedEntry(path, c);
       case BUILD_OUTPUT_DIRECTORY:
-        File f = classRoot;
-        String[] pathElements = path.split("/");
-        for (String pathElement : pathElements) {
-          if ("".equals(pathElement)) { continue; }
-          f = new File(f, pathElement);
-        }
-        FileInputStream is = new FileInputStream(f);
+        return readRelativeFile(path, c);
+    }
+    throw new AssertionError(kind);
+  }
+
+  /**
+   * Like {@link #readRelativePath(String, IOConsumer)} but reads archives via
+   * a pool of open archives so that repeated reads from the same archive do
+   * not each re-read its central directory.
+   */
+  <T>
+  T readRelativePath(
+      String path, ZipFilePool zipFiles,
+      IOConsumer<? super InputStream, ? extends T> c)
+  throws IOException {
+    switch (kind) {
+      case ZIPFILE:
+        ZipFilePool.Handle h = zipFiles.acquire(classRoot);
         try {
-          return c.consume(this, path, is);
+          return readZipEntry(h.zipFile, path, c);
         } finally {
-          is.close();
+          zipFiles.release(h);
         }
+      case NESTED_ZIPFILE:
+        return readNestedEntry(path, c);
+      case BUILD_OUTPUT_DIRECTORY:
+        return readRelativeFile(path, c);
     }
     throw new AssertionError(kind);
   }
 
-  <T>
-  Map<String, T> readEachPathMatching(
-      Predicate<String> relativePathFilter,
+  private <T>
+  T readZipEntry(
+      ZipFile zf, String path,
+      IOConsumer<? super InputStream, ? extends T> c)
+  throws IOException {
+    ZipEntry e = zf.getEntry(path);
+    if (e == null) {
+      throw new FileNotFoundException(
+          "Could not find " + path + " in " + Utils.artToString(art));
+    }
+    InputStream is = zf.getInputStream(e);
+    try {
+      return c.consume(this, path, is);
+    } finally {
+      is.close();
+    }
+  }
+
+  private <T>
+  T readRelativeFile(
+      String path,
       IOConsumer<? super InputStream, ? extends T> c)
   throws IOException {
-    ImmutableMap.Builder<String, T> b = ImmutableMap.builder();
+    Preconditions.checkState(kind == ClassRootKind.BUILD_OUTPUT_DIRECTORY);
+    File f = classRoot;
+    String[] pathElements = path.split("/");
+    for (String pathElement : pathElements) {
+      if ("".equals(pathElement)) { continue; }
+      f = new File(f, pathElement);
+    }
+    FileInputStream is = new FileInputStream(f);
+    try {
+      return c.consume(this, path, is);
+    } finally {
+      is.close();
+    }
+  }
+
+  /**
+   * Gives each path under this root that matches the filter, and its
+   * content, to the consumer.
+   * Results are streamed to the consumer as they are read; this does not
+   * collect them.
+   */
+  void readEachPathMatching(
+      Predicate<String> relativePathFilter,
+      final IOConsumer<? super InputStream, ?> c)
+  throws IOException {
     switch (kind) {
       case ZIPFILE:
         InputStream in = new FileInputStream(classRoot);
@@ -98,7 +199,7 @@ public final class ClassRoot {
               if (!zipEntry.isDirectory()) {
                 String entryName = zipEntry.getName();
                 if (relativePathFilter.apply(entryName)) {
-                  b.put(entryName, c.consume(this, entryName, zipIn));
+                  c.consume(this, entryName, zipIn);
                 }
               }
               zipIn.closeEntry();
@@ -109,57 +210,608 @@ public final class ClassRoot {
         } finally {
           in.close();
         }
+        return;
+
+      case NESTED_ZIPFILE:
+        MappedArchive archive = tryOpenArchive();
+        if (archive == null) {
+          streamNestedArchive(relativePathFilter, c);
+          return;
+        }
+        MappedArchive.Scratch scratch = MappedArchive.Scratch.acquire();
+        try {
+          for (MappedArchive.Entry e : archive.entries()) {
+            if (!e.isDirectory() && relativePathFilter.apply(e.name)) {
+              int length = archive.read(e, scratch);
+              c.consume(
+                  this, e.name,
+                  new ByteArrayInputStream(scratch.out, 0, length));
+            }
+          }
+        } finally {
+          scratch.release();
+        }
+        return;
+
+      case BUILD_OUTPUT_DIRECTORY:
+        walk(relativePathFilter, new IOConsumer<Path, Void>() {
+          @Override
+          public Void consume(ClassRoot root, String relPath, Path file)
+          throws IOException {
+            InputStream fileIn = Files.newInputStream(file);
+            try {
+              c.consume(root, relPath, fileIn);
+            } finally {
+              fileIn.close();
+            }
+            return null;
+          }
+        });
+        return;
+    }
+    throw new AssertionError(kind);
+  }
+
+  /**
+   * The relative paths under this root that match the filter, in the order
+   * in which {@link #readEachClassMatching} would visit them.
+   * <p>
+   * For archives, these are read from the central directory, and for
+   * directories, from a walk that does not open any files, so this is a
+   * cheap way to split a directory into chunks that can be read
+   * independently via {@link #readClassFiles}.
+   */
+  ImmutableList<String> listPathsMatching(
+      Predicate<String> relativePathFilter)
+  throws IOException {
+    return listPathsMatching(relativePathFilter, tryOpenArchive());
+  }
+
+  /**
+   * Like {@link #listPathsMatching(Predicate)} but lists an archive that the
+   * caller has already opened.
+   *
+   * @param archive the result of {@link #tryOpenArchive}.
+   */
+  ImmutableList<String> listPathsMatching(
+      Predicate<String> relativePathFilter, @Nullable MappedArchive archive)
+  throws IOException {
+    final ImmutableList.Builder<String> b = ImmutableList.builder();
+    switch (kind) {
+      case ZIPFILE:
+      case NESTED_ZIPFILE:
+        if (archive != null) {
+          for (MappedArchive.Entry e : archive.entries()) {
+            if (!e.isDirectory() && relativePathFilter.apply(e.name)) {
+              b.add(e.name);
+            }
+          }
+          return b.build();
+        }
+        if (kind == ClassRootKind.NESTED_ZIPFILE) {
+          streamNestedArchive(
+              relativePathFilter,
+              new IOConsumer<InputStream, Void>() {
+                @Override
+                public Void consume(
+                    ClassRoot root, String relPath, InputStream is) {
+                  b.add(relPath);
+                  return null;
+                }
+              });
+          return b.build();
+        }
+        ZipFile zf;
+        try {
+          zf = new ZipFile(classRoot);
+        } catch (ZipException ex) {
+          // Like ZipInputStream, which readEachPathMatching uses, treat a
+          // file that is not an archive as having no entries.
+          return b.build();
+        }
+        try {
+          for (Enumeration<? extends ZipEntry> entries = zf.entries();
+               entries.hasMoreElements();) {
+            ZipEntry zipEntry = entries.nextElement();
+            if (!zipEntry.isDirectory()) {
+              String entryName = zipEntry.getName();
+              if (relativePathFilter.apply(entryName)) {
+                b.add(entryName);
+              }
+            }
+          }
+        } finally {
+          zf.close();
+        }
         return b.build();
 
       case BUILD_OUTPUT_DIRECTORY:
-        find("", classRoot, relativePathFilter, c, b);
+        walk(relativePathFilter, new IOConsumer<Path, Void>() {
+          @Override
+          public Void consume(ClassRoot root, String relPath, Path file) {
+            b.add(relPath);
+            return null;
+          }
+        });
         return b.build();
     }
     throw new AssertionError(kind);
   }
 
-  private <T> void find(
-      String relativePath, File directory,
-      Predicate<String> relativePathFilter,
-      IOConsumer<? super InputStream, ? extends T> c,
-      ImmutableMap.Builder<String, T> b)
+  /**
+   * The internal names, like {@code com/example}, of the packages of the
+   * classes under this root, read from an archive's central directory or a
+   * directory walk without opening any class files.
+   *
+   * @return absent if some class file is in a directory that is not a
+   *     package like {@code BOOT-INF/classes}, so the package of the class
+   *     can't be known without reading it.
+   */
+  public Optional<ImmutableSet<String>> listPackages() throws IOException {
+    ImmutableSet.Builder<String> packages = ImmutableSet.builder();
+    String lastPackage = null;
+    for (String relPath : listPathsMatching(IS_CLASS_FILE)) {
+      String path = unversioned(relPath);
+      int lastSlash = path.lastIndexOf('/');
+      String pkg = lastSlash < 0 ? "" : path.substring(0, lastSlash);
+      if (pkg.equals(lastPackage)) {
+        continue;  // Archives tend to group classes by package.
+      }
+      if (!isPackageName(pkg)) {
+        return Optional.absent();
+      }
+      packages.add(pkg);
+      lastPackage = pkg;
+    }
+    return Optional.of(packages.build());
+  }
+
+  /**
+   * An index of the class files under this root by the internal names of
+   * the classes they declare, read from an archive's central directory or a
+   * directory walk without opening any class files.
+   *
+   * @return absent if some class file is in a directory that is not a
+   *     package, so the name of its class can't be known without reading it.
+   */
+  public Optional<ClassFileIndex> indexClassFiles() throws IOException {
+    return indexClassFiles(Optional.<ZipFilePool>absent());
+  }
+
+  /**
+   * Like {@link #indexClassFiles()} but the index reads classes from an
+   * archive that can't be mapped via the given pool so that each read does
+   * not open the archive and read its central directory again.
+   */
+  public Optional<ClassFileIndex> indexClassFiles(ZipFilePool zipFiles)
+  throws IOException {
+    return indexClassFiles(Optional.of(zipFiles));
+  }
+
+  private Optional<ClassFileIndex> indexClassFiles(
+      Optional<ZipFilePool> zipFiles)
+  throws IOException {
+    MappedArchive archive = tryOpenArchive();
+    ImmutableList<String> relPaths = listPathsMatching(IS_CLASS_FILE, archive);
+
+    Map<String, String> relPathsByName = Maps.newLinkedHashMap();
+    String lastPackage = null;
+    for (String relPath : relPaths) {
+      String path = unversioned(relPath);
+      String className = path.substring(
+          0, path.length() - ".class".length());
+      int lastSlash = className.lastIndexOf('/');
+      String pkg = lastSlash < 0 ? "" : className.substring(0, lastSlash);
+      if (!pkg.equals(lastPackage)) {
+        if (!isPackageName(pkg)) {
+          return Optional.absent();
+        }
+        lastPackage = pkg;
+      }
+      if (!relPathsByName.containsKey(className)) {
+        relPathsByName.put(className, relPath);
+      }
+    }
+    return Optional.of(new ClassFileIndex(this, relPathsByName, zipFiles));
+  }
+
+  private static final Pattern VERSIONED_ENTRY = Pattern.compile(
+      "META-INF/versions/[0-9]+/");
+
+  /**
+   * Strips the prefix under which multi-release JARs keep versions of
+   * classes: {@code META-INF/versions/<n>/}.
+   */
+  private static String unversioned(String relPath) {
+    Matcher m = VERSIONED_ENTRY.matcher(relPath);
+    return m.lookingAt() ? relPath.substring(m.end()) : relPath;
+  }
+
+  static final Predicate<String> IS_CLASS_FILE =
+      new Predicate<String>() {
+        @Override
+        public boolean apply(String relativePath) {
+          return relativePath.endsWith(".class");
+        }
+      };
+
+  private static boolean isPackageName(String internalName) {
+    if (internalName.length() == 0) {
+      return true;
+    }
+    for (String part : internalName.split("/", -1)) {
+      if (part.length() == 0
+          || !Character.isJavaIdentifierStart(part.charAt(0))) {
+        return false;
+      }
+      for (int i = 1, n = part.length(); i < n; ++i) {
+        if (!Character.isJavaIdentifierPart(part.charAt(i))) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Like {@link #readEachPathMatching} but parses each matching entry as a
+   * class file.
+   * <p>
+   * ZIPFILE roots are read via a memory-mapped {@link MappedArchive} where
+   * possible, so the reader's bytes live in a buffer that is reused once the
+   * consumer returns.  Consumers must not hold onto the reader.
+   * Only classes read that way are passed to the cache use.
+   */
+  void readEachClassMatching(
+      Predicate<String> relativePathFilter, ClassBytesCache.Use cacheUse,
+      IOConsumer<? super ClassReader, ?> c)
+  throws IOException {
+    readEachClassMatching(relativePathFilter, tryOpenArchive(), cacheUse, c);
+  }
+
+  /**
+   * Like {@link #readEachClassMatching(Predicate, ClassBytesCache.Use,
+   * IOConsumer)} but reads an archive that the caller has already opened.
+   *
+   * @param archive the result of {@link #tryOpenArchive}.
+   */
+  void readEachClassMatching(
+      Predicate<String> relativePathFilter, @Nullable MappedArchive archive,
+      ClassBytesCache.Use cacheUse, IOConsumer<? super ClassReader, ?> c)
+  throws IOException {
+    if (archive != null) {
+      readClasses(
+          listEntriesMatching(relativePathFilter, archive), archive,
+          cacheUse, c);
+      return;
+    }
+    readEachPathMatching(relativePathFilter, parsingClasses(c));
+  }
+
+  /**
+   * The entries of an archive root's non-directory entries whose names match
+   * the filter, in the order in which {@link #readEachClassMatching} would
+   * visit them.
+   * Unlike names, entries are distinct even when an archive has several
+   * with the same name, so this is how to split an archive into chunks that
+   * can be read independently via {@link #readClasses}.
+   *
+   * @param archive the result of {@link #tryOpenArchive}.
+   */
+  ImmutableList<MappedArchive.Entry> listEntriesMatching(
+      Predicate<String> relativePathFilter, MappedArchive archive) {
+    ImmutableList.Builder<MappedArchive.Entry> b = ImmutableList.builder();
+    for (MappedArchive.Entry e : archive.entries()) {
+      if (!e.isDirectory() && relativePathFilter.apply(e.name)) {
+        b.add(e);
+      }
+    }
+    return b.build();
+  }
+
+  /**
+   * Like {@link #readEachClassMatching} but reads only the given entries, as
+   * from {@link #listEntriesMatching}, in order.
+   * Different threads may read disjoint sets of entries concurrently.
+   *
+   * @param archive the result of {@link #tryOpenArchive}.
+   */
+  void readClasses(
+      Iterable<MappedArchive.Entry> entries, MappedArchive archive,
+      ClassBytesCache.Use cacheUse,
+      IOConsumer<? super ClassReader, ?> c)
+  throws IOException {
+    MappedArchive.Scratch scratch = MappedArchive.Scratch.acquire();
+    try {
+      for (MappedArchive.Entry e : entries) {
+        ClassReader reader;
+        byte[] cached = cacheUse.lookup(this, e);
+        if (cached != null) {
+          reader = new ClassReader(cached);
+        } else {
+          int length = archive.read(e, scratch);
+          cacheUse.read(this, e, scratch.out, 0, length);
+          reader = new ClassReader(scratch.out, 0, length);
+        }
+        c.consume(this, e.name, reader);
+      }
+    } finally {
+      scratch.release();
+    }
+  }
+
+  /**
+   * Like {@link #readEachClassMatching} but reads only the classes at the
+   * given relative paths under a {@link ClassRootKind#BUILD_OUTPUT_DIRECTORY}
+   * root, as from {@link #listPathsMatching}, in order.
+   * Different threads may read disjoint sets of paths concurrently.
+   */
+  void readClassFiles(
+      Iterable<String> relPaths, IOConsumer<? super ClassReader, ?> c)
   throws IOException {
-    Preconditions.checkArgument(directory.isDirectory(), directory.getPath());
-    File[] contents = directory.listFiles();
-    if (contents == null) {
-      throw new IOException("Cannot list contents of " + directory);
+    Preconditions.checkState(
+        kind == ClassRootKind.BUILD_OUTPUT_DIRECTORY, kind);
+    IOConsumer<InputStream, ?> parser = parsingClasses(c);
+    for (String relPath : relPaths) {
+      readRelativeFile(relPath, parser);
+    }
+  }
+
+  private static
+  IOConsumer<InputStream, ?> parsingClasses(
+      final IOConsumer<? super ClassReader, ?> c) {
+    return new IOConsumer<InputStream, Void>() {
+      @Override
+      public Void consume(ClassRoot root, String relativePath, InputStream is)
+      throws IOException {
+        c.consume(root, relativePath, new ClassReader(is));
+        return null;
+      }
+    };
+  }
+
+  /**
+   * Opens an archive root for random access.
+   * The result may be shared by threads reading disjoint parts of the root.
+   * Archives are opened once and kept until {@link #releaseArchive released}.
+   *
+   * @return null for directories, or if the archive can't be mapped so
+   *     callers should fall back to streaming.
+   */
+  @Nullable MappedArchive tryOpenArchive() throws IOException {
+    if (kind == ClassRootKind.BUILD_OUTPUT_DIRECTORY) {
+      return null;
+    }
+    Optional<MappedArchive> opened = openedArchive;
+    if (opened == null) {
+      synchronized (archiveLock) {
+        opened = openedArchive;
+        if (opened == null) {
+          opened = Optional.fromNullable(
+              kind == ClassRootKind.NESTED_ZIPFILE
+              ? tryOpenNestedArchive()
+              : MappedArchive.tryOpen(classRoot));
+          openedArchive = opened;
+        }
+      }
+    }
+    return opened.orNull();
+  }
+
+  private @Nullable MappedArchive tryOpenNestedArchive() throws IOException {
+    MappedArchive outer = MappedArchive.tryOpen(classRoot);
+    if (outer == null) {
+      return null;
+    }
+    MappedArchive nested = null;
+    try {
+      nested = outer.tryOpenNested(getNestedEntry(outer));
+    } finally {
+      // An inflated nested archive doesn't need the containing one.
+      if (nested == null || !nested.readsInPlaceFrom(outer)) {
+        outer.close();
+      }
+    }
+    return nested;
+  }
+
+  private MappedArchive.Entry getNestedEntry(MappedArchive outer)
+  throws FileNotFoundException {
+    MappedArchive.Entry e = outer.getEntry(pathInArchive.get());
+    if (e == null) {
+      throw new FileNotFoundException(
+          "Could not find " + pathInArchive.get() + " in "
+          + Utils.artToString(art));
+    }
+    return e;
+  }
+
+  /**
+   * A hash of the content of an archive class root, computed once and shared
+   * by everything that caches work per archive.
+   * For a nested archive, this is a hash of the nested archive's own bytes
+   * so that it does not change when other entries in the containing archive
+   * do.
+   *
+   * @return absent for build output directories whose content is not fixed.
+   */
+  public Optional<HashCode> contentHash() throws IOException {
+    if (kind == ClassRootKind.BUILD_OUTPUT_DIRECTORY) {
+      return Optional.absent();
+    }
+    HashCode h = contentHash;
+    if (h == null) {
+      // Archives are hashed from the memory that reads of them use instead
+      // of reading, or for a nested archive inflating, them again.
+      MappedArchive mapped = tryOpenArchive();
+      h = mapped != null
+          ? mapped.hash(CONTENT_HASH_FUNCTION)
+          : hashUnmappedContent();
+      contentHash = h;
+    }
+    return Optional.of(h);
+  }
+
+  private HashCode hashUnmappedContent() throws IOException {
+    Hasher hasher = CONTENT_HASH_FUNCTION.newHasher();
+    OutputStream out = Funnels.asOutputStream(hasher);
+    if (kind == ClassRootKind.ZIPFILE) {
+      com.google.common.io.Files.asByteSource(classRoot).copyTo(out);
     } else {
-      StringBuilder childRelPathBuilder = new StringBuilder();
-      childRelPathBuilder.append(relativePath);
-      if (childRelPathBuilder.length() != 0) {
-        childRelPathBuilder.append('/');
-      }
-      int childRelPathPrefixLength = childRelPathBuilder.length();
-
-      for (File child : contents) {
-        childRelPathBuilder.setLength(childRelPathPrefixLength);
-        String childRelPath = childRelPathBuilder.append(child.getName())
-            .toString();
-        if (child.isDirectory()) {
-          find(childRelPath, child, relativePathFilter, c, b);
-        } else if (relativePathFilter.apply(childRelPath)) {
-          InputStream in = new FileInputStream(child);
-          try {
-            T result = c.consume(this, childRelPath, in);
-            b.put(childRelPath, result);
-          } finally {
-            in.close();
+      ZipFile outer = new ZipFile(classRoot);
+      try {
+        ZipEntry nested = outer.getEntry(pathInArchive.get());
+        if (nested == null) {
+          throw new FileNotFoundException(
+              "Could not find " + pathInArchive.get() + " in "
+              + Utils.artToString(art));
+        }
+        InputStream in = outer.getInputStream(nested);
+        try {
+          ByteStreams.copy(in, out);
+        } finally {
+          in.close();
+        }
+      } finally {
+        outer.close();
+      }
+    }
+    return hasher.hash();
+  }
+
+  /**
+   * Closes any archive kept open by reads so that its file is no longer
+   * mapped and its memory can be reclaimed.  Later reads open it again.
+   * <p>
+   * Only call this once no other thread is reading from this root.
+   */
+  public void releaseArchive() {
+    synchronized (archiveLock) {
+      Optional<MappedArchive> opened = openedArchive;
+      openedArchive = null;
+      if (opened != null && opened.isPresent()) {
+        opened.get().close();
+      }
+    }
+  }
+
+  private <T>
+  T readNestedEntry(
+      final String path,
+      final IOConsumer<? super InputStream, ? extends T> c)
+  throws IOException {
+    MappedArchive archive = tryOpenArchive();
+    if (archive != null) {
+      MappedArchive.Entry e = archive.getEntry(path);
+      if (e != null) {
+        MappedArchive.Scratch scratch = MappedArchive.Scratch.acquire();
+        try {
+          int length = archive.read(e, scratch);
+          return c.consume(
+              this, path, new ByteArrayInputStream(scratch.out, 0, length));
+        } finally {
+          scratch.release();
+        }
+      }
+    } else {
+      final List<T> results = Lists.newArrayListWithCapacity(1);
+      streamNestedArchive(
+          Predicates.equalTo(path),
+          new IOConsumer<InputStream, Void>() {
+            @Override
+            public Void consume(ClassRoot root, String relPath, InputStream is)
+            throws IOException {
+              if (results.isEmpty()) {
+                results.add(c.consume(root, relPath, is));
+              }
+              return null;
+            }
+          });
+      if (!results.isEmpty()) {
+        return results.get(0);
+      }
+    }
+    throw new FileNotFoundException(
+        "Could not find " + path + " in " + this);
+  }
+
+  /**
+   * Streams through a {@link ClassRootKind#NESTED_ZIPFILE} root's archive
+   * for when it can't be mapped.
+   */
+  private void streamNestedArchive(
+      Predicate<String> relativePathFilter,
+      IOConsumer<? super InputStream, ?> c)
+  throws IOException {
+    ZipFile outer = new ZipFile(classRoot);
+    try {
+      ZipEntry nested = outer.getEntry(pathInArchive.get());
+      if (nested == null) {
+        throw new FileNotFoundException(
+            "Could not find " + pathInArchive.get() + " in "
+            + Utils.artToString(art));
+      }
+      ZipInputStream zipIn = new ZipInputStream(outer.getInputStream(nested));
+      try {
+        for (ZipEntry zipEntry;
+             (zipEntry = zipIn.getNextEntry()) != null;) {
+          if (!zipEntry.isDirectory()) {
+            String entryName = zipEntry.getName();
+            if (relativePathFilter.apply(entryName)) {
+              c.consume(this, entryName, zipIn);
+            }
           }
+          zipIn.closeEntry();
         }
+      } finally {
+        zipIn.close();
       }
+    } finally {
+      outer.close();
     }
   }
 
+  /**
+   * Walks a {@link ClassRootKind#BUILD_OUTPUT_DIRECTORY} root, giving each
+   * regular file whose relative path matches the filter to the consumer.
+   * This uses the attributes read during the walk instead of asking the file
+   * system about each file again.
+   */
+  private void walk(
+      final Predicate<String> relativePathFilter,
+      final IOConsumer<? super Path, ?> c)
+  throws IOException {
+    Preconditions.checkArgument(classRoot.isDirectory(), classRoot.getPath());
+    final Path rootPath = classRoot.toPath();
+    final boolean isSlashSeparated = "/".equals(
+        rootPath.getFileSystem().getSeparator());
+    Files.walkFileTree(rootPath, new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
+      throws IOException {
+        if (attrs.isRegularFile()) {
+          String relPath = rootPath.relativize(file).toString();
+          if (!isSlashSeparated) {
+            relPath = relPath.replace(
+                rootPath.getFileSystem().getSeparator(), "/");
+          }
+          if (relativePathFilter.apply(relPath)) {
+            c.consume(ClassRoot.this, relPath, file);
+          }
+        }
+        return FileVisitResult.CONTINUE;
+      }
+    });
+  }
+
   @Override
   public String toString() {
     switch (kind) {
       case ZIPFILE:
         return "zip " + this.classRoot + " from " + art.getId();
+      case NESTED_ZIPFILE:
+        return "zip " + this.classRoot + "!/" + pathInArchive.get()
+            + " from " + art.getId();
       case BUILD_OUTPUT_DIRECTORY:
         return "dir " + this.classRoot + " from " + art.getId();
     }
@@ -169,6 +821,13 @@ public final class ClassRoot {
   public enum ClassRootKind {
     ZIPFILE,
     BUILD_OUTPUT_DIRECTORY,
+    /**
+     * An archive inside another like a JAR under a WAR's {@code WEB-INF/lib}
+     * or a Spring Boot executable JAR's {@code BOOT-INF/lib}.
+     * The inner archive is read in place, or inflated in memory, instead of
+     * being extracted to disk.
+     */
+    NESTED_ZIPFILE,
     ;
   }
 
@@ -60,7 +60,8 @@ public final class ConfigurationImport {
       PlexusConfiguration configuration;
       try {
         configuration = loadConfiguration(
-            log, cr.get(), FENCES_CONFIGURATION_XML_RELATIVE_PATH);
+            log, cr.get(), FENCES_CONFIGURATION_XML_RELATIVE_PATH,
+            classRoots.zipFiles);
       } catch (IOException ex) {
         throw new MisconfigurationException(
             "Failed to load " + FENCES_CONFIGURATION_XML_RELATIVE_PATH
@@ -166,12 +167,27 @@ public final class ConfigurationImport {
     private final Map<PartialArtifactKey, ClassRoot> map =
         Maps.newLinkedHashMap();
     private final Iterator<ClassRoot> classRoots;
+    private final Optional<ZipFilePool> zipFiles;
 
     /**
      * @param classRoots the class roots to resolve partial keys against.
      */
     public ClassRoots(Iterator<ClassRoot> classRoots) {
+      this(classRoots, Optional.<ZipFilePool>absent());
+    }
+
+    /**
+     * @param classRoots the class roots to resolve partial keys against.
+     * @param zipFiles used to read configuration files from archives.
+     */
+    public ClassRoots(Iterator<ClassRoot> classRoots, ZipFilePool zipFiles) {
+      this(classRoots, Optional.of(zipFiles));
+    }
+
+    private ClassRoots(
+        Iterator<ClassRoot> classRoots, Optional<ZipFilePool> zipFiles) {
       this.classRoots = classRoots;
+      this.zipFiles = zipFiles;
     }
 
     Optional<ClassRoot> lookup(PartialArtifactKey k) {
@@ -200,7 +216,8 @@ public final class ConfigurationImport {
   static XmlPlexusConfiguration loadConfiguration(
       Log log,
       ClassRoot cr,
-      String path)
+      String path,
+      Optional<ZipFilePool> zipFiles)
   throws MisconfigurationException, IOException {
     log.debug("Loading " + path + " from " + Utils.artToString(cr.art));
     File classRootFile = cr.classRoot;
@@ -209,8 +226,7 @@ public final class ConfigurationImport {
           "Cannot import configuration from unresolved artifact "
           + Utils.artToString(cr.art));
     }
-    Xpp3Dom dom = cr.readRelativePath(
-        path,
+    ClassRoot.IOConsumer<InputStream, Xpp3Dom> parseXml =
         new ClassRoot.IOConsumer<InputStream, Xpp3Dom>() {
           @Override
           public Xpp3Dom consume(
@@ -224,7 +240,10 @@ public final class ConfigurationImport {
               is.close();
             }
           }
-        });
+        };
+    Xpp3Dom dom = zipFiles.isPresent()
+        ? cr.readRelativePath(path, zipFiles.get(), parseXml)
+        : cr.readRelativePath(path, parseXml);
     return new XmlPlexusConfiguration(dom);
   }
 
@@ -0,0 +1,607 @@
+package com.google.security.fences.classpath;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipEntry;
+
+import javax.annotation.Nullable;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hasher;
+
+/**
+ * A read-only view of a ZIP archive that memory-maps the file and reads the
+ * central directory once so that entries can be inflated straight into a
+ * reusable buffer, without going through a chain of input streams that each
+ * buffer and copy.
+ * <p>
+ * Archives that need ZIP64 extensions, or that are too large to map in one
+ * go, are not supported and callers should fall back to {@link ZipEntry}
+ * based reading.
+ * <p>
+ * The mapping is only released when the archive is {@link #close closed}
+ * or, failing that, when the buffer is garbage collected, and some
+ * operating systems will not let a mapped file be replaced or deleted, so
+ * callers that are done with an archive should close it.
+ */
+final class MappedArchive implements Closeable {
+  /** Describes the archive in error messages. */
+  private final String location;
+  private final ByteBuffer buf;
+  private final Map<String, Entry> entries;
+  private final ImmutableList<Entry> entriesInOrder;
+  /** The mapping that this archive owns, if any, to unmap on close. */
+  private final @Nullable MappedByteBuffer mapping;
+  /**
+   * An archive whose buffer this one reads in place, to close when this
+   * one is closed.
+   */
+  private final @Nullable MappedArchive container;
+  private final AtomicBoolean closed = new AtomicBoolean();
+
+  private MappedArchive(
+      String location, ByteBuffer buf, ImmutableList<Entry> entriesInOrder,
+      @Nullable MappedByteBuffer mapping, @Nullable MappedArchive container) {
+    this.location = location;
+    this.buf = buf;
+    this.mapping = mapping;
+    this.container = container;
+    this.entriesInOrder = entriesInOrder;
+    this.entries = Maps.newHashMapWithExpectedSize(entriesInOrder.size());
+    for (Entry e : entriesInOrder) {
+      // Like ZipFile, the first entry with a given name wins.
+      if (!entries.containsKey(e.name)) {
+        entries.put(e.name, e);
+      }
+    }
+  }
+
+  /**
+   * Maps the given archive.
+   *
+   * @return null if the archive is not one this class can read, in which case
+   *     the caller should use {@link java.util.zip.ZipFile} instead.
+   *     A file that is not a ZIP at all is read as an archive with no
+   *     entries.
+   */
+  static @Nullable MappedArchive tryOpen(File file) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    MappedByteBuffer buf;
+    try {
+      FileChannel ch = raf.getChannel();
+      long size = ch.size();
+      if (size > Integer.MAX_VALUE) {
+        return null;
+      }
+      // The mapping stays valid after the channel is closed.
+      buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, size);
+    } finally {
+      raf.close();
+    }
+    MappedArchive archive = tryOpen(file.getPath(), buf, buf, null);
+    if (archive == null) {
+      unmap(buf);
+    }
+    return archive;
+  }
+
+  private static @Nullable MappedArchive tryOpen(
+      String location, ByteBuffer buf, @Nullable MappedByteBuffer mapping,
+      @Nullable MappedArchive container) {
+    buf.order(ByteOrder.LITTLE_ENDIAN);
+    ImmutableList<Entry> entriesInOrder = readCentralDirectory(buf);
+    if (entriesInOrder == null) {
+      return null;
+    }
+    return new MappedArchive(
+        location, buf, entriesInOrder, mapping, container);
+  }
+
+  /**
+   * Releases the mapping, if this archive owns one, and that of any archive
+   * that this one is {@linkplain #readsInPlaceFrom read in place from}.
+   * <p>
+   * The caller must make sure that no other thread is still reading from
+   * this archive since reading from a released mapping can crash the JVM.
+   */
+  @Override
+  public void close() {
+    if (closed.compareAndSet(false, true)) {
+      if (mapping != null) {
+        unmap(mapping);
+      }
+      if (container != null) {
+        container.close();
+      }
+    }
+  }
+
+  /**
+   * True if this archive reads from container's buffer in place so that
+   * closing this archive closes container and container must not be closed
+   * while this archive is in use.
+   */
+  boolean readsInPlaceFrom(MappedArchive other) {
+    return container == other;
+  }
+
+  /**
+   * Releases a mapping without waiting for garbage collection.
+   * There is no public API for this so it uses the same internal hooks that
+   * other libraries do, and does nothing if they are unavailable.
+   */
+  private static void unmap(MappedByteBuffer mapping) {
+    try {
+      Unmapper.INSTANCE.unmap(mapping);
+    } catch (@SuppressWarnings("unused") ReflectiveOperationException ex) {
+      // Left for the garbage collector.
+    } catch (@SuppressWarnings("unused") RuntimeException ex) {
+      // Left for the garbage collector.
+    }
+  }
+
+  private static final class Unmapper {
+    static final Unmapper INSTANCE = new Unmapper();
+
+    /** {@code sun.misc.Unsafe.invokeCleaner} on Java 9 and later. */
+    private final @Nullable Method invokeCleaner;
+    private final @Nullable Object unsafe;
+
+    private Unmapper() {
+      Method m = null;
+      Object u = null;
+      try {
+        Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+        m = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+        Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+        theUnsafe.setAccessible(true);
+        u = theUnsafe.get(null);
+      } catch (@SuppressWarnings("unused") ReflectiveOperationException ex) {
+        m = null;
+        u = null;
+      } catch (@SuppressWarnings("unused") RuntimeException ex) {
+        m = null;
+        u = null;
+      }
+      this.invokeCleaner = m;
+      this.unsafe = u;
+    }
+
+    void unmap(MappedByteBuffer mapping) throws ReflectiveOperationException {
+      if (invokeCleaner != null) {
+        invoke(invokeCleaner, unsafe, mapping);
+      } else {
+        // Java 7 and 8 expose the cleaner on the buffer.
+        Method cleanerMethod = mapping.getClass().getMethod("cleaner");
+        cleanerMethod.setAccessible(true);
+        Object cleaner = invoke(cleanerMethod, mapping);
+        if (cleaner != null) {
+          invoke(cleaner.getClass().getMethod("clean"), cleaner);
+        }
+      }
+    }
+
+    private static Object invoke(Method m, Object receiver, Object... args)
+    throws ReflectiveOperationException {
+      try {
+        return m.invoke(receiver, args);
+      } catch (InvocationTargetException ex) {
+        Throwable cause = ex.getCause();
+        if (cause instanceof RuntimeException) {
+          throw (RuntimeException) cause;
+        }
+        throw ex;
+      }
+    }
+  }
+
+  /**
+   * An archive nested inside this one, like a JAR under a WAR's
+   * {@code WEB-INF/lib}.
+   * A stored entry is read in place, without copying, from this archive's
+   * buffer so the result {@linkplain #readsInPlaceFrom reads in place from}
+   * this archive.  A compressed one is inflated into memory.
+   *
+   * @return null if the nested archive is not one this class can read.
+   */
+  @Nullable MappedArchive tryOpenNested(Entry e) throws IOException {
+    String nestedLocation = location + "!/" + e.name;
+    int dataStart = dataStart(e);
+    switch (e.method) {
+      case ZipEntry.STORED:
+        ByteBuffer dup = buf.duplicate();
+        dup.position(dataStart);
+        dup.limit(dataStart + e.size);
+        return tryOpen(nestedLocation, dup.slice(), null, this);
+      case ZipEntry.DEFLATED:
+        byte[] content = new byte[e.size];
+        // Use a one-off inflater and input buffer instead of a pooled
+        // scratch space which would keep an input buffer the size of the
+        // whole compressed archive.
+        Inflater inflater = new Inflater(true);
+        try {
+          inflate(
+              e, dataStart, content, new byte[e.compressedSize + 1],
+              inflater);
+        } finally {
+          inflater.end();
+        }
+        return tryOpen(nestedLocation, ByteBuffer.wrap(content), null, null);
+      default:
+        throw new AssertionError(e.method);
+    }
+  }
+
+  private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+  private static final int LOCAL_HEADER_SIZE = 30;
+  private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+  private static final int CENTRAL_HEADER_SIZE = 46;
+  private static final int END_SIGNATURE = 0x06054b50;
+  private static final int END_SIZE = 22;
+  private static final int MAX_COMMENT_SIZE = 0xffff;
+  private static final int ZIP64_END_SIGNATURE = 0x06064b50;
+  private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+  private static final int ZIP64_LOCATOR_SIZE = 20;
+  /** General purpose flag bit indicating an encrypted entry. */
+  private static final int FLAG_ENCRYPTED = 1;
+
+  /**
+   * Reads the central directory.
+   * <p>
+   * Like {@link java.util.zip.ZipFile}, this allows for data in front of the
+   * archive, like the launch script of a Spring Boot executable JAR or the
+   * stub of a self-extracting archive, by working out where the archive
+   * starts from the end of central directory record instead of assuming
+   * that it starts at the beginning of the buffer.
+   *
+   * @return null if the layout is not one this class understands.
+   *     Empty if there is no end of central directory record, since, like
+   *     {@link java.util.zip.ZipInputStream}, we treat a file that is not a
+   *     ZIP, like a {@code pom} typed dependency, as having no entries.
+   */
+  private static @Nullable ImmutableList<Entry> readCentralDirectory(
+      ByteBuffer buf) {
+    // Scan backwards for the end of central directory record which precedes
+    // a variable length comment.
+    int limit = buf.limit();
+    int end = -1;
+    for (int i = limit - END_SIZE,
+             lowest = Math.max(0, limit - END_SIZE - MAX_COMMENT_SIZE);
+         i >= lowest; --i) {
+      if (buf.getInt(i) == END_SIGNATURE) {
+        end = i;
+        break;
+      }
+    }
+    if (end < 0) {
+      return ImmutableList.of();
+    }
+    int count = buf.getShort(end + 10) & 0xffff;
+    long cdSize = buf.getInt(end + 12) & 0xffffffffL;
+    long cdOffset = buf.getInt(end + 16) & 0xffffffffL;
+    if (count == 0xffff || cdSize == 0xffffffffL
+        || cdOffset == 0xffffffffL) {
+      // ZIP64
+      return null;
+    }
+    // The central directory ends where the end record starts unless a ZIP64
+    // end record and locator come in between.  Some tools add those even
+    // when no field overflows.
+    int cdEnd = end;
+    int locator = end - ZIP64_LOCATOR_SIZE;
+    if (locator >= 0 && buf.getInt(locator) == ZIP64_LOCATOR_SIGNATURE) {
+      // Like ZipFile, trust the recorded offset of the ZIP64 end record.
+      long zip64End = buf.getLong(locator + 8);
+      if (zip64End < 0 || zip64End + 4 > locator
+          || buf.getInt((int) zip64End) != ZIP64_END_SIGNATURE) {
+        return null;
+      }
+      cdEnd = (int) zip64End;
+    }
+    // Any difference between where the central directory is and where the
+    // end record says it is is the length of data in front of the archive.
+    // Offsets recorded in the archive are relative to its start.
+    long base = cdEnd - cdSize - cdOffset;
+    if (base < 0) {
+      return null;
+    }
+
+    // Walk the whole central directory instead of trusting count since some
+    // tools let it wrap for archives with more than 65535 entries instead of
+    // using ZIP64.
+    ImmutableList.Builder<Entry> b = ImmutableList.builder();
+    int nEntries = 0;
+    int pos = (int) (base + cdOffset);
+    while (pos < cdEnd) {
+      if (pos + CENTRAL_HEADER_SIZE > cdEnd
+          || buf.getInt(pos) != CENTRAL_HEADER_SIGNATURE) {
+        return null;
+      }
+      int flags = buf.getShort(pos + 8) & 0xffff;
+      int method = buf.getShort(pos + 10) & 0xffff;
+      long compressedSize = buf.getInt(pos + 20) & 0xffffffffL;
+      long size = buf.getInt(pos + 24) & 0xffffffffL;
+      int nameLength = buf.getShort(pos + 28) & 0xffff;
+      int extraLength = buf.getShort(pos + 30) & 0xffff;
+      int commentLength = buf.getShort(pos + 32) & 0xffff;
+      long localHeaderOffset =
+          base + (buf.getInt(pos + 42) & 0xffffffffL);
+      int next = pos + CENTRAL_HEADER_SIZE + nameLength + extraLength
+          + commentLength;
+      if (next > cdEnd) {
+        // Truncated entry
+        return null;
+      }
+      if (compressedSize >= Integer.MAX_VALUE || size >= Integer.MAX_VALUE
+          || localHeaderOffset >= end) {
+        // ZIP64, too big to read into an array, or pointing outside the
+        // archive.
+        return null;
+      }
+      if ((flags & FLAG_ENCRYPTED) != 0
+          || (method != ZipEntry.STORED && method != ZipEntry.DEFLATED)) {
+        return null;
+      }
+      String name = decodeName(buf, pos + CENTRAL_HEADER_SIZE, nameLength);
+      b.add(new Entry(
+          name, method, (int) compressedSize, (int) size,
+          (int) localHeaderOffset));
+      ++nEntries;
+      pos = next;
+    }
+    if ((nEntries & 0xffff) != count) {
+      // Let ZipFile make sense of it.
+      return null;
+    }
+    return b.build();
+  }
+
+  private static String decodeName(ByteBuffer buf, int pos, int len) {
+    // ZipInputStream and ZipFile default to UTF-8 too.
+    byte[] bytes = new byte[len];
+    ByteBuffer dup = buf.duplicate();
+    dup.position(pos);
+    dup.get(bytes);
+    return new String(bytes, UTF_8);
+  }
+
+  private static final Charset UTF_8 = Charsets.UTF_8;
+
+  /** Entries in central directory order. */
+  ImmutableList<Entry> entries() {
+    return entriesInOrder;
+  }
+
+  /** The first entry with the given name, if any. */
+  @Nullable Entry getEntry(String name) {
+    return entries.get(name);
+  }
+
+  /**
+   * The content of the given entry.
+   * The returned bytes live in a buffer owned by the given scratch space
+   * and are only valid until the scratch space is next used.
+   *
+   * @return the number of bytes read which are at the start of
+   *     {@link Scratch#out}.
+   */
+  int read(Entry e, Scratch scratch) throws IOException {
+    int dataStart = dataStart(e);
+    byte[] out = scratch.ensureOutCapacity(e.size);
+    switch (e.method) {
+      case ZipEntry.STORED:
+        copy(dataStart, out, e.size);
+        return e.size;
+      case ZipEntry.DEFLATED:
+        inflate(e, dataStart, out, scratch);
+        return e.size;
+      default:
+        throw new AssertionError(e.method);
+    }
+  }
+
+  /** The position in the buffer of the entry's possibly compressed data. */
+  private int dataStart(Entry e) throws IOException {
+    int pos = e.localHeaderOffset;
+    if (pos + LOCAL_HEADER_SIZE > buf.limit()
+        || buf.getInt(pos) != LOCAL_HEADER_SIGNATURE) {
+      throw new IOException(
+          "Malformed local header for " + e.name + " in " + location);
+    }
+    // The local header's name and extra field lengths can differ from those
+    // in the central directory.
+    int nameLength = buf.getShort(pos + 26) & 0xffff;
+    int extraLength = buf.getShort(pos + 28) & 0xffff;
+    int dataStart = pos + LOCAL_HEADER_SIZE + nameLength + extraLength;
+    if (dataStart + e.compressedSize > buf.limit()) {
+      throw new IOException("Truncated entry " + e.name + " in " + location);
+    }
+    return dataStart;
+  }
+
+  private void inflate(Entry e, int dataStart, byte[] out, Scratch scratch)
+  throws IOException {
+    inflate(
+        e, dataStart, out, scratch.ensureInCapacity(e.compressedSize + 1),
+        scratch.inflater);
+  }
+
+  /**
+   * @param in a buffer with room for at least one byte more than the entry's
+   *     compressed size.
+   */
+  private void inflate(
+      Entry e, int dataStart, byte[] out, byte[] in, Inflater inflater)
+  throws IOException {
+    // Inflater only accepts byte[] input on the JDKs we target.
+    // Raw deflate streams need a trailing dummy byte.
+    copy(dataStart, in, e.compressedSize);
+    in[e.compressedSize] = 0;
+    inflater.reset();
+    inflater.setInput(in, 0, e.compressedSize + 1);
+    int n = 0;
+    try {
+      while (n < e.size) {
+        int inflated = inflater.inflate(out, n, e.size - n);
+        if (inflated == 0
+            && (inflater.finished() || inflater.needsInput())) {
+          break;
+        }
+        n += inflated;
+      }
+    } catch (DataFormatException ex) {
+      throw new IOException(
+          "Corrupt entry " + e.name + " in " + location, ex);
+    }
+    if (n != e.size) {
+      throw new IOException(
+          "Entry " + e.name + " in " + location + " inflated to " + n
+          + " bytes, not " + e.size);
+    }
+  }
+
+  /**
+   * A hash of the whole archive, or for a nested archive of its uncompressed
+   * content, read from memory instead of from the file again.
+   */
+  HashCode hash(HashFunction hashFunction) {
+    Hasher hasher = hashFunction.newHasher();
+    ByteBuffer dup = buf.duplicate();
+    dup.clear();
+    if (dup.hasArray()) {
+      hasher.putBytes(dup.array(), dup.arrayOffset(), dup.remaining());
+    } else {
+      byte[] chunk = new byte[Math.min(dup.remaining(), 1 << 16)];
+      while (dup.hasRemaining()) {
+        int n = Math.min(dup.remaining(), chunk.length);
+        dup.get(chunk, 0, n);
+        hasher.putBytes(chunk, 0, n);
+      }
+    }
+    return hasher.hash();
+  }
+
+  private void copy(int pos, byte[] dest, int len) {
+    // Use a duplicate so concurrent readers don't race on the position.
+    ByteBuffer dup = buf.duplicate();
+    dup.position(pos);
+    dup.get(dest, 0, len);
+  }
+
+  /** A central directory entry. */
+  static final class Entry {
+    final String name;
+    final int method;
+    final int compressedSize;
+    final int size;
+    /**
+     * The position of the local header in the buffer which differs from the
+     * offset recorded in the central directory when there is data in front
+     * of the archive.
+     */
+    final int localHeaderOffset;
+
+    Entry(
+        String name, int method, int compressedSize, int size,
+        int localHeaderOffset) {
+      this.name = name;
+      this.method = method;
+      this.compressedSize = compressedSize;
+      this.size = size;
+      this.localHeaderOffset = localHeaderOffset;
+    }
+
+    boolean isDirectory() {
+      return name.endsWith("/");
+    }
+  }
+
+  /**
+   * Buffers and an inflater that are reused from one entry to the next.
+   * Not thread-safe, so each thread reading entries should
+   * {@linkplain #acquire acquire} its own.
+   * <p>
+   * The pool outlives any one build, for example in a Maven daemon, so it
+   * keeps a few scratch spaces per processor, and buffers grown to read an
+   * unusually large entry are dropped instead of being kept for reuse.
+   */
+  static final class Scratch {
+    final Inflater inflater = new Inflater(true);
+    byte[] in = new byte[INITIAL_BUFFER_SIZE];
+    byte[] out = new byte[INITIAL_BUFFER_SIZE];
+
+    private static final int INITIAL_BUFFER_SIZE = 1 << 14;
+    /** Buffers larger than this are not returned to the pool. */
+    static final int MAX_POOLED_BUFFER_SIZE = 1 << 20;
+    static final int MAX_POOLED_COUNT =
+        2 * Runtime.getRuntime().availableProcessors();
+
+    private static final BlockingQueue<Scratch> POOL =
+        new ArrayBlockingQueue<Scratch>(MAX_POOLED_COUNT);
+
+    private Scratch() {
+      // Use acquire.
+    }
+
+    /** Takes a scratch space from the pool, or makes one if none is free. */
+    static Scratch acquire() {
+      Scratch s = POOL.poll();
+      return s != null ? s : new Scratch();
+    }
+
+    /** The number of scratch spaces waiting to be reused. */
+    static int pooledCount() {
+      return POOL.size();
+    }
+
+    /**
+     * Returns this to the pool for reuse by another reader, or frees its
+     * inflater's native memory if the pool is full.
+     */
+    void release() {
+      if (in.length > MAX_POOLED_BUFFER_SIZE) {
+        in = new byte[INITIAL_BUFFER_SIZE];
+      }
+      if (out.length > MAX_POOLED_BUFFER_SIZE) {
+        out = new byte[INITIAL_BUFFER_SIZE];
+      }
+      if (!POOL.offer(this)) {
+        inflater.end();
+      }
+    }
+
+    byte[] ensureInCapacity(int n) {
+      if (in.length < n) {
+        in = new byte[Math.max(n, in.length * 2)];
+      }
+      return in;
+    }
+
+    byte[] ensureOutCapacity(int n) {
+      if (out.length < n) {
+        out = new byte[Math.max(n, out.length * 2)];
+      }
+      return out;
+    }
+  }
+}
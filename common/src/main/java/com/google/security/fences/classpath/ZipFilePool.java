@@ -0,0 +1,144 @@
+package com.google.security.fences.classpath;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.ZipFile;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Open archives shared by random-access reads during one build so that
+ * repeated reads from the same JAR reuse its parsed central directory
+ * instead of opening and closing it each time.
+ * <p>
+ * At most a fixed number of archives are kept open.  When another is
+ * needed, the least recently used one that is not being read from is closed.
+ * <p>
+ * This is safe to use from multiple threads.
+ */
+public final class ZipFilePool implements Closeable {
+  /** A default cap on open archives that is well below common fd limits. */
+  public static final int DEFAULT_MAX_OPEN = 32;
+
+  private final int maxOpen;
+  /** Idle and in-use handles in least to most recently used order. */
+  private final LinkedHashMap<File, Handle> handles =
+      new LinkedHashMap<File, Handle>(16, 0.75f, true);
+  private boolean closed;
+  private int hitCount;
+  private int missCount;
+
+  /**
+   * @param maxOpen the most archives to keep open while idle.
+   */
+  public ZipFilePool(int maxOpen) {
+    Preconditions.checkArgument(maxOpen >= 1, maxOpen);
+    this.maxOpen = maxOpen;
+  }
+
+  /**
+   * An open archive for the given file that must be
+   * {@linkplain #release released} after use.
+   */
+  synchronized Handle acquire(File f) throws IOException {
+    Preconditions.checkState(!closed);
+    Handle h = handles.get(f);
+    if (h != null) {
+      ++hitCount;
+      ++h.useCount;
+    } else {
+      ++missCount;
+      h = new Handle(new ZipFile(f));
+      h.useCount = 1;
+      handles.put(f, h);
+      evictIdleOverCap();
+    }
+    return h;
+  }
+
+  /** Ends a use begun by {@link #acquire}. */
+  synchronized void release(Handle h) throws IOException {
+    Preconditions.checkState(h.useCount > 0);
+    --h.useCount;
+    if (h.useCount == 0 && (h.evicted || closed)) {
+      h.zipFile.close();
+    } else {
+      evictIdleOverCap();
+    }
+  }
+
+  private void evictIdleOverCap() throws IOException {
+    // Archives that are being read from are skipped, so the cap may
+    // briefly be exceeded while there are more concurrent readers than it.
+    int excess = handles.size() - maxOpen;
+    for (Iterator<Handle> it = handles.values().iterator();
+         excess > 0 && it.hasNext();) {
+      Handle h = it.next();
+      if (h.useCount == 0) {
+        it.remove();
+        h.evicted = true;
+        --excess;
+        h.zipFile.close();
+      }
+    }
+  }
+
+  /** The number of acquisitions that reused an open archive. */
+  public synchronized int getHitCount() {
+    return hitCount;
+  }
+
+  /** The number of acquisitions that had to open an archive. */
+  public synchronized int getMissCount() {
+    return missCount;
+  }
+
+  /** The number of archives currently open. */
+  synchronized int getOpenCount() {
+    return handles.size();
+  }
+
+  /**
+   * Closes all idle archives.  Archives still being read from are closed
+   * when released.
+   */
+  @Override
+  public synchronized void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    IOException failure = null;
+    for (Map.Entry<File, Handle> e : handles.entrySet()) {
+      Handle h = e.getValue();
+      if (h.useCount == 0) {
+        try {
+          h.zipFile.close();
+        } catch (IOException ex) {
+          if (failure == null) {
+            failure = ex;
+          }
+        }
+      }
+    }
+    handles.clear();
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  /** An open archive and bookkeeping about its use. */
+  static final class Handle {
+    final ZipFile zipFile;
+    private int useCount;
+    private boolean evicted;
+
+    Handle(ZipFile zipFile) {
+      this.zipFile = zipFile;
+    }
+  }
+}
@@ -5,6 +5,7 @@ import org.objectweb.asm.Opcodes;
 import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableListMultimap;
 import com.google.common.collect.ImmutableSet;
 
 /**
@@ -45,6 +46,14 @@ public final class ClassNode implements Comparable<ClassNode> {
    * Names of declared fields.
    */
   public final ImmutableSet<FieldDetails> fields;
+  /**
+   * Lazily built index of {@link #methods} so that lookups on classes with
+   * many methods, like generated code, need not scan them all.
+   * Computing it more than once on different threads is harmless.
+   */
+  private volatile ImmutableListMultimap<String, MethodDetails> methodsByName;
+  /** Lazily built index of {@link #fields}. */
+  private volatile ImmutableListMultimap<String, FieldDetails> fieldsByName;
 
   ClassNode(
       String name,
@@ -70,8 +79,8 @@ public final class ClassNode implements Comparable<ClassNode> {
    */
   public Optional<MethodDetails> getMethod(
       String methodName, String descriptor) {
-    for (MethodDetails m : methods) {
-      if (m.name.equals(methodName) && m.desc.equals(descriptor)) {
+    for (MethodDetails m : methodsNamed(methodName)) {
+      if (m.desc.equals(descriptor)) {
         return Optional.of(m);
       }
     }
@@ -82,12 +91,38 @@ public final class ClassNode implements Comparable<ClassNode> {
    * The field with the given name if any.
    */
   public Optional<FieldDetails> getField(String fieldName) {
-    for (FieldDetails f : fields) {
-      if (f.name.equals(fieldName)) {
-        return Optional.of(f);
+    ImmutableList<FieldDetails> named = fieldsNamed(fieldName);
+    return named.isEmpty()
+        ? Optional.<FieldDetails>absent()
+        : Optional.of(named.get(0));
+  }
+
+  /** The declared methods with the given name in declaration order. */
+  private ImmutableList<MethodDetails> methodsNamed(String methodName) {
+    ImmutableListMultimap<String, MethodDetails> index = methodsByName;
+    if (index == null) {
+      ImmutableListMultimap.Builder<String, MethodDetails> b =
+          ImmutableListMultimap.builder();
+      for (MethodDetails m : methods) {
+        b.put(m.name, m);
       }
+      methodsByName = index = b.build();
     }
-    return Optional.absent();
+    return index.get(methodName);
+  }
+
+  /** The declared fields with the given name in declaration order. */
+  private ImmutableList<FieldDetails> fieldsNamed(String fieldName) {
+    ImmutableListMultimap<String, FieldDetails> index = fieldsByName;
+    if (index == null) {
+      ImmutableListMultimap.Builder<String, FieldDetails> b =
+          ImmutableListMultimap.builder();
+      for (FieldDetails f : fields) {
+        b.put(f.name, f);
+      }
+      fieldsByName = index = b.build();
+    }
+    return index.get(fieldName);
   }
 
   /**
@@ -101,12 +136,12 @@ public final class ClassNode implements Comparable<ClassNode> {
    *     parameter types in order in parentheses followed by the return type.
    */
   public boolean isMethodVisibleThrough(String methodName, String descriptor) {
-    for (MethodDetails m : methods) {
+    for (MethodDetails m : methodsNamed(methodName)) {
       // Method return-type specialization and generic parameter specialization
       // do not affect descriptors because javac creates two methods --
       // the specialized version and an unspecialized version that calls the
       // former.
-      if (m.name.equals(methodName) && m.desc.equals(descriptor)
+      if (m.desc.equals(descriptor)
           && (m.access & Opcodes.ACC_PRIVATE) == 0) {
         return false;
       }
@@ -120,10 +155,9 @@ public final class ClassNode implements Comparable<ClassNode> {
    * to sub-types.
    */
   public boolean isFieldVisibleThrough(String fieldName) {
-    for (FieldDetails f : fields) {
-      if (f.name.equals(fieldName)
-          // Private fields do not mask fields in super-tpes.
-          && (f.access & Opcodes.ACC_PRIVATE) == 0) {
+    for (FieldDetails f : fieldsNamed(fieldName)) {
+      // Private fields do not mask fields in super-tpes.
+      if ((f.access & Opcodes.ACC_PRIVATE) == 0) {
         return false;
       }
     }
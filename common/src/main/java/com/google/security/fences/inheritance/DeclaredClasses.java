@@ -0,0 +1,107 @@
+package com.google.security.fences.inheritance;
+
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableListMultimap;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ListMultimap;
+
+/**
+ * Storage for the classes declared via an {@link InheritanceGraph.Builder}.
+ * <p>
+ * Implementations are immutable so are safe to use from multiple threads.
+ */
+abstract class DeclaredClasses {
+
+  /** The named node if it was declared. */
+  abstract @Nullable ClassNode get(String name);
+
+  /** True if the named class was declared. */
+  abstract boolean contains(String name);
+
+  /**
+   * The names of declared classes that directly extend or implement the
+   * named type in declaration order.
+   * For {@linkplain #isLazy lazy} classes, only those that have been parsed.
+   */
+  abstract ImmutableList<String> directSubTypes(String name);
+
+  /** The names of declared classes in declaration order. */
+  abstract ImmutableList<String> names();
+
+  /** The declared classes in declaration order. */
+  abstract ImmutableList<ClassNode> nodes();
+
+  /**
+   * True if classes are parsed on first use so are not all known to
+   * {@link #directSubTypes}.
+   */
+  boolean isLazy() {
+    return false;
+  }
+
+  /** Stores nodes as is. */
+  static DeclaredClasses of(Map<String, ClassNode> classNodes) {
+    return new Mapped(classNodes);
+  }
+
+  /**
+   * Stores nodes in {@linkplain PackedDeclaredClasses packed} form and
+   * recreates them on demand.
+   */
+  static DeclaredClasses packed(Iterable<? extends ClassNode> classNodes) {
+    return PackedDeclaredClasses.pack(classNodes);
+  }
+
+  private static final class Mapped extends DeclaredClasses {
+    private final ImmutableMap<String, ClassNode> nodes;
+    /**
+     * Maps the internal names of super-types to the names of the declared
+     * classes that extend or implement them.
+     */
+    private final ImmutableListMultimap<String, String> subTypes;
+
+    Mapped(Map<String, ClassNode> classNodes) {
+      this.nodes = ImmutableMap.copyOf(classNodes);
+      ListMultimap<String, String> subTypeMap = ArrayListMultimap.create();
+      for (ClassNode node : classNodes.values()) {
+        if (node.superType.isPresent()) {
+          subTypeMap.put(node.superType.get(), node.name);
+        }
+        for (String interfaceName : node.interfaces) {
+          subTypeMap.put(interfaceName, node.name);
+        }
+      }
+      this.subTypes = ImmutableListMultimap.copyOf(subTypeMap);
+    }
+
+    @Override
+    @Nullable ClassNode get(String name) {
+      return nodes.get(name);
+    }
+
+    @Override
+    boolean contains(String name) {
+      return nodes.containsKey(name);
+    }
+
+    @Override
+    ImmutableList<String> directSubTypes(String name) {
+      return subTypes.get(name);
+    }
+
+    @Override
+    ImmutableList<String> names() {
+      return nodes.keySet().asList();
+    }
+
+    @Override
+    ImmutableList<ClassNode> nodes() {
+      return nodes.values().asList();
+    }
+  }
+}
@@ -1,39 +1,161 @@
 package com.google.security.fences.inheritance;
 
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.annotation.Nullable;
 
 import com.google.common.base.Function;
 import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Multimap;
 import com.google.common.collect.Maps;
 
 /**
  * A lazy-ish graph of sub/super-type relationships between Java classes.
+ * <p>
+ * This is safe to use from multiple threads.  Lookups of declared classes
+ * and of system classes that have already been fetched do not lock.
  */
 public final class InheritanceGraph {
-  private final Map<String, ClassNode> classNodes;
+  /** Classes declared via the builder in declaration order. */
+  private final DeclaredClasses declared;
+  /** System classes fetched on demand. */
+  private final ConcurrentMap<String, LazyNode> fetchedNodes =
+      new ConcurrentHashMap<String, LazyNode>();
   private final Function<String, ClassNode> fallback;
+  /**
+   * Maps the internal names of super-types to the names of the fetched
+   * system classes that extend or implement them.
+   * Guarded by itself.
+   */
+  private final ListMultimap<String, String> fetchedSubTypes =
+      ArrayListMultimap.create();
+  /**
+   * The fetched system classes in the order in which they were fetched.
+   * Guarded by {@link #fetchedSubTypes}.
+   */
+  private final List<ClassNode> fetchedInOrder = Lists.newArrayList();
 
   InheritanceGraph(
-      Map<String, ClassNode> classNodes,
+      DeclaredClasses declared,
       Function<String, ClassNode> fallback) {
-    this.classNodes = Maps.newLinkedHashMap(classNodes);
+    this.declared = declared;
     this.fallback = fallback;
   }
 
+  private static void addSubTypeEdges(
+      ClassNode node, Multimap<String, String> subTypes) {
+    if (node.superType.isPresent()) {
+      subTypes.put(node.superType.get(), node.name);
+    }
+    for (String interfaceName : node.interfaces) {
+      subTypes.put(interfaceName, node.name);
+    }
+  }
+
   /**
    * Returns the named node.
+   * <p>
+   * System classes are lazily fetched the first time they are requested.
+   * If several threads ask for the same missing class at once, one fetches
+   * it while the others wait.
    *
    * @param name an internal class name like {@code com/example/MyClass}.
+   * @throws UnreadableClassException if the graph is {@linkplain #isLazy lazy}
+   *     and the class's class file can't be read.
    */
   public Optional<ClassNode> named(String name) {
-    ClassNode node = classNodes.get(name);
-    if (node == null && !classNodes.containsKey(name)) {
-      classNodes.put(name, node = fallback.apply(name));
+    ClassNode node = declared.get(name);
+    if (node == null) {
+      LazyNode lazyNode = fetchedNodes.get(name);
+      if (lazyNode == null) {
+        LazyNode newLazyNode = new LazyNode(name);
+        lazyNode = fetchedNodes.putIfAbsent(name, newLazyNode);
+        if (lazyNode == null) {
+          lazyNode = newLazyNode;
+        }
+      }
+      node = lazyNode.get();
     }
     return Optional.fromNullable(node);
   }
 
+  /** A system class that is fetched once on first use. */
+  private final class LazyNode {
+    private final String name;
+    /** Written before {@link #fetched}. */
+    private ClassNode node;
+    private volatile boolean fetched;
+
+    LazyNode(String name) {
+      this.name = name;
+    }
+
+    @SuppressWarnings("synthetic-access")
+    @Nullable ClassNode get() {
+      if (!fetched) {
+        synchronized (this) {
+          if (!fetched) {
+            node = fallback.apply(name);
+            if (node != null) {
+              synchronized (fetchedSubTypes) {
+                addSubTypeEdges(node, fetchedSubTypes);
+                fetchedInOrder.add(node);
+              }
+            }
+            fetched = true;
+          }
+        }
+      }
+      return node;
+    }
+  }
+
+  /**
+   * The names of the classes declared, or lazily fetched, that directly
+   * extend or implement the named type.
+   * <p>
+   * System classes that have not yet been fetched are not included, so
+   * callers that walk down from a type should walk up from any super-type
+   * that is not in {@link #allDeclaredNames}.
+   * For {@linkplain #isLazy lazy} graphs, declared classes that have not yet
+   * been looked up are not included either.
+   *
+   * @param name an internal class name like {@code com/example/MyClass}.
+   */
+  public ImmutableList<String> directSubTypes(String name) {
+    ImmutableList<String> declaredSubTypes = declared.directSubTypes(name);
+    synchronized (fetchedSubTypes) {
+      List<String> fetched = fetchedSubTypes.get(name);
+      if (fetched.isEmpty()) {
+        return declaredSubTypes;
+      }
+      return ImmutableList.<String>builder()
+          .addAll(declaredSubTypes).addAll(fetched).build();
+    }
+  }
+
+  /**
+   * True if declared classes are parsed the first time they are looked up,
+   * so callers should walk up from classes instead of down via
+   * {@link #directSubTypes}.
+   *
+   * @see InheritanceGraphExtractor#lazilyFromClassRoots
+   */
+  public boolean isLazy() {
+    return declared.isLazy();
+  }
+
   /** A builder that uses the pre-baked system class graph. */
   public static Builder builder() {
     return new Builder(SystemInheritanceGraph.LAZY_LOADER);
@@ -45,8 +167,15 @@ public final class InheritanceGraph {
 
   /** A builder for {InheritanceGraph}s. */
   public static final class Builder {
+    /**
+     * The number of declared classes at which {@link #build} packs classes
+     * instead of keeping each {@link ClassNode} around.
+     */
+    public static final int PACKED_THRESHOLD = 1 << 16;
+
     private final Map<String, ClassNode> classNodes = Maps.newLinkedHashMap();
     private final Function<String, ClassNode> lazyLoadSystemClass;
+    /** The last outer class that each inner class was said to be in. */
     private final Map<String, String> outers = Maps.newLinkedHashMap();
 
     Builder(final Function<String, ClassNode> lazyLoadSystemClass) {
@@ -60,22 +189,90 @@ public final class InheritanceGraph {
       return new DeclarationBuilder(name, access);
     }
 
-    /** Single use builder.  State is cleared after call to build(). */
+    /**
+     * Single use builder.  State is cleared after call to build().
+     * <p>
+     * Graphs with at least {@link #PACKED_THRESHOLD} declared classes store
+     * them {@linkplain PackedDeclaredClasses packed} to save memory.
+     * Each class is removed from this builder as it is packed so that the
+     * builder's classes and the packed tables are not both held in full.
+     */
     public InheritanceGraph build() {
-      return new InheritanceGraph(classNodes, lazyLoadSystemClass);
+      return build(classNodes.size() >= PACKED_THRESHOLD);
+    }
+
+    InheritanceGraph build(boolean packed) {
+      outers.clear();
+      DeclaredClasses declared;
+      if (packed) {
+        declared = DeclaredClasses.packed(
+            Iterables.consumingIterable(classNodes.values()));
+      } else {
+        declared = DeclaredClasses.of(classNodes);
+        classNodes.clear();
+      }
+      return new InheritanceGraph(declared, lazyLoadSystemClass);
     }
 
     void classContains(String outer, String inner) {
       ClassNode innerNode = classNodes.get(inner);
       if (innerNode != null) {
-        innerNode = new ClassNode(
-            innerNode.name, innerNode.access, innerNode.superType,
-            Optional.of(outer), innerNode.interfaces, innerNode.methods,
-            innerNode.fields);
-        classNodes.put(inner, innerNode);
-      } else {
+        classNodes.put(inner, withOuter(innerNode, outer));
+      }
+      outers.put(inner, outer);
+    }
+
+    /**
+     * Folds in the declarations from a builder that received the classes
+     * from class roots that come after this builder's on the class path.
+     * <p>
+     * The result is the same as if the later builder's declarations and
+     * {@link #classContains} calls had been made directly on this builder:
+     * a class declared in both is masked by this builder's declaration, but
+     * the later builder's outer class relationships still apply to it.
+     */
+    void merge(Builder later) {
+      Preconditions.checkArgument(later != this);
+      // Inner class relationships apply to earlier declarations, and are
+      // remembered for classes that are declared later.
+      for (Map.Entry<String, String> e : later.outers.entrySet()) {
+        String inner = e.getKey();
+        String outer = e.getValue();
+        ClassNode innerNode = classNodes.get(inner);
+        if (innerNode != null) {
+          classNodes.put(inner, withOuter(innerNode, outer));
+        }
         outers.put(inner, outer);
       }
+      for (ClassNode node : later.classNodes.values()) {
+        if (!classNodes.containsKey(node.name)) {
+          if (!node.outerClass.isPresent()) {
+            // The later builder saw no inner class relationship, but classes
+            // from earlier roots might have.
+            String outer = outers.get(node.name);
+            if (outer != null) {
+              node = withOuter(node, outer);
+            }
+          }
+          classNodes.put(node.name, node);
+        }
+      }
+    }
+
+    /** The declared classes in declaration order. */
+    Collection<ClassNode> declaredNodes() {
+      return Collections.unmodifiableCollection(classNodes.values());
+    }
+
+    /** The last outer class named for each inner class. */
+    Map<String, String> outerClasses() {
+      return Collections.unmodifiableMap(outers);
+    }
+
+    private static ClassNode withOuter(ClassNode node, String outer) {
+      return new ClassNode(
+          node.name, node.access, node.superType, Optional.of(outer),
+          node.interfaces, node.methods, node.fields);
     }
 
     /**
@@ -140,7 +337,7 @@ public final class InheritanceGraph {
         if (node == null) {
           Optional<String> outer = outerClassName;
           if (!outer.isPresent()) {
-            outer = Optional.fromNullable(outersMap.remove(name));
+            outer = Optional.fromNullable(outersMap.get(name));
           }
           node = new ClassNode(
               name, access, superClassName, outer,
@@ -155,13 +352,42 @@ public final class InheritanceGraph {
 
   }
 
-  /** All the names of class declared, or lazily fetched. */
+  /**
+   * All the names of class declared, or lazily fetched.
+   * Declared classes come first in declaration order, followed by fetched
+   * classes in the order in which they were fetched.
+   * Which classes have been fetched, and so their order, depends on the
+   * lookups made so far which may come from several threads.
+   */
   public Iterable<String> allDeclaredNames() {
-    return ImmutableList.copyOf(classNodes.keySet());
+    ImmutableList.Builder<String> b = ImmutableList.builder();
+    b.addAll(declared.names());
+    for (ClassNode node : fetchedNotDeclared()) {
+      b.add(node.name);
+    }
+    return b.build();
   }
 
-  /** All the names of class declared, or lazily fetched. */
+  /**
+   * All the nodes for classes declared, or lazily fetched, in the same order
+   * as {@link #allDeclaredNames}.
+   */
   public Iterable<ClassNode> allDeclaredNodes() {
-    return ImmutableList.copyOf(classNodes.values());
+    ImmutableList.Builder<ClassNode> b = ImmutableList.builder();
+    b.addAll(declared.nodes());
+    b.addAll(fetchedNotDeclared());
+    return b.build();
+  }
+
+  private ImmutableList<ClassNode> fetchedNotDeclared() {
+    ImmutableList.Builder<ClassNode> b = ImmutableList.builder();
+    synchronized (fetchedSubTypes) {
+      for (ClassNode node : fetchedInOrder) {
+        if (!declared.contains(node.name)) {
+          b.add(node);
+        }
+      }
+    }
+    return b.build();
   }
 }
@@ -1,15 +1,35 @@
 package com.google.security.fences.inheritance;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+import javax.annotation.Nullable;
 
 import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.ClassVisitor;
 
+import com.google.common.base.Optional;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.hash.HashCode;
 import com.google.security.fences.classpath.AbstractClassesVisitor;
+import com.google.security.fences.classpath.ClassBytesCache;
+import com.google.security.fences.classpath.ClassFileIndex;
 import com.google.security.fences.classpath.ClassRoot;
+import com.google.security.fences.classpath.ZipFilePool;
 
 /**
  * Walks all classes in class roots to build an inheritance graph.
+ * <p>
+ * When run on a pool, each class root, or chunk of one, is extracted into
+ * its own {@link InheritanceGraph.Builder} and the builders are merged in
+ * class path order so the graph is the same as that built sequentially.
  */
 public final class InheritanceGraphExtractor extends AbstractClassesVisitor {
   private final InheritanceGraph.Builder builder = InheritanceGraph.builder();
@@ -20,6 +40,16 @@ public final class InheritanceGraphExtractor extends AbstractClassesVisitor {
     return new ClassNodeFromClassFileVisitor(builder);
   }
 
+  @Override
+  protected AbstractClassesVisitor forkForClassRoot(ClassRoot cr) {
+    return new InheritanceGraphExtractor();
+  }
+
+  @Override
+  protected void joinClassRoot(ClassRoot cr, AbstractClassesVisitor fork) {
+    builder.merge(((InheritanceGraphExtractor) fork).builder);
+  }
+
   /**
    * An inheritance graph that includes all classes available from the given
    * class roots.
@@ -32,4 +62,184 @@ public final class InheritanceGraphExtractor extends AbstractClassesVisitor {
     return extractor.builder.build();
   }
 
+  /**
+   * Like {@link #fromClassRoots(Iterable)} but leaves class bytes in the
+   * given cache so that a later pass, like a policy check, over the same
+   * class roots can reuse them instead of reading each archive again.
+   */
+  public static InheritanceGraph fromClassRoots(
+      Iterable<? extends ClassRoot> classRoots, ClassBytesCache cache)
+  throws IOException {
+    InheritanceGraphExtractor extractor = new InheritanceGraphExtractor();
+    extractor.retainClassBytes(cache);
+    extractor.visitAll(classRoots);
+    return extractor.builder.build();
+  }
+
+  /**
+   * Like {@link #fromClassRoots(Iterable, ClassBytesCache)} but extracts
+   * class roots on the given pool's workers.
+   */
+  public static InheritanceGraph fromClassRoots(
+      Iterable<? extends ClassRoot> classRoots, ClassBytesCache cache,
+      ForkJoinPool pool)
+  throws IOException {
+    InheritanceGraphExtractor extractor = new InheritanceGraphExtractor();
+    extractor.retainClassBytes(cache);
+    extractor.visitAll(classRoots, pool);
+    return extractor.builder.build();
+  }
+
+  /**
+   * Like {@link #fromClassRoots(Iterable, ClassBytesCache, ForkJoinPool)}
+   * but loads archives' classes from snapshots when possible, and stores
+   * snapshots of archives that had to be extracted.
+   * Class files are not retained for class roots loaded from snapshots.
+   */
+  public static InheritanceGraph fromClassRoots(
+      Iterable<? extends ClassRoot> classRoots, ClassBytesCache cache,
+      ForkJoinPool pool, InheritanceGraphSnapshots snapshots)
+  throws IOException {
+    List<RootExtraction> extractions = Lists.newArrayList();
+    for (ClassRoot root : classRoots) {
+      RootExtraction extraction = new RootExtraction(
+          root, cache, pool, snapshots);
+      extraction.task = pool.submit(extraction);
+      extractions.add(extraction);
+    }
+    // Merge in class path order so that earlier declarations mask later ones.
+    // Each extraction is dropped once merged so that its builder can be
+    // collected instead of staying reachable until all are merged.
+    InheritanceGraph.Builder builder = InheritanceGraph.builder();
+    for (int i = 0, n = extractions.size(); i < n; ++i) {
+      builder.merge(extractions.set(i, null).await());
+    }
+    return builder.build();
+  }
+
+  /**
+   * Like {@link #fromClassRoots(Iterable, ClassBytesCache, ForkJoinPool,
+   * InheritanceGraphSnapshots)} but extracts class roots one after another
+   * on the calling thread.
+   */
+  public static InheritanceGraph fromClassRoots(
+      Iterable<? extends ClassRoot> classRoots, ClassBytesCache cache,
+      InheritanceGraphSnapshots snapshots)
+  throws IOException {
+    InheritanceGraph.Builder builder = InheritanceGraph.builder();
+    for (ClassRoot root : classRoots) {
+      builder.merge(new RootExtraction(root, cache, null, snapshots).call());
+    }
+    return builder.build();
+  }
+
+  /**
+   * An inheritance graph that includes all classes available from the given
+   * class roots but that only reads a class's class file the first time the
+   * class is looked up.
+   * <p>
+   * Only the names of class files are read up front, from archives' central
+   * directories and from directory listings.  Class roots whose class files
+   * cannot be indexed by name are extracted eagerly.
+   * Earlier class roots mask later ones as in {@link #fromClassRoots}.
+   *
+   * @see InheritanceGraph#isLazy
+   */
+  public static InheritanceGraph lazilyFromClassRoots(
+      Iterable<? extends ClassRoot> classRoots)
+  throws IOException {
+    return lazilyFromClassRoots(classRoots, Optional.<ZipFilePool>absent());
+  }
+
+  /**
+   * Like {@link #lazilyFromClassRoots(Iterable)} but reads classes from
+   * archives that can't be mapped via the given pool, which must stay open
+   * as long as the graph is used.
+   */
+  public static InheritanceGraph lazilyFromClassRoots(
+      Iterable<? extends ClassRoot> classRoots, ZipFilePool zipFiles)
+  throws IOException {
+    return lazilyFromClassRoots(classRoots, Optional.of(zipFiles));
+  }
+
+  private static InheritanceGraph lazilyFromClassRoots(
+      Iterable<? extends ClassRoot> classRoots,
+      Optional<ZipFilePool> zipFiles)
+  throws IOException {
+    LazyDeclaredClasses.Builder b = new LazyDeclaredClasses.Builder();
+    for (ClassRoot root : classRoots) {
+      Optional<ClassFileIndex> index = zipFiles.isPresent()
+          ? root.indexClassFiles(zipFiles.get())
+          : root.indexClassFiles();
+      if (index.isPresent()) {
+        b.addIndex(index.get());
+      } else {
+        InheritanceGraphExtractor extractor = new InheritanceGraphExtractor();
+        extractor.visitAll(ImmutableList.of(root));
+        b.addNodes(extractor.builder.declaredNodes());
+      }
+    }
+    return new InheritanceGraph(b.build(), SystemInheritanceGraph.LAZY_LOADER);
+  }
+
+  /**
+   * Loads one class root's classes from a snapshot, or extracts them on a
+   * worker thread, or on the calling thread when there is no pool.
+   */
+  private static final class RootExtraction
+  implements Callable<InheritanceGraph.Builder> {
+    final ClassRoot root;
+    final ClassBytesCache cache;
+    final @Nullable ForkJoinPool pool;
+    final InheritanceGraphSnapshots snapshots;
+    ForkJoinTask<InheritanceGraph.Builder> task;
+
+    RootExtraction(
+        ClassRoot root, ClassBytesCache cache, @Nullable ForkJoinPool pool,
+        InheritanceGraphSnapshots snapshots) {
+      this.root = root;
+      this.cache = cache;
+      this.pool = pool;
+      this.snapshots = snapshots;
+    }
+
+    @Override
+    public InheritanceGraph.Builder call() throws IOException {
+      Optional<HashCode> key = snapshots.key(root);
+      if (key.isPresent()) {
+        Optional<InheritanceGraph.Builder> snapshot = snapshots.load(
+            key.get());
+        if (snapshot.isPresent()) {
+          return snapshot.get();
+        }
+      }
+      InheritanceGraphExtractor extractor = new InheritanceGraphExtractor();
+      extractor.retainClassBytes(cache);
+      if (pool != null) {
+        extractor.visitAll(ImmutableList.of(root), pool);
+      } else {
+        extractor.visitAll(ImmutableList.of(root));
+      }
+      if (key.isPresent()) {
+        snapshots.store(key.get(), extractor.builder);
+      }
+      return extractor.builder;
+    }
+
+    InheritanceGraph.Builder await() throws IOException {
+      try {
+        return task.get();
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        InterruptedIOException iex = new InterruptedIOException(
+            "Interrupted reading " + root.classRoot);
+        iex.initCause(ex);
+        throw iex;
+      } catch (ExecutionException ex) {
+        Throwable cause = ex.getCause();
+        Throwables.propagateIfPossible(cause, IOException.class);
+        throw new IOException("Failed to read " + root.classRoot, cause);
+      }
+    }
+  }
 }
@@ -0,0 +1,344 @@
+package com.google.security.fences.inheritance;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.maven.plugin.logging.Log;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.security.fences.classpath.ClassRoot;
+
+/**
+ * The classes extracted from archives, saved to disk so that later builds
+ * need not parse archives that have not changed.
+ * <p>
+ * Each snapshot holds the {@link InheritanceGraph.Builder} for one archive
+ * and is keyed by the archive's {@link ClassRoot#contentHash content hash},
+ * so one directory may be shared by many builds.  Build output directories
+ * are not snapshotted since they change between builds.
+ * <p>
+ * Snapshots that cannot be read are treated as missing and are replaced
+ * when the archive is next extracted.
+ * <p>
+ * Loading a snapshot touches it, so {@link #prune} can delete snapshots of
+ * archives that no build has used for a while.
+ * <p>
+ * This is safe to use from multiple threads.
+ */
+public final class InheritanceGraphSnapshots {
+  static final HashFunction HASH_FUNCTION = ClassRoot.CONTENT_HASH_FUNCTION;
+  /** Starts each snapshot. */
+  private static final int MAGIC = 0x46474753;  // "FGGS"
+  /** Incremented when the snapshot format changes. */
+  static final int FORMAT_VERSION = 1;
+  private static final String SUFFIX = ".snapshot";
+  private static final String TMP_SUFFIX = ".tmp";
+  /**
+   * How long a snapshot may go unused before {@link #prune} deletes it.
+   * Temporary files left by builds that died while storing are deleted
+   * after this too.
+   */
+  public static final long MAX_UNUSED_MILLIS = TimeUnit.DAYS.toMillis(30);
+  private static final int NONE = -1;
+
+  private final File directory;
+  private final Log log;
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+
+  /**
+   * @param directory the directory that holds snapshots.
+   *     Created when the first snapshot is stored.
+   * @param log receives messages about snapshots that could not be read or
+   *     written.
+   */
+  public InheritanceGraphSnapshots(File directory, Log log) {
+    this.directory = directory;
+    this.log = log;
+  }
+
+  /**
+   * A hash of the content of an archive class root, or absent for class
+   * roots that are not snapshotted.
+   */
+  Optional<HashCode> key(ClassRoot root) throws IOException {
+    return root.contentHash();
+  }
+
+  private File fileFor(HashCode key) {
+    return new File(directory, key + SUFFIX);
+  }
+
+  /** The builder stored under key if any. */
+  Optional<InheritanceGraph.Builder> load(HashCode key) {
+    File file = fileFor(key);
+    try {
+      DataInputStream in = new DataInputStream(new BufferedInputStream(
+          new GZIPInputStream(new FileInputStream(file))));
+      try {
+        Optional<InheritanceGraph.Builder> b = read(in);
+        if (b.isPresent()) {
+          hits.incrementAndGet();
+          // Keep it from being pruned.  Failing to is harmless since a pruned
+          // snapshot is just re-extracted.
+          file.setLastModified(System.currentTimeMillis());
+        } else {
+          misses.incrementAndGet();
+        }
+        return b;
+      } finally {
+        in.close();
+      }
+    } catch (@SuppressWarnings("unused") FileNotFoundException ex) {
+      misses.incrementAndGet();
+      return Optional.absent();
+    } catch (IOException ex) {
+      log.debug("Ignoring unreadable snapshot " + file, ex);
+      misses.incrementAndGet();
+      return Optional.absent();
+    }
+  }
+
+  /**
+   * Stores a builder under key.  Failures are logged since the snapshot is
+   * just an optimization.
+   */
+  void store(HashCode key, InheritanceGraph.Builder b) {
+    File file = fileFor(key);
+    File tmp = null;
+    try {
+      if (!directory.isDirectory() && !directory.mkdirs()
+          && !directory.isDirectory()) {
+        throw new IOException("Failed to create " + directory);
+      }
+      // Write to a temporary file and move it into place so that concurrent
+      // builds sharing the directory never see a partial snapshot.
+      tmp = File.createTempFile(key.toString(), TMP_SUFFIX, directory);
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+          new GZIPOutputStream(new FileOutputStream(tmp))));
+      try {
+        write(b, out);
+      } finally {
+        out.close();
+      }
+      try {
+        java.nio.file.Files.move(
+            tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE);
+      } catch (@SuppressWarnings("unused")
+               AtomicMoveNotSupportedException ex) {
+        // Some file systems, like some network mounts, can't.  A concurrent
+        // reader might then see a partial snapshot, but that just fails to
+        // read and is treated as missing.
+        java.nio.file.Files.move(
+            tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+      }
+      tmp = null;
+    } catch (IOException ex) {
+      log.warn("Failed to write snapshot " + file, ex);
+    } finally {
+      if (tmp != null && tmp.exists() && !tmp.delete()) {
+        log.debug("Failed to delete " + tmp);
+      }
+    }
+  }
+
+  /**
+   * Deletes snapshots that have not been loaded or stored, and temporary
+   * files that have not been written, within maxUnusedMillis.
+   * Failures are logged since snapshots are just an optimization.
+   *
+   * @return the number of files deleted.
+   */
+  public int prune(long maxUnusedMillis) {
+    File[] files = directory.listFiles();
+    if (files == null) {
+      return 0;
+    }
+    long cutoff = System.currentTimeMillis() - maxUnusedMillis;
+    int nDeleted = 0;
+    for (File f : files) {
+      String name = f.getName();
+      if ((name.endsWith(SUFFIX) || name.endsWith(TMP_SUFFIX))
+          && f.isFile() && f.lastModified() < cutoff) {
+        // Another build might be loading it, in which case it is re-extracted
+        // next time.
+        if (f.delete()) {
+          ++nDeleted;
+        } else {
+          log.debug("Failed to delete stale snapshot " + f);
+        }
+      }
+    }
+    return nDeleted;
+  }
+
+  /** The number of class roots loaded from snapshots. */
+  public long getHitCount() {
+    return hits.get();
+  }
+
+  /** The number of snapshotted class roots that had to be extracted. */
+  public long getMissCount() {
+    return misses.get();
+  }
+
+  private static void write(InheritanceGraph.Builder b, DataOutputStream out)
+  throws IOException {
+    // Strings are written once up front and referred to by index.
+    Map<String, Integer> stringIds = Maps.newLinkedHashMap();
+    for (Map.Entry<String, String> e : b.outerClasses().entrySet()) {
+      intern(e.getKey(), stringIds);
+      intern(e.getValue(), stringIds);
+    }
+    for (ClassNode node : b.declaredNodes()) {
+      intern(node.name, stringIds);
+      intern(node.superType, stringIds);
+      intern(node.outerClass, stringIds);
+      for (String interfaceName : node.interfaces) {
+        intern(interfaceName, stringIds);
+      }
+      for (MethodDetails m : node.methods) {
+        intern(m.name, stringIds);
+        intern(m.desc, stringIds);
+      }
+      for (FieldDetails f : node.fields) {
+        intern(f.name, stringIds);
+      }
+    }
+
+    out.writeInt(MAGIC);
+    out.writeInt(FORMAT_VERSION);
+    out.writeInt(stringIds.size());
+    for (String s : stringIds.keySet()) {
+      out.writeUTF(s);
+    }
+    out.writeInt(b.outerClasses().size());
+    for (Map.Entry<String, String> e : b.outerClasses().entrySet()) {
+      out.writeInt(stringIds.get(e.getKey()));
+      out.writeInt(stringIds.get(e.getValue()));
+    }
+    out.writeInt(b.declaredNodes().size());
+    for (ClassNode node : b.declaredNodes()) {
+      out.writeInt(stringIds.get(node.name));
+      out.writeInt(node.access);
+      out.writeInt(intern(node.superType, stringIds));
+      out.writeInt(intern(node.outerClass, stringIds));
+      out.writeInt(node.interfaces.size());
+      for (String interfaceName : node.interfaces) {
+        out.writeInt(stringIds.get(interfaceName));
+      }
+      out.writeInt(node.methods.size());
+      for (MethodDetails m : node.methods) {
+        out.writeInt(stringIds.get(m.name));
+        out.writeInt(stringIds.get(m.desc));
+        out.writeInt(m.access);
+      }
+      out.writeInt(node.fields.size());
+      for (FieldDetails f : node.fields) {
+        out.writeInt(stringIds.get(f.name));
+        out.writeInt(f.access);
+      }
+    }
+  }
+
+  private static int intern(String s, Map<String, Integer> stringIds) {
+    Integer id = stringIds.get(s);
+    if (id == null) {
+      id = stringIds.size();
+      stringIds.put(s, id);
+    }
+    return id;
+  }
+
+  private static int intern(
+      Optional<String> s, Map<String, Integer> stringIds) {
+    return s.isPresent() ? intern(s.get(), stringIds) : NONE;
+  }
+
+  private static Optional<InheritanceGraph.Builder> read(DataInputStream in)
+  throws IOException {
+    if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+      return Optional.absent();
+    }
+    String[] strings = new String[in.readInt()];
+    for (int i = 0; i < strings.length; ++i) {
+      strings[i] = in.readUTF();
+    }
+
+    InheritanceGraph.Builder b = InheritanceGraph.builder();
+    // Outer classes first so that they are remembered for classes that later
+    // class roots declare.
+    for (int i = 0, n = in.readInt(); i < n; ++i) {
+      String inner = string(strings, in.readInt());
+      b.classContains(string(strings, in.readInt()), inner);
+    }
+    for (int i = 0, n = in.readInt(); i < n; ++i) {
+      String name = string(strings, in.readInt());
+      int access = in.readInt();
+      Optional<String> superType = optionalString(strings, in.readInt());
+      Optional<String> outerClass = optionalString(strings, in.readInt());
+      List<String> interfaces = Lists.newArrayList();
+      for (int j = 0, nInterfaces = in.readInt(); j < nInterfaces; ++j) {
+        interfaces.add(string(strings, in.readInt()));
+      }
+      ImmutableList.Builder<MethodDetails> methods = ImmutableList.builder();
+      for (int j = 0, nMethods = in.readInt(); j < nMethods; ++j) {
+        String methodName = string(strings, in.readInt());
+        String desc = string(strings, in.readInt());
+        methods.add(new MethodDetails(methodName, desc, in.readInt()));
+      }
+      ImmutableList.Builder<FieldDetails> fields = ImmutableList.builder();
+      for (int j = 0, nFields = in.readInt(); j < nFields; ++j) {
+        String fieldName = string(strings, in.readInt());
+        fields.add(new FieldDetails(fieldName, in.readInt()));
+      }
+      b.declare(name, access)
+          .superClassName(superType)
+          .outerClassName(outerClass)
+          .interfaceNames(interfaces)
+          .methods(methods.build())
+          .fields(fields.build())
+          .commit();
+    }
+    if (in.read() >= 0) {
+      throw new IOException("Extraneous content in snapshot");
+    }
+    return Optional.of(b);
+  }
+
+  private static String string(String[] strings, int index)
+  throws IOException {
+    if (index < 0 || index >= strings.length) {
+      throw new IOException("Bad string index " + index);
+    }
+    return strings[index];
+  }
+
+  private static Optional<String> optionalString(String[] strings, int index)
+  throws IOException {
+    return index == NONE
+        ? Optional.<String>absent()
+        : Optional.of(string(strings, index));
+  }
+}
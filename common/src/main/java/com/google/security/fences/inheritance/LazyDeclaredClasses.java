@@ -0,0 +1,229 @@
+package com.google.security.fences.inheritance;
+
+import java.io.IOException;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+import org.objectweb.asm.ClassReader;
+
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Maps;
+import com.google.security.fences.classpath.ClassFileIndex;
+
+/**
+ * Declared classes that are parsed from their class files the first time
+ * they are looked up.
+ * <p>
+ * Since a class's sub-types are not known until they have been parsed,
+ * {@link #directSubTypes} only includes classes that have been looked up.
+ */
+final class LazyDeclaredClasses extends DeclaredClasses {
+  /** Where to find each declared class in class path order. */
+  private final ImmutableMap<String, Source> sources;
+  /**
+   * Maps the internal names of super-types to the names of the parsed
+   * classes that extend or implement them.
+   * Guarded by itself.
+   */
+  private final ListMultimap<String, String> parsedSubTypes =
+      ArrayListMultimap.create();
+
+  private LazyDeclaredClasses(Map<String, Source> sources) {
+    this.sources = ImmutableMap.copyOf(sources);
+    for (Source source : this.sources.values()) {
+      if (source.parsed) {
+        addSubTypeEdges(source.node);
+      }
+    }
+  }
+
+  private void addSubTypeEdges(ClassNode node) {
+    synchronized (parsedSubTypes) {
+      if (node.superType.isPresent()) {
+        parsedSubTypes.put(node.superType.get(), node.name);
+      }
+      for (String interfaceName : node.interfaces) {
+        parsedSubTypes.put(interfaceName, node.name);
+      }
+    }
+  }
+
+  @Override
+  boolean isLazy() {
+    return true;
+  }
+
+  @Override
+  @Nullable ClassNode get(String name) {
+    Source source = sources.get(name);
+    return source != null ? source.get(this) : null;
+  }
+
+  @Override
+  boolean contains(String name) {
+    return sources.containsKey(name);
+  }
+
+  @Override
+  ImmutableList<String> directSubTypes(String name) {
+    synchronized (parsedSubTypes) {
+      return ImmutableList.copyOf(parsedSubTypes.get(name));
+    }
+  }
+
+  @Override
+  ImmutableList<String> names() {
+    return sources.keySet().asList();
+  }
+
+  @Override
+  ImmutableList<ClassNode> nodes() {
+    ImmutableList.Builder<ClassNode> b = ImmutableList.builder();
+    for (Source source : sources.values()) {
+      ClassNode node = source.get(this);
+      if (node != null) {
+        b.add(node);
+      }
+    }
+    return b.build();
+  }
+
+  /** A class file that is parsed once on first use. */
+  private static final class Source {
+    private final String name;
+    private final @Nullable ClassFileIndex index;
+    private final @Nullable String relPath;
+    /**
+     * The next class root in class path order with a class file for the same
+     * name, tried when this one does not declare the class.
+     * Only written while building.
+     */
+    private @Nullable Source next;
+    /** Written before {@link #parsed}. */
+    private ClassNode node;
+    private volatile boolean parsed;
+
+    /** A class to parse from the given index. */
+    Source(String name, ClassFileIndex index, String relPath) {
+      this.name = name;
+      this.index = index;
+      this.relPath = relPath;
+    }
+
+    /** A class that has already been parsed. */
+    Source(ClassNode node) {
+      this.name = node.name;
+      this.index = null;
+      this.relPath = null;
+      this.node = node;
+      this.parsed = true;
+    }
+
+    /** Adds a later source for the same name to the end of the chain. */
+    void append(Source later) {
+      Source last = this;
+      while (last.next != null) {
+        last = last.next;
+      }
+      last.next = later;
+    }
+
+    /**
+     * The parsed node from the first class file in the chain that declares
+     * the class.
+     *
+     * @param declared receives sub-type edges when the class is parsed.
+     */
+    @Nullable ClassNode get(LazyDeclaredClasses declared) {
+      for (Source source = this; source != null; source = source.next) {
+        ClassNode parsedNode = source.getOwn(declared);
+        if (parsedNode != null) {
+          return parsedNode;
+        }
+      }
+      return null;
+    }
+
+    /** The parsed node, if this class file declares the class. */
+    private @Nullable ClassNode getOwn(LazyDeclaredClasses declared) {
+      if (!parsed) {
+        synchronized (this) {
+          if (!parsed) {
+            node = parse();
+            if (node != null) {
+              declared.addSubTypeEdges(node);
+            }
+            parsed = true;
+          }
+        }
+      }
+      return node;
+    }
+
+    private @Nullable ClassNode parse() {
+      InheritanceGraph.Builder b = InheritanceGraph.builder();
+      try {
+        ClassReader reader = index.read(relPath);
+        reader.accept(new ClassNodeFromClassFileVisitor(b), 0 /* flags */);
+      } catch (IOException ex) {
+        throw new UnreadableClassException(
+            "Failed to read " + relPath + " from " + index.root, ex);
+      } catch (RuntimeException ex) {
+        // ASM throws unchecked exceptions for malformed class files.
+        throw new UnreadableClassException(
+            "Failed to parse " + relPath + " from " + index.root, ex);
+      }
+      for (ClassNode parsedNode : b.declaredNodes()) {
+        // A class file whose path does not match the class it declares is
+        // not on the class path under that name, so a later class root may
+        // provide it.
+        if (parsedNode.name.equals(name)) {
+          return parsedNode;
+        }
+      }
+      return null;
+    }
+  }
+
+  /**
+   * Collects the classes from class roots in class path order.  Like a class
+   * loader, the first class root that declares a class of a given name wins.
+   */
+  static final class Builder {
+    private final Map<String, Source> sources = Maps.newLinkedHashMap();
+
+    /** Adds the classes in a class root's index to be parsed on demand. */
+    Builder addIndex(ClassFileIndex index) {
+      for (Map.Entry<String, String> e : index.classFiles().entrySet()) {
+        add(new Source(e.getKey(), index, e.getValue()));
+      }
+      return this;
+    }
+
+    /** Adds classes that have already been parsed. */
+    Builder addNodes(Iterable<? extends ClassNode> nodes) {
+      for (ClassNode node : nodes) {
+        add(new Source(node));
+      }
+      return this;
+    }
+
+    private void add(Source source) {
+      Source earlier = sources.get(source.name);
+      if (earlier == null) {
+        sources.put(source.name, source);
+      } else {
+        // Kept in case the earlier class files declare some other class.
+        earlier.append(source);
+      }
+    }
+
+    LazyDeclaredClasses build() {
+      return new LazyDeclaredClasses(sources);
+    }
+  }
+}
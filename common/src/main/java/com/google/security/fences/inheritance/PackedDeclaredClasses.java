@@ -0,0 +1,384 @@
+package com.google.security.fences.inheritance;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import javax.annotation.Nullable;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Declared classes stored in int arrays so that very large class paths do
+ * not need an object graph per class.
+ * <p>
+ * Each distinct string, whether a class name, method name, or descriptor,
+ * is stored once in a pool and referred to by its index.
+ * Classes are numbered in declaration order, and each per-class list, like
+ * interfaces or methods, is stored in compressed sparse row form: the items
+ * for class {@code i} are those from {@code starts[i]} until
+ * {@code starts[i + 1]} in a single array.
+ * <p>
+ * Class names, super-type names, and interface names are "type names" and
+ * are numbered separately so that sub-type edges can be stored in the same
+ * way, and so that a lookup by name need only hash into a table of them.
+ * <p>
+ * {@link ClassNode}s are recreated when asked for.  Nodes for classes that
+ * are asked for more than once are kept, so the classes that checks keep
+ * coming back to, like the super-types of fenced classes, keep one node
+ * each with its member indices, while a single pass over all classes does
+ * not unpack them all.
+ */
+final class PackedDeclaredClasses extends DeclaredClasses {
+  /** Used for absent string indices. */
+  private static final int NONE = -1;
+
+  /** Distinct strings. */
+  private final String[] strings;
+
+  // Indexed by class id.
+  private final int[] classNames;
+  private final int[] classAccess;
+  private final int[] superNames;
+  private final int[] outerNames;
+  /** Indices into {@link #interfaceNames}. */
+  private final int[] interfaceStarts;
+  private final int[] interfaceNames;
+  /** Indices into the method tables below. */
+  private final int[] methodStarts;
+  private final int[] methodNames;
+  private final int[] methodDescs;
+  private final int[] methodAccess;
+  /** Indices into the field tables below. */
+  private final int[] fieldStarts;
+  private final int[] fieldNames;
+  private final int[] fieldAccess;
+
+  // Indexed by type id.
+  private final int[] typeNames;
+  /** The class id of the declared class with the type name or NONE. */
+  private final int[] typeClasses;
+  /** Indices into {@link #subTypeClasses}. */
+  private final int[] subTypeStarts;
+  private final int[] subTypeClasses;
+
+  /**
+   * Open-addressed table of type ids plus one, so that zero marks an empty
+   * slot.  Its length is a power of 2.
+   */
+  private final int[] typeTable;
+
+  /** By class id, nodes for classes that have been asked for repeatedly. */
+  private final AtomicReferenceArray<ClassNode> keptNodes;
+  /** Bits by class id set once a class has been asked for. */
+  private final AtomicIntegerArray askedFor;
+
+  private PackedDeclaredClasses(Packer p) {
+    this.strings = p.strings.toArray(new String[p.strings.size()]);
+    this.classNames = p.classNames.toArray();
+    this.classAccess = p.classAccess.toArray();
+    this.superNames = p.superNames.toArray();
+    this.outerNames = p.outerNames.toArray();
+    this.interfaceStarts = p.interfaceStarts.toArray();
+    this.interfaceNames = p.interfaceNames.toArray();
+    this.methodStarts = p.methodStarts.toArray();
+    this.methodNames = p.methodNames.toArray();
+    this.methodDescs = p.methodDescs.toArray();
+    this.methodAccess = p.methodAccess.toArray();
+    this.fieldStarts = p.fieldStarts.toArray();
+    this.fieldNames = p.fieldNames.toArray();
+    this.fieldAccess = p.fieldAccess.toArray();
+    this.typeNames = p.typeNames.toArray();
+
+    int nClasses = classNames.length;
+    int nTypes = typeNames.length;
+
+    this.keptNodes = new AtomicReferenceArray<ClassNode>(nClasses);
+    this.askedFor = new AtomicIntegerArray((nClasses + 31) >>> 5);
+
+    this.typeClasses = new int[nTypes];
+    Arrays.fill(typeClasses, NONE);
+    for (int classId = 0; classId < nClasses; ++classId) {
+      typeClasses[p.typeIds.get(strings[classNames[classId]])] = classId;
+    }
+
+    // Count sub-types per super-type, then fill in declaration order.
+    this.subTypeStarts = new int[nTypes + 1];
+    this.subTypeClasses = new int[p.subTypeEdges.size() / 2];
+    for (int i = 0, n = p.subTypeEdges.size(); i < n; i += 2) {
+      ++subTypeStarts[p.subTypeEdges.get(i) + 1];
+    }
+    for (int t = 0; t < nTypes; ++t) {
+      subTypeStarts[t + 1] += subTypeStarts[t];
+    }
+    int[] fill = Arrays.copyOf(subTypeStarts, nTypes);
+    for (int i = 0, n = p.subTypeEdges.size(); i < n; i += 2) {
+      subTypeClasses[fill[p.subTypeEdges.get(i)]++] =
+          p.subTypeEdges.get(i + 1);
+    }
+
+    int capacity = Integer.highestOneBit(Math.max(1, nTypes)) << 2;
+    this.typeTable = new int[capacity];
+    int mask = capacity - 1;
+    for (int t = 0; t < nTypes; ++t) {
+      int i = smear(strings[typeNames[t]].hashCode()) & mask;
+      while (typeTable[i] != 0) {
+        i = (i + 1) & mask;
+      }
+      typeTable[i] = t + 1;
+    }
+  }
+
+  /** Packs nodes which must have distinct names. */
+  static PackedDeclaredClasses pack(Iterable<? extends ClassNode> classNodes) {
+    Packer p = new Packer();
+    for (ClassNode node : classNodes) {
+      p.add(node);
+    }
+    return new PackedDeclaredClasses(p);
+  }
+
+  private static int smear(int hashCode) {
+    // Spreads the high bits down since many class names share long prefixes.
+    int h = hashCode * 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+
+  /** The type id for the given name or NONE. */
+  private int typeId(String name) {
+    int mask = typeTable.length - 1;
+    for (int i = smear(name.hashCode()) & mask;; i = (i + 1) & mask) {
+      int t = typeTable[i] - 1;
+      if (t < 0) {
+        return NONE;
+      }
+      if (strings[typeNames[t]].equals(name)) {
+        return t;
+      }
+    }
+  }
+
+  private int classId(String name) {
+    int t = typeId(name);
+    return t == NONE ? NONE : typeClasses[t];
+  }
+
+  private Optional<String> optionalString(int stringIndex) {
+    return stringIndex == NONE
+        ? Optional.<String>absent()
+        : Optional.of(strings[stringIndex]);
+  }
+
+  /** The node for a class that a caller asked for by name. */
+  private ClassNode askedForNode(int classId) {
+    ClassNode node = keptNodes.get(classId);
+    if (node != null) {
+      return node;
+    }
+    node = unpack(classId);
+    if (!markAskedFor(classId)) {
+      // Asked for before, so likely to be asked for again.
+      if (!keptNodes.compareAndSet(classId, null, node)) {
+        node = keptNodes.get(classId);
+      }
+    }
+    return node;
+  }
+
+  /** True if this is the first time the class has been asked for. */
+  private boolean markAskedFor(int classId) {
+    int word = classId >>> 5;
+    int bit = 1 << (classId & 31);
+    while (true) {
+      int bits = askedFor.get(word);
+      if ((bits & bit) != 0) {
+        return false;
+      }
+      if (askedFor.compareAndSet(word, bits, bits | bit)) {
+        return true;
+      }
+    }
+  }
+
+  private ClassNode unpack(int classId) {
+    ImmutableList.Builder<String> interfaces = ImmutableList.builder();
+    for (int i = interfaceStarts[classId], end = interfaceStarts[classId + 1];
+         i < end; ++i) {
+      interfaces.add(strings[interfaceNames[i]]);
+    }
+    ImmutableList.Builder<MethodDetails> methods = ImmutableList.builder();
+    for (int i = methodStarts[classId], end = methodStarts[classId + 1];
+         i < end; ++i) {
+      methods.add(new MethodDetails(
+          strings[methodNames[i]], strings[methodDescs[i]], methodAccess[i]));
+    }
+    ImmutableList.Builder<FieldDetails> fields = ImmutableList.builder();
+    for (int i = fieldStarts[classId], end = fieldStarts[classId + 1];
+         i < end; ++i) {
+      fields.add(new FieldDetails(strings[fieldNames[i]], fieldAccess[i]));
+    }
+    return new ClassNode(
+        strings[classNames[classId]], classAccess[classId],
+        optionalString(superNames[classId]),
+        optionalString(outerNames[classId]),
+        interfaces.build(), methods.build(), fields.build());
+  }
+
+  @Override
+  @Nullable ClassNode get(String name) {
+    int classId = classId(name);
+    return classId == NONE ? null : askedForNode(classId);
+  }
+
+  @Override
+  boolean contains(String name) {
+    return classId(name) != NONE;
+  }
+
+  @Override
+  ImmutableList<String> directSubTypes(String name) {
+    int t = typeId(name);
+    if (t == NONE) {
+      return ImmutableList.of();
+    }
+    ImmutableList.Builder<String> b = ImmutableList.builder();
+    for (int i = subTypeStarts[t], end = subTypeStarts[t + 1]; i < end; ++i) {
+      b.add(strings[classNames[subTypeClasses[i]]]);
+    }
+    return b.build();
+  }
+
+  @Override
+  ImmutableList<String> names() {
+    ImmutableList.Builder<String> b = ImmutableList.builder();
+    for (int classId = 0; classId < classNames.length; ++classId) {
+      b.add(strings[classNames[classId]]);
+    }
+    return b.build();
+  }
+
+  @Override
+  ImmutableList<ClassNode> nodes() {
+    ImmutableList.Builder<ClassNode> b = ImmutableList.builder();
+    for (int classId = 0; classId < classNames.length; ++classId) {
+      // Listing all nodes does not count as asking for each.
+      ClassNode node = keptNodes.get(classId);
+      b.add(node != null ? node : unpack(classId));
+    }
+    return b.build();
+  }
+
+  /** Accumulates tables while nodes are added. */
+  private static final class Packer {
+    final List<String> strings = Lists.newArrayList();
+    final Map<String, Integer> stringIds = Maps.newHashMap();
+    final IntArrayBuilder typeNames = new IntArrayBuilder();
+    final Map<String, Integer> typeIds = Maps.newHashMap();
+    /** Pairs of super-type type id, sub-type class id. */
+    final IntArrayBuilder subTypeEdges = new IntArrayBuilder();
+
+    final IntArrayBuilder classNames = new IntArrayBuilder();
+    final IntArrayBuilder classAccess = new IntArrayBuilder();
+    final IntArrayBuilder superNames = new IntArrayBuilder();
+    final IntArrayBuilder outerNames = new IntArrayBuilder();
+    final IntArrayBuilder interfaceStarts = new IntArrayBuilder(0);
+    final IntArrayBuilder interfaceNames = new IntArrayBuilder();
+    final IntArrayBuilder methodStarts = new IntArrayBuilder(0);
+    final IntArrayBuilder methodNames = new IntArrayBuilder();
+    final IntArrayBuilder methodDescs = new IntArrayBuilder();
+    final IntArrayBuilder methodAccess = new IntArrayBuilder();
+    final IntArrayBuilder fieldStarts = new IntArrayBuilder(0);
+    final IntArrayBuilder fieldNames = new IntArrayBuilder();
+    final IntArrayBuilder fieldAccess = new IntArrayBuilder();
+
+    int string(String s) {
+      Integer id = stringIds.get(s);
+      if (id == null) {
+        id = strings.size();
+        strings.add(s);
+        stringIds.put(s, id);
+      }
+      return id;
+    }
+
+    int string(Optional<String> s) {
+      return s.isPresent() ? string(s.get()) : NONE;
+    }
+
+    int type(String name) {
+      Integer id = typeIds.get(name);
+      if (id == null) {
+        id = typeNames.size();
+        typeNames.add(string(name));
+        typeIds.put(name, id);
+      }
+      return id;
+    }
+
+    void add(ClassNode node) {
+      int classId = classNames.size();
+      type(node.name);
+      classNames.add(string(node.name));
+      classAccess.add(node.access);
+      superNames.add(string(node.superType));
+      outerNames.add(string(node.outerClass));
+      if (node.superType.isPresent()) {
+        subTypeEdges.add(type(node.superType.get()));
+        subTypeEdges.add(classId);
+      }
+      for (String interfaceName : node.interfaces) {
+        interfaceNames.add(string(interfaceName));
+        subTypeEdges.add(type(interfaceName));
+        subTypeEdges.add(classId);
+      }
+      interfaceStarts.add(interfaceNames.size());
+      for (MethodDetails m : node.methods) {
+        methodNames.add(string(m.name));
+        methodDescs.add(string(m.desc));
+        methodAccess.add(m.access);
+      }
+      methodStarts.add(methodNames.size());
+      for (FieldDetails f : node.fields) {
+        fieldNames.add(string(f.name));
+        fieldAccess.add(f.access);
+      }
+      fieldStarts.add(fieldNames.size());
+    }
+  }
+
+  /** A growable array of ints. */
+  private static final class IntArrayBuilder {
+    private int[] items = new int[16];
+    private int size;
+
+    IntArrayBuilder(int... initial) {
+      for (int x : initial) {
+        add(x);
+      }
+    }
+
+    void add(int x) {
+      if (size == items.length) {
+        items = Arrays.copyOf(items, size * 2);
+      }
+      items[size++] = x;
+    }
+
+    int get(int i) {
+      return items[i];
+    }
+
+    int size() {
+      return size;
+    }
+
+    int[] toArray() {
+      return Arrays.copyOf(items, size);
+    }
+  }
+}
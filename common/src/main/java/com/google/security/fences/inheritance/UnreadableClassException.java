@@ -0,0 +1,21 @@
+package com.google.security.fences.inheritance;
+
+/**
+ * Thrown by lookups in a {@linkplain InheritanceGraph#isLazy lazy}
+ * inheritance graph when a class file that was indexed up front can't be
+ * read or parsed when the class is first looked up.
+ * <p>
+ * Lookups can't throw {@link java.io.IOException} so callers that use a lazy
+ * graph should catch this and report it as they would a failure to read
+ * classes eagerly.
+ */
+public final class UnreadableClassException extends RuntimeException {
+  private static final long serialVersionUID = -3580244137727468361L;
+
+  /**
+   * @see java.lang.RuntimeException#RuntimeException(String, Throwable)
+   */
+  public UnreadableClassException(String msg, Throwable cause) {
+    super(msg, cause);
+  }
+}
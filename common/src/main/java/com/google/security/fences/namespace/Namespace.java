@@ -1,5 +1,8 @@
 package com.google.security.fences.namespace;
 
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
 import com.google.common.base.Objects;
 import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
@@ -12,16 +15,47 @@ import com.google.security.fences.util.MisconfigurationException;
 public final class Namespace {
   private final Namespace parent;
   private final String name;
+  // These are computed once since policy lookups walk namespaces for every
+  // class checked.
+  private final Optional<Namespace> parentOpt;
+  private final Optional<String> nameOpt;
+  private final int hashCode;
+  /**
+   * A value memoized by {@link #memoize} in the low 32 bits, and the key it
+   * was memoized with in the high 32 bits.  Zero when there is none.
+   */
+  private volatile long memo;
+
+  /**
+   * Canonical namespaces so that namespaces for classes in the same package
+   * share ancestors.
+   */
+  private static final ConcurrentMap<Namespace, Namespace> INTERNED =
+      new ConcurrentHashMap<Namespace, Namespace>();
+  /** Canonical namespaces by the internal class name they were parsed from. */
+  private static final ConcurrentMap<String, Namespace> BY_INTERNAL_NAME =
+      new ConcurrentHashMap<String, Namespace>();
+  /**
+   * Past this many entries, the tables above stop growing and new namespaces
+   * are equal to, but not the same as, others with the same name.
+   */
+  private static final int MAX_INTERNED = 1 << 18;
 
   private Namespace() {
     this.parent = null;
     this.name = null;
+    this.parentOpt = Optional.absent();
+    this.nameOpt = Optional.absent();
+    this.hashCode = Objects.hashCode(name, parent);
   }
 
   private Namespace(Namespace parent, String name) {
     Preconditions.checkArgument(name.length() != 0 && name.indexOf('.') < 0);
     this.parent = Preconditions.checkNotNull(parent);
     this.name = Preconditions.checkNotNull(name);
+    this.parentOpt = Optional.of(parent);
+    this.nameOpt = Optional.of(name);
+    this.hashCode = Objects.hashCode(name, parent);
   }
 
   /**
@@ -29,12 +63,12 @@ public final class Namespace {
    * Absent for the default package.
    */
   public Optional<Namespace> getParent() {
-    return Optional.fromNullable(parent);
+    return parentOpt;
   }
 
   /** The name of this namespace.  Absent for the default package. */
   public Optional<String> getName() {
-    return Optional.fromNullable(name);
+    return nameOpt;
   }
 
   /**
@@ -49,17 +83,44 @@ public final class Namespace {
    */
   public static final Namespace DEFAULT_PACKAGE = new Namespace();
 
+  /**
+   * The value last {@link #memoize memoized} for this namespace with the
+   * given key, or {@code absent} if some other key, or none, was last used.
+   * <p>
+   * This lets a frozen policy resolve an interned namespace straight to its
+   * row without walking the policy trie for every class checked.
+   *
+   * @param key non-zero.
+   */
+  public int memoized(int key, int absent) {
+    long m = memo;
+    return (int) (m >>> 32) == key ? (int) m : absent;
+  }
+
+  /**
+   * Remembers value for {@link #memoized} lookups with the same key.
+   * Only the latest key's value is kept.
+   *
+   * @param key non-zero.
+   */
+  public void memoize(int key, int value) {
+    Preconditions.checkArgument(key != 0);
+    memo = ((long) key << 32) | (value & 0xffffffffL);
+  }
+
   @Override
   public boolean equals(Object o) {
+    if (this == o) { return true; }
     if (!(o instanceof Namespace)) { return false; }
     Namespace that = (Namespace) o;
-    return Objects.equal(name, that.name)
+    return hashCode == that.hashCode
+        && Objects.equal(name, that.name)
         && Objects.equal(parent, that.parent);
   }
 
   @Override
   public int hashCode() {
-    return Objects.hashCode(name, parent);
+    return hashCode;
   }
 
   @Override
@@ -100,10 +161,40 @@ public final class Namespace {
 
   /**
    * See <a href="https://docs.oracle.com/javase/specs/jvms/se7/html/jvms-4.html#jvms-4.2">JVMS 4.2</a>
+   * <p>
+   * Repeated calls with the same name usually return the same instance
+   * without parsing the name again.
    */
   public static Namespace fromInternalClassName(String icn)
   throws MisconfigurationException {
-    return fromSeparatedString("internal class name", icn, "/");
+    Namespace ns = BY_INTERNAL_NAME.get(icn);
+    if (ns == null) {
+      ns = intern(fromSeparatedString("internal class name", icn, "/"));
+      if (BY_INTERNAL_NAME.size() < MAX_INTERNED) {
+        BY_INTERNAL_NAME.putIfAbsent(icn, ns);
+      }
+    }
+    return ns;
+  }
+
+  /** The canonical namespace equivalent to ns. */
+  private static Namespace intern(Namespace ns) {
+    if (ns.parent == null) {
+      return ns;  // The default package
+    }
+    Namespace canon = INTERNED.get(ns);
+    if (canon == null) {
+      Namespace canonParent = intern(ns.parent);
+      canon = canonParent == ns.parent
+          ? ns : new Namespace(canonParent, ns.name);
+      if (INTERNED.size() < MAX_INTERNED) {
+        Namespace prior = INTERNED.putIfAbsent(canon, canon);
+        if (prior != null) {
+          canon = prior;
+        }
+      }
+    }
+    return canon;
   }
 
   static Namespace fromSeparatedString(
@@ -115,12 +115,12 @@ public final class NamespaceTrie<SIMPLE_VALUE, COMPLEX_VALUE> {
   /** A trie entry. */
   public static final class Entry<T> {
     private Optional<T> value = Optional.absent();
-    private final @Nullable Entry<T> parent;
+    private final Optional<Entry<T>> parent;
     private final SortedMap<String, Entry<T>> children =
         new TreeMap<String, Entry<T>>();
 
     Entry(@Nullable Entry<T> parent) {
-      this.parent = parent;
+      this.parent = Optional.fromNullable(parent);
     }
 
     <X>
@@ -138,7 +138,7 @@ public final class NamespaceTrie<SIMPLE_VALUE, COMPLEX_VALUE> {
 
     /** The parent entry or absent if this entry is the root of the trie. */
     public Optional<Entry<T>> getParent() {
-      return Optional.fromNullable(parent);
+      return parent;
     }
 
     void addTransitively(Namespace ns, ImmutableMap.Builder<Namespace, T> out) {
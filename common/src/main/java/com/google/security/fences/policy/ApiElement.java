@@ -1,6 +1,9 @@
 package com.google.security.fences.policy;
 
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.annotation.Nullable;
 
@@ -20,6 +23,21 @@ public class ApiElement implements Comparable<ApiElement> {
   /** The type of API element. */
   public final ApiElementType type;
   private final int hashCode;
+  /** Cached by {@link #toInternalName}. */
+  private String internalName;
+  /** Cached by {@link #toDottedName}. */
+  private String dottedName;
+  /**
+   * True for the one instance that is canonical for its name and type, so
+   * two different canonical instances are never equal.
+   * A stale false only means {@link #equals} walks parent chains.
+   */
+  private boolean canonical;
+  /**
+   * Canonical field, method, and constructor children by name, indexed by
+   * {@link ApiElementType#ordinal}.  Only canonical classes have these.
+   */
+  private volatile ConcurrentMap<String, ApiElement>[] members;
 
   /** From JVM specification edition 8 chapter 2.9 */
   public static final String CONSTRUCTOR_SPECIAL_METHOD_NAME = "<init>";
@@ -70,16 +88,118 @@ public class ApiElement implements Comparable<ApiElement> {
     throw new AssertionError(type);
   }
 
-  /** Constructs a child of this API element. */
+  /**
+   * A child of this API element.
+   * Fields, methods, and constructors of canonical classes are usually
+   * canonical themselves, so repeated calls return the same instance.
+   */
   public ApiElement child(String childName, ApiElementType childType) {
+    if (canonical) {
+      switch (childType) {
+        case CONSTRUCTOR: case FIELD: case METHOD:
+          return internMember(childName, childType);
+        case CLASS: case PACKAGE:
+          break;
+      }
+    }
     return new ApiElement(Optional.of(this), childName, childType);
   }
 
+  private ApiElement internMember(String childName, ApiElementType childType) {
+    ConcurrentMap<String, ApiElement>[] membersByType = members;
+    if (membersByType == null) {
+      synchronized (this) {
+        membersByType = members;
+        if (membersByType == null) {
+          @SuppressWarnings("unchecked")
+          ConcurrentMap<String, ApiElement>[] newMembers =
+              new ConcurrentMap[ApiElementType.values().length];
+          for (int i = 0; i < newMembers.length; ++i) {
+            newMembers[i] = new ConcurrentHashMap<String, ApiElement>(4);
+          }
+          members = membersByType = newMembers;
+        }
+      }
+    }
+    ConcurrentMap<String, ApiElement> byName =
+        membersByType[childType.ordinal()];
+    ApiElement member = byName.get(childName);
+    if (member == null) {
+      member = new ApiElement(Optional.of(this), childName, childType);
+      if (INTERNED_MEMBER_COUNT.get() < MAX_INTERNED) {
+        ApiElement prior = byName.putIfAbsent(childName, member);
+        if (prior != null) {
+          member = prior;
+        } else {
+          INTERNED_MEMBER_COUNT.incrementAndGet();
+          member.canonical = true;
+        }
+      }
+    }
+    return member;
+  }
+
+  /**
+   * Canonical class and package elements by {@link #toInternalName}.
+   * <p>
+   * Checkers look up the owner of every field and method instruction, so
+   * sharing instances avoids re-splitting the same names and makes most
+   * comparisons between elements reference comparisons.
+   * This stops growing at {@link #MAX_INTERNED} entries after which new
+   * elements are simply not canonical, which only costs equality checks
+   * that walk parent chains.
+   */
+  private static final ConcurrentMap<String, ApiElement> INTERNED =
+      new ConcurrentHashMap<String, ApiElement>();
+  private static final int MAX_INTERNED = 1 << 18;
+  /**
+   * The number of members of canonical classes that are canonical.
+   * This also stops growing at {@link #MAX_INTERNED}.
+   */
+  private static final AtomicInteger INTERNED_MEMBER_COUNT =
+      new AtomicInteger();
+
   /**
    * @param name a JVM internal class name.
    * @return An API element such that name equals {@link #toInternalName}.
+   *     Repeated calls with the same name usually return the same instance.
    */
   public static ApiElement fromInternalClassName(String name) {
+    ApiElement el = INTERNED.get(name);
+    if (el == null || el.type != ApiElementType.CLASS) {
+      el = intern(parseInternalClassName(name));
+    }
+    return el;
+  }
+
+  /**
+   * The canonical instance equivalent to el which must be a class or
+   * package.
+   */
+  private static ApiElement intern(ApiElement el) {
+    if (!el.parent.isPresent()) {
+      return el;  // The default package
+    }
+    String key = el.toInternalName();
+    ApiElement canon = INTERNED.get(key);
+    if (canon == null) {
+      ApiElement parent = el.parent.get();
+      ApiElement canonParent = intern(parent);
+      canon = canonParent == parent ? el : canonParent.child(el.name, el.type);
+      canon.internalName = key;
+      if (INTERNED.size() < MAX_INTERNED) {
+        ApiElement prior = INTERNED.putIfAbsent(key, canon);
+        if (prior != null) {
+          canon = prior;
+        } else {
+          canon.canonical = true;
+        }
+      }
+    }
+    return canon;
+  }
+
+  private static ApiElement parseInternalClassName(String name) {
     try {
       ApiElement apiElement = ApiElement.DEFAULT_PACKAGE;
       String[] nameParts = name.split("/");
@@ -136,10 +256,16 @@ public class ApiElement implements Comparable<ApiElement> {
 
   @Override
   public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
     if (!(o instanceof ApiElement)) {
       return false;
     }
     ApiElement that = (ApiElement) o;
+    if (canonical && that.canonical) {
+      return false;
+    }
     return type == that.type && name.equals(that.name)
         && parent.equals(that.parent);
   }
@@ -181,7 +307,11 @@ public class ApiElement implements Comparable<ApiElement> {
    * recognizable to Java devs familiar with fully qualified Java names.
    */
   public String toDottedName() {
-    return toName(false, null).toString();
+    String name = dottedName;
+    if (name == null) {
+      dottedName = name = toName(false, null).toString();
+    }
+    return name;
   }
 
   /**
@@ -192,7 +322,11 @@ public class ApiElement implements Comparable<ApiElement> {
    * directory name for the package under a class root.
    */
   public String toInternalName() {
-    return toName(true, null).toString();
+    String name = internalName;
+    if (name == null) {
+      internalName = name = toName(true, null).toString();
+    }
+    return name;
   }
 
   private CharSequence toName(boolean internal, @Nullable StringBuilder out) {
@@ -0,0 +1,88 @@
+package com.google.security.fences.policy;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.maven.plugin.logging.Log;
+
+import com.google.common.collect.ImmutableList;
+import com.google.security.fences.inheritance.InheritanceGraph;
+
+/**
+ * {@link PolicyApplicationOrder}s materialized once per used API element and
+ * descriptor since the order does not depend on which namespace the use
+ * appears in.
+ * <p>
+ * Each order is kept as an {@link ImmutableList} which is a single array of
+ * elements behind one header, so it is about as compact as a bare array but
+ * can be handed to callers without a defensive copy.  The elements are
+ * canonical when their classes are, since
+ * {@link ApiElement#fromInternalClassName} and {@link ApiElement#child}
+ * intern them, so orders that mention the same super-type share its
+ * elements.
+ * <p>
+ * This is safe to use from multiple threads.
+ */
+public final class ApplicationOrderCache {
+  /**
+   * Bounds the number of orders kept.  Orders are computed, but not cached,
+   * once this many are.
+   */
+  static final int MAX_CACHED = 1 << 16;
+
+  private final InheritanceGraph inheritanceGraph;
+  /**
+   * Keyed by used element, then by descriptor, so that lookups of canonical
+   * elements neither allocate keys nor walk parent chains.
+   */
+  private final ConcurrentMap<ApiElement,
+                              ConcurrentMap<String, ImmutableList<ApiElement>>>
+      orders = new ConcurrentHashMap<
+          ApiElement, ConcurrentMap<String, ImmutableList<ApiElement>>>();
+  private final AtomicInteger cachedCount = new AtomicInteger();
+
+  /**
+   * @param inheritanceGraph used to resolve super-types, interfaces, and
+   *     method and field declarations.
+   */
+  public ApplicationOrderCache(InheritanceGraph inheritanceGraph) {
+    this.inheritanceGraph = inheritanceGraph;
+  }
+
+  /**
+   * The elements of {@code new PolicyApplicationOrder(used, descriptor, ...)}
+   * in order.
+   *
+   * @param log receives debug messages when the order is computed.
+   */
+  public ImmutableList<ApiElement> applicationOrder(
+      ApiElement used, String descriptor, Log log) {
+    ConcurrentMap<String, ImmutableList<ApiElement>> byDescriptor =
+        orders.get(used);
+    ImmutableList<ApiElement> order =
+        byDescriptor != null ? byDescriptor.get(descriptor) : null;
+    if (order == null) {
+      order = ImmutableList.copyOf(
+          new PolicyApplicationOrder(used, descriptor, inheritanceGraph, log));
+      if (cachedCount.get() < MAX_CACHED) {
+        if (byDescriptor == null) {
+          ConcurrentMap<String, ImmutableList<ApiElement>> newByDescriptor =
+              new ConcurrentHashMap<String, ImmutableList<ApiElement>>(4);
+          byDescriptor = orders.putIfAbsent(used, newByDescriptor);
+          if (byDescriptor == null) {
+            byDescriptor = newByDescriptor;
+          }
+        }
+        ImmutableList<ApiElement> prior =
+            byDescriptor.putIfAbsent(descriptor, order);
+        if (prior != null) {
+          order = prior;
+        } else {
+          cachedCount.incrementAndGet();
+        }
+      }
+    }
+    return order;
+  }
+}
@@ -0,0 +1,217 @@
+package com.google.security.fences.policy;
+
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nullable;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.security.fences.config.HumanReadableText;
+import com.google.security.fences.namespace.Namespace;
+import com.google.security.fences.namespace.NamespaceTrie;
+
+/**
+ * A frozen form of a {@link Policy} that answers access control questions
+ * via array reads instead of walking the policy trie and API element
+ * ancestors.
+ * <p>
+ * Each policy trie entry with a value is a row and each API element that a
+ * decision mentions is a column.  A namespace maps to the row for the
+ * deepest entry with a value that applies to it since
+ * {@link Policy#forNamespace} only looks at that entry and its ancestors.
+ * An API element maps to the column for its deepest ancestor-or-self that is
+ * a column since
+ * {@link Policy.NamespacePolicy#accessPolicyForApiElement} skips over
+ * ancestors that no decision mentions.
+ * <p>
+ * Each cell holds the combined decision of the row's applicable
+ * namespace policies, from most-specific to least, for the column.
+ */
+public final class CompiledPolicy {
+  /** The column of API elements that no decision applies to. */
+  public static final int NO_COLUMN = -1;
+
+  /** The policy compiled. */
+  public final Policy policy;
+  /**
+   * Distinguishes rows this memoized on namespaces from other compiled
+   * policies'.
+   */
+  private final int memoKey;
+  private static final AtomicInteger NEXT_MEMO_KEY = new AtomicInteger();
+  /**
+   * The row for each namespace that has its own policy trie entry with a
+   * value.  Other namespaces share their nearest such ancestor's row.
+   */
+  private final ImmutableMap<Namespace, Integer> rowIds;
+  private final ImmutableMap<ApiElement, Integer> columnIds;
+  private final int rowCount;
+  private final int columnCount;
+  /** Indexed by row * columnCount + column.  Null where no decision. */
+  private final AccessLevel[] accessLevels;
+  /** Indexed like {@link #accessLevels}. */
+  private final HumanReadableText[] rationales;
+
+  private CompiledPolicy(Policy policy) {
+    this.policy = policy;
+    int key;
+    do {
+      key = NEXT_MEMO_KEY.incrementAndGet();
+    } while (key == 0);
+    this.memoKey = key;
+    NamespaceTrie<Policy.AccessControlDecision, Policy.NamespacePolicy> trie =
+        policy.getTrie();
+
+    // Rows
+    List<NamespaceTrie.Entry<Policy.NamespacePolicy>> rows =
+        Lists.newArrayList();
+    Map<NamespaceTrie.Entry<Policy.NamespacePolicy>, Integer> rowIdMap =
+        new IdentityHashMap<NamespaceTrie.Entry<Policy.NamespacePolicy>,
+                            Integer>();
+    NamespaceTrie.Entry<Policy.NamespacePolicy> root =
+        trie.get(Namespace.DEFAULT_PACKAGE);
+    Map<Namespace, Integer> rowIdsByNamespace = Maps.newLinkedHashMap();
+    rowIdMap.put(root, rows.size());
+    rowIdsByNamespace.put(Namespace.DEFAULT_PACKAGE, rows.size());
+    rows.add(root);
+    for (Namespace ns : trie.overlapping(Namespace.DEFAULT_PACKAGE).keySet()) {
+      NamespaceTrie.Entry<Policy.NamespacePolicy> e = trie.get(ns);
+      Integer rowId = rowIdMap.get(e);
+      if (rowId == null) {
+        rowId = rows.size();
+        rowIdMap.put(e, rowId);
+        rows.add(e);
+      }
+      rowIdsByNamespace.put(ns, rowId);
+    }
+    this.rowIds = ImmutableMap.copyOf(rowIdsByNamespace);
+
+    // Columns
+    Map<ApiElement, Integer> columnIdMap = Maps.newLinkedHashMap();
+    for (NamespaceTrie.Entry<Policy.NamespacePolicy> e : rows) {
+      for (Policy.NamespacePolicy nsp : e.getValue().asSet()) {
+        for (ApiElement el : nsp.apiElements()) {
+          if (!columnIdMap.containsKey(el)) {
+            columnIdMap.put(el, columnIdMap.size());
+          }
+        }
+      }
+    }
+    this.columnIds = ImmutableMap.copyOf(columnIdMap);
+    this.columnCount = columnIds.size();
+
+    // Cells
+    this.rowCount = rows.size();
+    this.accessLevels = new AccessLevel[rowCount * columnCount];
+    this.rationales = new HumanReadableText[accessLevels.length];
+    for (int row = 0; row < rowCount; ++row) {
+      ImmutableList<Policy.NamespacePolicy> applicable =
+          policy.applicablePolicies(rows.get(row));
+      for (Map.Entry<ApiElement, Integer> column : columnIds.entrySet()) {
+        int cell = row * columnCount + column.getValue();
+        AccessLevel level = null;
+        HumanReadableText rationale = HumanReadableText.EMPTY;
+        for (Policy.NamespacePolicy nsp : applicable) {
+          Optional<Policy.AccessControlDecision> d =
+              nsp.accessPolicyForApiElement(column.getKey());
+          if (d.isPresent()) {
+            Policy.AccessControlDecision acd = d.get();
+            if (level == null) {
+              level = acd.accessLevel;
+            }
+            if (acd.accessLevel == level && !acd.rationale.isEmpty()) {
+              rationale = acd.rationale;
+              break;
+            }
+          }
+        }
+        accessLevels[cell] = level;
+        rationales[cell] = rationale;
+      }
+    }
+  }
+
+  /** Compiles a policy that must not be changed afterwards. */
+  public static CompiledPolicy compile(Policy policy) {
+    return new CompiledPolicy(policy);
+  }
+
+  /**
+   * The row whose decisions apply to code in ns.
+   * <p>
+   * This is the row of the deepest entry with a value that applies to ns,
+   * as by {@link Policy#deepestEntryWithValue}, but found by walking up from
+   * ns instead of down the trie.  Rows are memoized on namespaces, and
+   * namespaces from class names are interned, so a class usually resolves
+   * in one step via its package.
+   */
+  public int rowId(Namespace ns) {
+    int rowId = ns.memoized(memoKey, -1);
+    if (rowId < 0) {
+      Integer ownRowId = rowIds.get(ns);
+      if (ownRowId != null) {
+        rowId = ownRowId;
+      } else {
+        // The default package is always a row, so ns has a parent.
+        rowId = rowId(ns.getParent().get());
+      }
+      ns.memoize(memoKey, rowId);
+    }
+    return rowId;
+  }
+
+  /**
+   * The column whose decisions apply to el, or {@link #NO_COLUMN} if no
+   * decision applies to el or any API element that contains it.
+   */
+  public int columnId(ApiElement el) {
+    for (Optional<ApiElement> e = Optional.of(el);
+         e.isPresent(); e = e.get().parent) {
+      Integer columnId = columnIds.get(e.get());
+      if (columnId != null) {
+        return columnId;
+      }
+    }
+    return NO_COLUMN;
+  }
+
+  /**
+   * The access level that the most-specific applicable policy grants, if
+   * any.
+   *
+   * @return null if no policy for the row makes a decision about the column.
+   */
+  public @Nullable AccessLevel accessLevel(int rowId, int columnId) {
+    if (columnId == NO_COLUMN) {
+      return null;
+    }
+    return accessLevels[rowId * columnCount + columnId];
+  }
+
+  /**
+   * The rationale body from the most-specific applicable policy that has one
+   * and that agrees with {@link #accessLevel}.
+   */
+  public HumanReadableText rationale(int rowId, int columnId) {
+    if (columnId == NO_COLUMN) {
+      return HumanReadableText.EMPTY;
+    }
+    return rationales[rowId * columnCount + columnId];
+  }
+
+  /** The number of rows. */
+  public int getRowCount() {
+    return rowCount;
+  }
+
+  /** The number of columns. */
+  public int getColumnCount() {
+    return columnCount;
+  }
+}
@@ -0,0 +1,222 @@
+package com.google.security.fences.policy;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Sets;
+import com.google.security.fences.inheritance.ClassNode;
+import com.google.security.fences.inheritance.InheritanceGraph;
+
+/**
+ * Answers, by internal class name, whether a policy might deny some namespace
+ * access to a member of a class.
+ * <p>
+ * Most owners of fields and methods used in a class are not fenced at all,
+ * so this lets a checker rule them out without building
+ * {@link ApiElement}s or a {@link PolicyApplicationOrder}.
+ * <p>
+ * A class might be fenced if a fence that denies access applies to it, to a
+ * class or package that contains it, or to any of its super-types since
+ * policies on super-types apply to sub-types.
+ * This errs on the side of true, so a false result means that no use of a
+ * member of the class can be a violation.
+ * <p>
+ * This is safe to use from multiple threads.
+ */
+public final class FencedClassIndex {
+  private final InheritanceGraph inheritanceGraph;
+  /**
+   * True if access is denied to something in the default package itself,
+   * so every class is in scope.
+   */
+  private final boolean denyAll;
+  /**
+   * Internal names of denied scopes: {@code com/example/} for packages and
+   * {@code com/example/Outer$Inner} for classes.
+   */
+  private final ImmutableSet<String> deniedScopeNames;
+  /**
+   * Bits set for the {@link String#hashCode} of each denied scope name so
+   * that most prefixes of a class name can be ruled out without allocating a
+   * substring to look up in {@link #deniedScopeNames}.
+   */
+  private final long[] deniedScopeBloom;
+  /**
+   * Maps internal class names to whether they might be fenced.
+   * Filled eagerly for classes declared in the inheritance graph and lazily
+   * for others like system classes.
+   */
+  private final ConcurrentMap<String, Boolean> mightBeFenced =
+      new ConcurrentHashMap<String, Boolean>();
+
+  private FencedClassIndex(Policy policy, InheritanceGraph inheritanceGraph) {
+    this.inheritanceGraph = inheritanceGraph;
+    boolean scopesDefaultPackage = false;
+    ImmutableSet.Builder<String> scopeNames = ImmutableSet.builder();
+    for (ApiElement scope : policy.getDeniedScopes()) {
+      if (ApiElement.DEFAULT_PACKAGE.equals(scope)) {
+        scopesDefaultPackage = true;
+      } else {
+        scopeNames.add(scope.toInternalName());
+      }
+    }
+    this.denyAll = scopesDefaultPackage;
+    this.deniedScopeNames = scopeNames.build();
+    // At least 64 bits per name keeps false positives rare.
+    this.deniedScopeBloom = new long[
+        Math.max(1, Integer.highestOneBit(deniedScopeNames.size()) * 2)];
+    for (String name : deniedScopeNames) {
+      int h = name.hashCode();
+      deniedScopeBloom[bloomWord(h)] |= bloomBit(h);
+    }
+  }
+
+  /**
+   * An index of the classes whose members policy might fence, precomputed
+   * for all classes declared in the inheritance graph.
+   * <p>
+   * Instead of walking up from each class to see whether any super-type is
+   * fenced, this starts from the classes that are in a denied scope and
+   * walks down to their sub-types, so classes far from any fence are
+   * never walked.
+   * <p>
+   * Nothing is precomputed for {@linkplain InheritanceGraph#isLazy lazy}
+   * graphs since that would parse every declared class.  Classes are walked
+   * up from as they are asked about instead.
+   */
+  public static FencedClassIndex build(
+      Policy policy, InheritanceGraph inheritanceGraph) {
+    FencedClassIndex index = new FencedClassIndex(policy, inheritanceGraph);
+    if (inheritanceGraph.isLazy()) {
+      return index;
+    }
+    ImmutableList<String> declared = ImmutableList.copyOf(
+        inheritanceGraph.allDeclaredNames());
+    Set<String> declaredSet = ImmutableSet.copyOf(declared);
+
+    Deque<String> fenced = new ArrayDeque<String>();
+    for (String name : declared) {
+      if (index.isInDeniedScope(name)) {
+        fenced.add(name);
+      }
+      Optional<ClassNode> node = inheritanceGraph.named(name);
+      if (node.isPresent()) {
+        // System classes are not declared so there are no edges down from
+        // them.  Walk up from them instead.
+        ClassNode cn = node.get();
+        for (String superName
+             : Iterables.concat(cn.superType.asSet(), cn.interfaces)) {
+          if (!declaredSet.contains(superName)
+              && index.mightBeFenced(superName)) {
+            fenced.add(superName);
+          }
+        }
+      }
+    }
+
+    Set<String> reached = Sets.newHashSet();
+    while (!fenced.isEmpty()) {
+      String name = fenced.poll();
+      if (reached.add(name)) {
+        fenced.addAll(inheritanceGraph.directSubTypes(name));
+      }
+    }
+
+    for (String name : reached) {
+      index.mightBeFenced.put(name, true);
+    }
+    for (String name : declared) {
+      index.mightBeFenced.putIfAbsent(name, false);
+    }
+    return index;
+  }
+
+  /**
+   * False if no use of a member of the named class can be denied.
+   *
+   * @param className an internal class name like
+   *     {@code com/example/Outer$Inner} as appears in field and method
+   *     instructions.
+   */
+  public boolean mightBeFenced(String className) {
+    Boolean result = mightBeFenced.get(className);
+    if (result == null) {
+      result = mightBeFenced(className, Sets.<String>newHashSet());
+    }
+    return result;
+  }
+
+  private boolean mightBeFenced(String className, Set<String> inProgress) {
+    Boolean memo = mightBeFenced.get(className);
+    if (memo != null) {
+      return memo;
+    }
+    if (!inProgress.add(className)) {
+      // Malformed class files might make the graph cyclic.
+      return false;
+    }
+    boolean result = isInDeniedScope(className);
+    if (!result) {
+      Optional<ClassNode> node = inheritanceGraph.named(className);
+      if (node.isPresent()) {
+        ClassNode cn = node.get();
+        result = cn.superType.isPresent()
+            && mightBeFenced(cn.superType.get(), inProgress);
+        for (String interfaceName : cn.interfaces) {
+          if (result) { break; }
+          result = mightBeFenced(interfaceName, inProgress);
+        }
+      }
+    }
+    mightBeFenced.putIfAbsent(className, result);
+    return result;
+  }
+
+  /**
+   * True if the named class, a class that contains it, or a package that
+   * contains it is the scope of a decision that denies access.
+   * This is the string equivalent of
+   * {@link Policy#mightDenyAccessWithin(ApiElement)}.
+   */
+  private boolean isInDeniedScope(String className) {
+    if (denyAll) {
+      return true;
+    }
+    // Compute String.hashCode of each prefix that ends a package, or that
+    // might end an outer class, as we go.
+    int h = 0;
+    for (int i = 0, n = className.length(); i < n; ++i) {
+      char ch = className.charAt(i);
+      if (ch == '$' && isDeniedScopeName(className, i, h)) {
+        return true;
+      }
+      h = 31 * h + ch;
+      if (ch == '/' && isDeniedScopeName(className, i + 1, h)) {
+        return true;
+      }
+    }
+    return isDeniedScopeName(className, className.length(), h);
+  }
+
+  private boolean isDeniedScopeName(String className, int end, int hash) {
+    if ((deniedScopeBloom[bloomWord(hash)] & bloomBit(hash)) == 0) {
+      return false;
+    }
+    return deniedScopeNames.contains(className.substring(0, end));
+  }
+
+  private int bloomWord(int hash) {
+    return (hash >>> 6) & (deniedScopeBloom.length - 1);
+  }
+
+  private static long bloomBit(int hash) {
+    return 1L << (hash & 63);
+  }
+}
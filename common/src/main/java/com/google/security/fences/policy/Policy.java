@@ -1,6 +1,9 @@
 package com.google.security.fences.policy;
 
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.Map;
+import java.util.Set;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Function;
@@ -10,6 +13,7 @@ import com.google.common.base.Preconditions;
 import com.google.common.base.Supplier;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Maps;
 import com.google.security.fences.config.Fence;
 import com.google.security.fences.config.FenceVisitor;
@@ -35,6 +39,39 @@ public final class Policy {
    * accessing that API element.
    */
   private final Map<ApiElement, HumanReadableText> addenda = Maps.newHashMap();
+  /**
+   * Maps each key in {@link #addenda} to its addenda and those of the API
+   * elements that contain it so that {@link #getAddenda} need not
+   * concatenate.
+   */
+  private ImmutableMap<ApiElement, HumanReadableText> combinedAddenda =
+      ImmutableMap.of();
+  /**
+   * The classes and packages that contain, or are, API elements to which some
+   * namespace is denied access.
+   */
+  private ImmutableSet<ApiElement> deniedScopes = ImmutableSet.of();
+  /**
+   * Maps the root and each trie entry with a value to the policies at it and
+   * its ancestors from most-specific to least.
+   * Computed once the trie is complete so that lookups need not walk the
+   * trie or build lists.
+   */
+  private Map<NamespaceTrie.Entry<NamespacePolicy>,
+              ImmutableList<NamespacePolicy>> applicableByEntry =
+      Collections.emptyMap();
+  /**
+   * The root and trie entries with a value whose applicable policies deny
+   * access to something.
+   */
+  private Set<NamespaceTrie.Entry<NamespacePolicy>> denyingEntries =
+      Collections.emptySet();
+  /**
+   * The parents of namespaces whose entries are in {@link #denyingEntries}
+   * so that packages which contain a class that a fence names can be found
+   * without walking the trie.
+   */
+  private ImmutableSet<Namespace> parentsOfDenyingEntries = ImmutableSet.of();
 
   private static final
   Function<NamespacePolicy, Function<AccessControlDecision, NamespacePolicy>>
@@ -56,8 +93,23 @@ public final class Policy {
 
   /** The access policies for ns from most-specific to least. */
   public ImmutableList<NamespacePolicy> forNamespace(Namespace ns) {
+    return applicablePolicies(deepestEntryWithValue(ns));
+  }
+
+  /**
+   * The access policies at d and its ancestors from most-specific to least.
+   *
+   * @param d the root or an entry with a value.
+   */
+  ImmutableList<NamespacePolicy> applicablePolicies(
+      NamespaceTrie.Entry<NamespacePolicy> d) {
+    ImmutableList<NamespacePolicy> applicable = applicableByEntry.get(d);
+    return applicable != null ? applicable : walkApplicablePolicies(d);
+  }
+
+  private static ImmutableList<NamespacePolicy> walkApplicablePolicies(
+      NamespaceTrie.Entry<NamespacePolicy> d) {
     ImmutableList.Builder<NamespacePolicy> b = ImmutableList.builder();
-    NamespaceTrie.Entry<NamespacePolicy> d = trie.getDeepest(ns);
     for (Optional<NamespaceTrie.Entry<NamespacePolicy>> e = Optional.of(d);
          e.isPresent();
          e = e.get().getParent()) {
@@ -69,10 +121,100 @@ public final class Policy {
     return b.build();
   }
 
+  /**
+   * The deepest trie entry with a value that applies to ns, or the root
+   * entry if there is none.
+   * <p>
+   * {@link #forNamespace} only looks at that entry and its ancestors, so
+   * namespaces with the same entry get the same access decisions.
+   */
+  public NamespaceTrie.Entry<NamespacePolicy> deepestEntryWithValue(
+      Namespace ns) {
+    NamespaceTrie.Entry<NamespacePolicy> e = trie.getDeepest(ns);
+    while (!e.getValue().isPresent()) {
+      Optional<NamespaceTrie.Entry<NamespacePolicy>> parent = e.getParent();
+      if (!parent.isPresent()) {
+        break;
+      }
+      e = parent.get();
+    }
+    return e;
+  }
+
+  /**
+   * False if no namespace is denied access to the given class, to any of its
+   * members, or to any class or package that contains it, so uses of members
+   * of the class cannot be violations no matter where they appear.
+   *
+   * @param classEl a {@link ApiElementType#CLASS} API element.
+   */
+  public boolean mightDenyAccessWithin(ApiElement classEl) {
+    Preconditions.checkArgument(classEl.type == ApiElementType.CLASS);
+    for (Optional<ApiElement> ancestor = Optional.of(classEl);
+         ancestor.isPresent(); ancestor = ancestor.get().parent) {
+      if (deniedScopes.contains(ancestor.get())) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * False if code in classes directly in the given package can be granted
+   * any access it asks for, so checking those classes cannot find a
+   * violation.
+   * <p>
+   * A class's policies come from the deepest trie entry for its package
+   * unless a fence names the class itself, so this need not look at
+   * sub-packages.
+   *
+   * @param pkg a package namespace.
+   */
+  public boolean mightDenyAccessFromPackage(Namespace pkg) {
+    return denyingEntries.contains(deepestEntryWithValue(pkg))
+        || parentsOfDenyingEntries.contains(pkg);
+  }
+
+  private static boolean anyDisallowed(
+      Iterable<NamespacePolicy> applicable) {
+    for (NamespacePolicy nsp : applicable) {
+      for (AccessControlDecision d : nsp.apiElementToPolicy.values()) {
+        if (d.accessLevel == AccessLevel.DISALLOWED) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  NamespaceTrie<AccessControlDecision, NamespacePolicy> getTrie() {
+    return trie;
+  }
+
+  /**
+   * The classes and packages that contain, or are, API elements to which some
+   * namespace is denied access.
+   */
+  ImmutableSet<ApiElement> getDeniedScopes() {
+    return deniedScopes;
+  }
+
   /**
    * All the addenda for the given API element.
    */
   public HumanReadableText getAddenda(ApiElement el) {
+    // The deepest ancestor with addenda has those of all its ancestors.
+    for (Optional<ApiElement> ancestor = Optional.of(el);
+         ancestor.isPresent(); ancestor = ancestor.get().parent) {
+      HumanReadableText allAddenda = combinedAddenda.get(ancestor.get());
+      if (allAddenda != null) {
+        return allAddenda;
+      }
+    }
+    return HumanReadableText.EMPTY;
+  }
+
+  private HumanReadableText concatAddenda(ApiElement el) {
     HumanReadableText allAddenda = HumanReadableText.EMPTY;
     for (Optional<ApiElement> ancestor = Optional.of(el);
          ancestor.isPresent(); ancestor = ancestor.get().parent) {
@@ -183,6 +325,11 @@ public final class Policy {
       return apiElementToPolicy.get(el);
     }
 
+    /** The API elements for which this makes decisions. */
+    Set<ApiElement> apiElements() {
+      return Collections.unmodifiableSet(apiElementToPolicy.keySet());
+    }
+
     void restrictAccess(AccessControlDecision p) {
       AccessControlDecision newPolicy = Preconditions.checkNotNull(p);
       ApiElement el = newPolicy.apiElement;
@@ -272,6 +419,57 @@ public final class Policy {
       }
     };
     fence.visit(buildFencesVisitor);
+
+    ImmutableMap.Builder<ApiElement, HumanReadableText> combinedAddenda =
+        ImmutableMap.builder();
+    for (ApiElement el : policy.addenda.keySet()) {
+      combinedAddenda.put(el, policy.concatAddenda(el));
+    }
+    policy.combinedAddenda = combinedAddenda.build();
+
+    ImmutableSet.Builder<ApiElement> deniedScopes = ImmutableSet.builder();
+    for (NamespacePolicy nsp
+         : policy.trie.overlapping(Namespace.DEFAULT_PACKAGE).values()) {
+      for (AccessControlDecision d : nsp.apiElementToPolicy.values()) {
+        if (d.accessLevel == AccessLevel.DISALLOWED) {
+          ApiElement el = d.apiElement;
+          deniedScopes.add(el.containingClass().or(el));
+        }
+      }
+    }
+    policy.deniedScopes = deniedScopes.build();
+
+    Map<NamespaceTrie.Entry<NamespacePolicy>, ImmutableList<NamespacePolicy>>
+        applicableByEntry = new IdentityHashMap<
+            NamespaceTrie.Entry<NamespacePolicy>,
+            ImmutableList<NamespacePolicy>>();
+    NamespaceTrie.Entry<NamespacePolicy> root =
+        policy.trie.get(Namespace.DEFAULT_PACKAGE);
+    applicableByEntry.put(root, walkApplicablePolicies(root));
+    Set<NamespaceTrie.Entry<NamespacePolicy>> denyingEntries =
+        Collections.newSetFromMap(
+            new IdentityHashMap<NamespaceTrie.Entry<NamespacePolicy>,
+                                Boolean>());
+    ImmutableSet.Builder<Namespace> parentsOfDenyingEntries =
+        ImmutableSet.builder();
+    if (anyDisallowed(applicableByEntry.get(root))) {
+      denyingEntries.add(root);
+    }
+    for (Namespace ns
+         : policy.trie.overlapping(Namespace.DEFAULT_PACKAGE).keySet()) {
+      NamespaceTrie.Entry<NamespacePolicy> e = policy.trie.get(ns);
+      ImmutableList<NamespacePolicy> applicable = walkApplicablePolicies(e);
+      applicableByEntry.put(e, applicable);
+      if (anyDisallowed(applicable)) {
+        denyingEntries.add(e);
+        if (ns.getParent().isPresent()) {
+          parentsOfDenyingEntries.add(ns.getParent().get());
+        }
+      }
+    }
+    policy.applicableByEntry = Collections.unmodifiableMap(applicableByEntry);
+    policy.denyingEntries = Collections.unmodifiableSet(denyingEntries);
+    policy.parentsOfDenyingEntries = parentsOfDenyingEntries.build();
     return policy;
   }
 
@@ -1,18 +1,14 @@
 package com.google.security.fences.policy;
 
-import java.util.ArrayDeque;
-import java.util.Deque;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
-import java.util.PriorityQueue;
-import java.util.Set;
 
 import org.apache.maven.plugin.logging.Log;
 import org.objectweb.asm.Opcodes;
 
 import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
-import com.google.common.collect.Sets;
 import com.google.security.fences.inheritance.ClassNode;
 import com.google.security.fences.inheritance.FieldDetails;
 import com.google.security.fences.inheritance.InheritanceGraph;
@@ -54,86 +50,60 @@ public final class PolicyApplicationOrder implements Iterable<ApiElement> {
     this.log = log;
   }
 
+  /**
+   * An iterator over the order.
+   * <p>
+   * Each iterator borrows its thread's spare scratch space and leaves it for
+   * the thread's next iterator the first time {@link Iterator#hasNext}
+   * returns false.  Iterators that are abandoned before then simply drop
+   * their scratch space, so only callers that iterate to the end, like
+   * {@link ApplicationOrderCache}, benefit from reuse.
+   */
   @Override
   public Iterator<ApiElement> iterator() {
-    return new ApiElementIterator();
+    return new ApiElementIterator(Scratch.acquire());
   }
 
-  /** An item on one of the sub lists. */
-  private static final class QueueItem {
-    final ApiElement el;
-    /**
-     * True iff we should avoid enqueuing API elements for non-abstract methods
-     * because a higher priority item overrode them.
-     * <p>
-     * We treat methods with bodies as implementing abstract declarations,
-     * and overriding other methods with bodies.  We skip overridden methods
-     * but not implemented declarations.
-     */
-    final boolean onlyAbstract;
-    /**
-     * True to skip this item and use it only as a placeholder for its
-     * successor queue items.
-     */
-    final boolean skip;
-
-    QueueItem(ApiElement el) {
-      this(el, false, false);
-    }
-
-    QueueItem(ApiElement el, boolean onlyAbstract, boolean skip) {
-      this.el = el;
-      this.onlyAbstract = onlyAbstract;
-      this.skip = skip;
-    }
+  // Buckets of items in order of precedence.  Items are produced from the
+  // highest precedence bucket that is not empty.
+  /** The bucket that contains the actual use. */
+  private static final int USE_ONLY = 0;
+  private static final int SUPER_TYPE_MEMBERS = 1;
+  private static final int INTERFACE_METHODS = 2;
+  private static final int CLASSES = 3;
+  private static final int INTERFACES = 4;
+  private static final int OUTER_CLASSES = 5;
+  private static final int PACKAGES = 6;
+  private static final int BUCKET_COUNT = 7;
 
-    @Override
-    public boolean equals(Object o) {
-      if (!(o instanceof QueueItem)) {
-        return false;
-      }
-      QueueItem that = (QueueItem) o;
-      return this.el.equals(that.el)
-          && this.onlyAbstract == that.onlyAbstract
-          && this.skip == that.skip;
-    }
-
-    @Override
-    public int hashCode() {
-      return el.hashCode()
-          ^ (onlyAbstract ? 1 : 0)
-          ^ (skip ? 2 : 0);
-    }
-
-    @Override
-    public String toString() {
-      return "[QueueItem " + el + (onlyAbstract ? " onlyAbstract" : "") + "]";
-    }
-  }
+  /**
+   * Item flag set iff we should avoid enqueuing API elements for non-abstract
+   * methods because a higher priority item overrode them.
+   * <p>
+   * We treat methods with bodies as implementing abstract declarations,
+   * and overriding other methods with bodies.  We skip overridden methods
+   * but not implemented declarations.
+   */
+  private static final int ONLY_ABSTRACT = 1;
+  /**
+   * Item flag set to skip the item and use it only as a placeholder for its
+   * successor items.
+   */
+  private static final int SKIP = 2;
 
   @SuppressWarnings("synthetic-access")
   final class ApiElementIterator implements Iterator<ApiElement> {
-    /** Non-empty sublists in order of priority. */
-    private final PriorityQueue<SubList> sublists
-        = new PriorityQueue<SubList>();
-    /**
-     * Items that have already been enqueued and so which need not be revisited.
-     */
-    private final Set<QueueItem> enqueued = Sets.newHashSet();
-    /**
-     * Items that have been produced.  This is distinct from enqueued since
-     * a given element might be visited in multiple contexts
-     * (like {@link QueueItem#onlyAbstract}) when a given super-type is reached
-     * via multiple paths.  This frequently happens with
-     * {@code java/lang/Object} which is the super-type of interfaces as well
-     * as the tail of all class inheritance chains.
-     */
-    private final Set<ApiElement> produced = Sets.newHashSet();
+    /** Null once all items have been produced. */
+    private Scratch scratch;
+    /** No bucket before this one has items. */
+    private int cursor;
 
     /** Null, or the next item, or when consumed the last item. */
-    private QueueItem pending;
-    /** The sublist from which pending was dequeued. */
-    private SubList source;
+    private ApiElement pending;
+    /** The flags for pending. */
+    private int pendingFlags;
+    /** The bucket from which pending was dequeued. */
+    private int source;
     /**
      * Whether next() has advanced past pending.
      * If this is false and another next is requested we still need to query
@@ -141,60 +111,9 @@ public final class PolicyApplicationOrder implements Iterable<ApiElement> {
      */
     private boolean consumed;
 
-    /** The sub list that contains the actual use. */
-    private final SubList useOnly = new SubList(0) {
-      @Override
-      void addLowerPrecedenceItems(QueueItem item) {
-        addCorrespondingMembers(item, true);
-      }
-    };
-
-    private final SubList superTypeMembers = new SubList(1) {
-      @Override
-      void addLowerPrecedenceItems(QueueItem item) {
-        addCorrespondingMembers(item, false);
-      }
-    };
-
-    private final SubList interfaceMethods = new SubList(2) {
-      @Override
-      void addLowerPrecedenceItems(QueueItem item) {
-        addCorrespondingMembers(item, false);
-      }
-    };
-
-    private final SubList classes = new SubList(3) {
-      @Override
-      void addLowerPrecedenceItems(QueueItem item) {
-        addOuterClassesAndPackages(item);
-      }
-    };
-
-    private final SubList interfaces = new SubList(4) {
-      @Override
-      void addLowerPrecedenceItems(QueueItem item) {
-        addOuterClassesAndPackages(item);
-      }
-    };
-
-    private final SubList outerClasses = new SubList(5) {
-      @Override
-      void addLowerPrecedenceItems(QueueItem item) {
-        addOuterClassesAndPackages(item);
-      }
-    };
-
-    private final SubList packages = new SubList(6) {
-      @Override
-      void addLowerPrecedenceItems(QueueItem item) {
-        addSuperPackages(item);
-      }
-    };
-
-    {
-      // Initialize the lists.
-      ApiElement el = PolicyApplicationOrder.this.used;
-      useOnly.add(new QueueItem(el));
+    ApiElementIterator(Scratch scratch) {
+      this.scratch = scratch;
+      add(USE_ONLY, PolicyApplicationOrder.this.used, 0);
     }
 
     @Override
@@ -210,32 +129,35 @@ public final class PolicyApplicationOrder implements Iterable<ApiElement> {
       if (pending == null) {
         throw new NoSuchElementException();
       }
-      return pending.el;
+      return pending;
     }
 
     private void update() {
-      while (true) {
+      while (scratch != null) {
         if (pending != null) {
           if (consumed) {
-            source.addLowerPrecedenceItems(pending);
+            addLowerPrecedenceItems(source, pending, pendingFlags);
             consumed = false;
-            source = null;
             pending = null;
           } else {
             return;
           }
         }
-        source = sublists.peek();
-        if (source == null) {
-          break;
+        Bucket[] buckets = scratch.buckets;
+        while (cursor < BUCKET_COUNT && buckets[cursor].isEmpty()) {
+          ++cursor;
         }
-        pending = source.removeFirst();
-        if (source.isEmpty()) {
-          // We keep empty elements out of the pqueue,
-          // and let SubList.add put them back on as necessary.
-          sublists.poll();
+        if (cursor == BUCKET_COUNT) {
+          scratch.release();
+          scratch = null;
+          break;
         }
-        consumed = !produced.add(pending.el) || pending.skip;
+        Bucket bucket = buckets[cursor];
+        source = cursor;
+        pendingFlags = bucket.firstFlags();
+        pending = bucket.removeFirst();
+        consumed = !scratch.seen.markProduced(pending)
+            || (pendingFlags & SKIP) != 0;
         if (!consumed) {
           break;
         }
@@ -247,9 +169,39 @@ public final class PolicyApplicationOrder implements Iterable<ApiElement> {
       throw new UnsupportedOperationException();
     }
 
+    private void add(int bucket, ApiElement el, int flags) {
+      if (scratch.seen.markEnqueued(el, flags)) {
+        scratch.buckets[bucket].add(el, flags);
+        if (bucket < cursor) {
+          cursor = bucket;
+        }
+      }
+    }
+
+    private void addLowerPrecedenceItems(
+        int bucket, ApiElement el, int flags) {
+      switch (bucket) {
+        case USE_ONLY:
+          addCorrespondingMembers(el, flags, true);
+          return;
+        case SUPER_TYPE_MEMBERS:
+        case INTERFACE_METHODS:
+          addCorrespondingMembers(el, flags, false);
+          return;
+        case CLASSES:
+        case INTERFACES:
+        case OUTER_CLASSES:
+          addOuterClassesAndPackages(el);
+          return;
+        case PACKAGES:
+          addSuperPackages(el);
+          return;
+      }
+      throw new AssertionError(bucket);
+    }
 
-    private void addCorrespondingMembers(QueueItem item, boolean isExactUse) {
-      ApiElement el = item.el;
+    private void addCorrespondingMembers(
+        ApiElement el, int flags, boolean isExactUse) {
       addContainingClass(el);
 
       String name = el.name;
@@ -260,7 +212,7 @@ public final class PolicyApplicationOrder implements Iterable<ApiElement> {
           case METHOD:
           {
             Optional<MethodDetails> md = cn.getMethod(name, descriptor);
-            boolean onlyAbstract = item.onlyAbstract;
+            boolean onlyAbstract = (flags & ONLY_ABSTRACT) != 0;
             boolean lookOnSuperClass = true;
             if (md.isPresent()) {
               int access = md.get().access;
@@ -300,17 +252,17 @@ public final class PolicyApplicationOrder implements Iterable<ApiElement> {
                   skip = (superMethodAccess & Opcodes.ACC_ABSTRACT) == 0;
                 }
 
-                QueueItem correspondingMethod = new QueueItem(
+                add(
+                    SUPER_TYPE_MEMBERS,
                     correspondingApiElement,
-                    onlyAbstract,
-                    skip);
-                superTypeMembers.add(correspondingMethod);
+                    (onlyAbstract ? ONLY_ABSTRACT : 0) | (skip ? SKIP : 0));
               }
               for (String interfaceName : cn.interfaces) {
-                QueueItem correspondingMethod = new QueueItem(
+                add(
+                    INTERFACE_METHODS,
                     ApiElement.fromInternalClassName(interfaceName)
-                    .child(name, ApiElementType.METHOD));
-                interfaceMethods.add(correspondingMethod);
+                    .child(name, ApiElementType.METHOD),
+                    0);
               }
             }
             return;
@@ -349,12 +301,9 @@ public final class PolicyApplicationOrder implements Iterable<ApiElement> {
                 }
                 boolean skip = (superFieldAccess & Opcodes.ACC_PRIVATE) != 0;
 
-                if (cn.superType.isPresent()) {
-                  superTypeMembers.add(
-                      new QueueItem(
-                          correspondingApiElement,
-                          false, skip));
-                }
+                add(
+                    SUPER_TYPE_MEMBERS, correspondingApiElement,
+                    skip ? SKIP : 0);
               }
             }
             return;
@@ -376,21 +325,21 @@ public final class PolicyApplicationOrder implements Iterable<ApiElement> {
       Optional<ClassNode> cnOpt = classContaining(classEl);
       if (cnOpt.isPresent()) {
         ClassNode cn = cnOpt.get();
-        ((cn.access & Opcodes.ACC_INTERFACE) != 0 ? interfaces : classes)
-            .add(new QueueItem(classEl));
+        add(
+            (cn.access & Opcodes.ACC_INTERFACE) != 0 ? INTERFACES : CLASSES,
+            classEl, 0);
       }
     }
 
-    private void addOuterClassesAndPackages(QueueItem item) {
-      ApiElement el = item.el;
+    private void addOuterClassesAndPackages(ApiElement el) {
       if (el.parent.isPresent()) {
         ApiElement parent = el.parent.get();
         switch (parent.type) {
           case CLASS:
-            this.outerClasses.add(new QueueItem(parent));
+            add(OUTER_CLASSES, parent, 0);
             return;
           case PACKAGE:
-            this.packages.add(new QueueItem(parent));
+            add(PACKAGES, parent, 0);
             return;
           case FIELD: case METHOD: case CONSTRUCTOR:
             // Not a type.
@@ -400,51 +349,203 @@ public final class PolicyApplicationOrder implements Iterable<ApiElement> {
       }
     }
 
-    private void addSuperPackages(QueueItem item) {
-      Preconditions.checkArgument(item.el.type == ApiElementType.PACKAGE);
-      ApiElement el = item.el;
+    private void addSuperPackages(ApiElement el) {
+      Preconditions.checkArgument(el.type == ApiElementType.PACKAGE);
       if (el.parent.isPresent()) {
-        this.packages.add(new QueueItem(el.parent.get()));
+        add(PACKAGES, el.parent.get(), 0);
       }
     }
+  }
 
+  /**
+   * State for an iterator that is reused by later iterators on the same
+   * thread once the iterator has produced all its items.
+   * Each thread keeps at most one spare, so at most one per thread is
+   * retained, and scratch spaces of abandoned iterators, or of iterators
+   * interleaved with others on the same thread, are left to the garbage
+   * collector.
+   */
+  private static final class Scratch {
+    final Bucket[] buckets = new Bucket[BUCKET_COUNT];
+    final SeenTable seen = new SeenTable();
+
+    private static final ThreadLocal<Scratch> SPARE =
+        new ThreadLocal<Scratch>();
+
+    private Scratch() {
+      for (int i = 0; i < BUCKET_COUNT; ++i) {
+        buckets[i] = new Bucket();
+      }
+    }
+
+    /** Takes this thread's spare scratch space, or makes one if none. */
+    static Scratch acquire() {
+      Scratch s = SPARE.get();
+      if (s == null) {
+        return new Scratch();
+      }
+      SPARE.set(null);
+      return s;
+    }
 
     /**
-     * A list that is concatenated into the ordering.
+     * Clears this and keeps it as this thread's spare unless the thread
+     * already has one.
      */
-    private abstract class SubList implements Comparable<SubList> {
-      private final Deque<QueueItem> items = new ArrayDeque<QueueItem>();
-      private final int priority;
-
-      SubList(int priority) {
-        this.priority = priority;
+    void release() {
+      if (SPARE.get() == null) {
+        for (Bucket b : buckets) {
+          b.clear();
+        }
+        seen.clear();
+        SPARE.set(this);
       }
+    }
+  }
+
+  /** A FIFO of items with their flags. */
+  private static final class Bucket {
+    private ApiElement[] els = new ApiElement[8];
+    private byte[] flags = new byte[8];
+    private int head;
+    private int tail;
 
-      QueueItem removeFirst() {
-        return items.removeFirst();
+    boolean isEmpty() {
+      return head == tail;
+    }
+
+    int firstFlags() {
+      return flags[head];
+    }
+
+    ApiElement removeFirst() {
+      ApiElement el = els[head];
+      els[head] = null;
+      ++head;
+      if (head == tail) {
+        head = tail = 0;
       }
+      return el;
+    }
 
-      boolean isEmpty() {
-        return items.isEmpty();
+    void add(ApiElement el, int elFlags) {
+      if (tail == els.length) {
+        int n = tail - head;
+        if (n * 2 > els.length) {
+          els = Arrays.copyOf(els, els.length * 2);
+          flags = Arrays.copyOf(flags, els.length);
+        }
+        System.arraycopy(els, head, els, 0, n);
+        System.arraycopy(flags, head, flags, 0, n);
+        Arrays.fill(els, n, tail, null);
+        head = 0;
+        tail = n;
       }
+      els[tail] = el;
+      flags[tail] = (byte) elFlags;
+      ++tail;
+    }
+
+    void clear() {
+      Arrays.fill(els, head, tail, null);
+      head = tail = 0;
+    }
+  }
+
+  /**
+   * An open-addressed hash set of API elements with bits for the ways in
+   * which each has been seen.
+   * <p>
+   * An element is enqueued once per combination of flags, but produced once
+   * since a given element might be visited in multiple contexts
+   * (like {@link #ONLY_ABSTRACT}) when a given super-type is reached
+   * via multiple paths.  This frequently happens with
+   * {@code java/lang/Object} which is the super-type of interfaces as well
+   * as the tail of all class inheritance chains.
+   * <p>
+   * Class and package elements are interned so are usually found by
+   * identity.  Members are compared via their cached hash codes first.
+   */
+  private static final class SeenTable {
+    private static final int INITIAL_CAPACITY = 64;
+    /** Capacity beyond which a cleared table is not kept. */
+    private static final int MAX_RETAINED_CAPACITY = 1 << 12;
+    /** Bits 0-3 are set for enqueued items by their flags. */
+    private static final int PRODUCED_BIT = 1 << 4;
+
+    private ApiElement[] keys = new ApiElement[INITIAL_CAPACITY];
+    private byte[] bits = new byte[INITIAL_CAPACITY];
+    private int size;
+
+    /** True if el had not been enqueued with the given flags. */
+    boolean markEnqueued(ApiElement el, int flags) {
+      return mark(el, 1 << flags);
+    }
 
-      abstract void addLowerPrecedenceItems(QueueItem item);
+    /** True if el had not been produced. */
+    boolean markProduced(ApiElement el) {
+      return mark(el, PRODUCED_BIT);
+    }
 
-      void add(QueueItem item) {
-        if (enqueued.add(item)) {
-          boolean wasEmpty = items.isEmpty();
-          items.add(item);
-          if (wasEmpty) {
-            sublists.add(this);
+    private boolean mark(ApiElement el, int bit) {
+      int hashCode = el.hashCode();
+      int mask = keys.length - 1;
+      for (int i = smear(hashCode) & mask;; i = (i + 1) & mask) {
+        ApiElement k = keys[i];
+        if (k == null) {
+          keys[i] = el;
+          bits[i] = (byte) bit;
+          if (++size * 2 > keys.length) {
+            grow();
+          }
+          return true;
+        }
+        if (k == el || (k.hashCode() == hashCode && k.equals(el))) {
+          if ((bits[i] & bit) != 0) {
+            return false;
           }
+          bits[i] |= bit;
+          return true;
         }
       }
+    }
 
-      @Override
-      public int compareTo(SubList ls) {
-        return Integer.compare(this.priority, ls.priority);
+    private void grow() {
+      ApiElement[] oldKeys = keys;
+      byte[] oldBits = bits;
+      keys = new ApiElement[oldKeys.length * 2];
+      bits = new byte[keys.length];
+      int mask = keys.length - 1;
+      for (int j = 0; j < oldKeys.length; ++j) {
+        ApiElement k = oldKeys[j];
+        if (k != null) {
+          int i = smear(k.hashCode()) & mask;
+          while (keys[i] != null) {
+            i = (i + 1) & mask;
+          }
+          keys[i] = k;
+          bits[i] = oldBits[j];
+        }
       }
     }
+
+    void clear() {
+      if (keys.length > MAX_RETAINED_CAPACITY) {
+        keys = new ApiElement[INITIAL_CAPACITY];
+        bits = new byte[INITIAL_CAPACITY];
+      } else if (size != 0) {
+        Arrays.fill(keys, null);
+        Arrays.fill(bits, (byte) 0);
+      }
+      size = 0;
+    }
+
+    private static int smear(int hashCode) {
+      // Spreads the high bits down since ApiElement hash codes are built by
+      // multiplying.
+      int h = hashCode * 0x9E3779B9;
+      return h ^ (h >>> 16);
+    }
   }
 
 
@@ -0,0 +1,195 @@
+package com.google.security.fences.util;
+
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+import org.apache.maven.plugin.logging.Log;
+
+import com.google.common.collect.Lists;
+
+/**
+ * A log that buffers messages so that work done on a worker thread can be
+ * logged, in a deterministic order, by the thread that waits on it.
+ * <p>
+ * Maven's logs are not guaranteed to be thread-safe, so workers should not
+ * write to them directly.
+ * <p>
+ * Debug messages are dropped instead of buffered when the target does not
+ * have debug enabled since there may be many of them.
+ */
+public final class DeferredLog implements Log {
+  private final Log target;
+  private final List<Entry> entries = Lists.newArrayList();
+  /** Asked once since workers should not call into the target. */
+  private final boolean debugEnabled;
+
+  /**
+   * @param target receives buffered messages when {@link #flush} is called.
+   *     It is also consulted for {@code is*Enabled} queries.
+   */
+  public DeferredLog(Log target) {
+    this.target = target;
+    this.debugEnabled = target.isDebugEnabled();
+  }
+
+  /** Replays buffered messages to the target log in the order received. */
+  public void flush() {
+    for (Entry e : entries) {
+      e.apply(target);
+    }
+    entries.clear();
+  }
+
+  @Override
+  public void debug(CharSequence s) {
+    if (debugEnabled) {
+      entries.add(new Entry(Level.DEBUG, s, null));
+    }
+  }
+
+  @Override
+  public void debug(Throwable th) {
+    if (debugEnabled) {
+      entries.add(new Entry(Level.DEBUG, null, th));
+    }
+  }
+
+  @Override
+  public void debug(CharSequence s, Throwable th) {
+    if (debugEnabled) {
+      entries.add(new Entry(Level.DEBUG, s, th));
+    }
+  }
+
+  @Override
+  public void error(CharSequence s) {
+    entries.add(new Entry(Level.ERROR, s, null));
+  }
+
+  @Override
+  public void error(Throwable th) {
+    entries.add(new Entry(Level.ERROR, null, th));
+  }
+
+  @Override
+  public void error(CharSequence s, Throwable th) {
+    entries.add(new Entry(Level.ERROR, s, th));
+  }
+
+  @Override
+  public void info(CharSequence s) {
+    entries.add(new Entry(Level.INFO, s, null));
+  }
+
+  @Override
+  public void info(Throwable th) {
+    entries.add(new Entry(Level.INFO, null, th));
+  }
+
+  @Override
+  public void info(CharSequence s, Throwable th) {
+    entries.add(new Entry(Level.INFO, s, th));
+  }
+
+  @Override
+  public void warn(CharSequence s) {
+    entries.add(new Entry(Level.WARN, s, null));
+  }
+
+  @Override
+  public void warn(Throwable th) {
+    entries.add(new Entry(Level.WARN, null, th));
+  }
+
+  @Override
+  public void warn(CharSequence s, Throwable th) {
+    entries.add(new Entry(Level.WARN, s, th));
+  }
+
+  @Override
+  public boolean isDebugEnabled() {
+    return debugEnabled;
+  }
+
+  @Override
+  public boolean isErrorEnabled() {
+    return target.isErrorEnabled();
+  }
+
+  @Override
+  public boolean isInfoEnabled() {
+    return target.isInfoEnabled();
+  }
+
+  @Override
+  public boolean isWarnEnabled() {
+    return target.isWarnEnabled();
+  }
+
+  private enum Level {
+    DEBUG,
+    INFO,
+    WARN,
+    ERROR,
+    ;
+  }
+
+  private static final class Entry {
+    final Level level;
+    final @Nullable CharSequence s;
+    final @Nullable Throwable th;
+
+    Entry(Level level, @Nullable CharSequence s, @Nullable Throwable th) {
+      this.level = level;
+      this.s = s;
+      this.th = th;
+    }
+
+    /**
+     * Uses the same overload as the original call so that the target sees
+     * exactly what it would have seen had it been called directly.
+     */
+    void apply(Log log) {
+      switch (level) {
+        case DEBUG:
+          if (th == null) {
+            log.debug(s);
+          } else if (s == null) {
+            log.debug(th);
+          } else {
+            log.debug(s, th);
+          }
+          return;
+        case INFO:
+          if (th == null) {
+            log.info(s);
+          } else if (s == null) {
+            log.info(th);
+          } else {
+            log.info(s, th);
+          }
+          return;
+        case WARN:
+          if (th == null) {
+            log.warn(s);
+          } else if (s == null) {
+            log.warn(th);
+          } else {
+            log.warn(s, th);
+          }
+          return;
+        case ERROR:
+          if (th == null) {
+            log.error(s);
+          } else if (s == null) {
+            log.error(th);
+          } else {
+            log.error(s, th);
+          }
+          return;
+      }
+      throw new AssertionError(level);
+    }
+  }
+}
@@ -1,5 +1,7 @@
 package com.google.security.fences.util;
 
+import java.io.File;
+
 /** Utilities relating to system properties relevant to this project. */
 public final class RelevantSystemProperties {
 
@@ -21,6 +23,42 @@ public final class RelevantSystemProperties {
    */
   public static final String PROPERTY_EXPERIMENTAL_MODE = "fences.experimental";
 
+  /**
+   * The number of worker threads used to scan class roots.
+   * Defaults to the number of available processors.  A value of 1 scans
+   * class roots one after another on the thread running the rule.
+   */
+  public static final String PROPERTY_THREADS = "fences.threads";
+
+  /**
+   * The number of megabytes of class files read while building the
+   * inheritance graph that may be kept in memory so that checking need not
+   * read them again.
+   * Defaults to a quarter of the maximum heap size.  0 disables retention.
+   */
+  public static final String PROPERTY_CLASS_BYTES_CACHE_MB =
+      "fences.classBytesCacheMB";
+
+  /**
+   * The directory in which to keep snapshots of the classes extracted from
+   * archives so that later builds need not parse unchanged archives again.
+   * Snapshots are keyed by archive content so the directory may be shared
+   * between projects.
+   * Defaults to a directory under the project's build directory.
+   */
+  public static final String PROPERTY_GRAPH_SNAPSHOT_DIR =
+      "fences.graphSnapshotDir";
+
+  /**
+   * When a property with this name is {@code true}, the inheritance graph
+   * only indexes class files by name up front and parses each class the first
+   * time it is looked up.
+   * This does less work when policies mention few classes, but classes are
+   * not retained for checking or snapshotted.
+   */
+  public static final String PROPERTY_LAZY_INHERITANCE_GRAPH =
+      "fences.lazyInheritanceGraph";
+
   /**
    * True to dump the effective policy configuration to the log.
    */
@@ -36,4 +74,49 @@ public final class RelevantSystemProperties {
   public static boolean inExperimentalMode() {
     return System.getProperty(PROPERTY_EXPERIMENTAL_MODE) != null;
   }
+
+  /**
+   * The number of worker threads to use when scanning class roots.
+   * Always at least 1.
+   */
+  public static int getThreadCount() {
+    Integer threads = Integer.getInteger(PROPERTY_THREADS);
+    if (threads == null) {
+      return Runtime.getRuntime().availableProcessors();
+    }
+    return Math.max(1, threads);
+  }
+
+  /**
+   * The maximum number of bytes of class files to keep in memory between
+   * building the inheritance graph and checking classes.
+   */
+  public static long getClassBytesCacheSize() {
+    Long megabytes = Long.getLong(PROPERTY_CLASS_BYTES_CACHE_MB);
+    if (megabytes == null) {
+      return Runtime.getRuntime().maxMemory() / 4;
+    }
+    return Math.max(0L, megabytes) << 20;
+  }
+
+  /**
+   * True to parse classes for the inheritance graph on demand.
+   */
+  public static boolean useLazyInheritanceGraph() {
+    return Boolean.parseBoolean(
+        System.getProperty(PROPERTY_LAZY_INHERITANCE_GRAPH));
+  }
+
+  /**
+   * The directory in which to keep inheritance graph snapshots.
+   *
+   * @param buildDirectory the project build directory.
+   */
+  public static File getGraphSnapshotDirectory(File buildDirectory) {
+    String dir = System.getProperty(PROPERTY_GRAPH_SNAPSHOT_DIR);
+    if (dir == null || dir.isEmpty()) {
+      return new File(buildDirectory, "fences-graph-snapshots");
+    }
+    return new File(dir);
+  }
 }
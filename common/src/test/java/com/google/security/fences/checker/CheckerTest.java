@@ -0,0 +1,329 @@
+package com.google.security.fences.checker;
+
+import org.apache.maven.artifact.Artifact;
+import org.apache.maven.artifact.DefaultArtifact;
+import org.apache.maven.artifact.handler.DefaultArtifactHandler;
+import org.apache.maven.artifact.versioning.VersionRange;
+import org.apache.maven.plugin.logging.SystemStreamLog;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.security.fences.config.ApiFence;
+import com.google.security.fences.config.ClassFence;
+import com.google.security.fences.config.PackageFence;
+import com.google.security.fences.config.Rationale;
+import com.google.security.fences.inheritance.FieldDetails;
+import com.google.security.fences.inheritance.InheritanceGraph;
+import com.google.security.fences.inheritance.MethodDetails;
+import com.google.security.fences.namespace.Namespace;
+import com.google.security.fences.policy.ApiElement;
+import com.google.security.fences.policy.ApiElementType;
+import com.google.security.fences.policy.Policy;
+import com.google.security.fences.reporting.Violation;
+import com.google.security.fences.util.MisconfigurationException;
+
+import junit.framework.TestCase;
+
+@SuppressWarnings("javadoc")
+public final class CheckerTest extends TestCase {
+
+  private Artifact art;
+  private Checker checker;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    art = artifact();
+    checker = new Checker(new SystemStreamLog(), graph(), policy());
+  }
+
+  static Artifact artifact() {
+    return new DefaultArtifact(
+        "com.example", "user", VersionRange.createFromVersion("1.0"),
+        Artifact.SCOPE_COMPILE, "jar", null,
+        new DefaultArtifactHandler("jar"));
+  }
+
+  static Policy policy() throws MisconfigurationException {
+    ClassFence fenced = new ClassFence();
+    fenced.setName("Fenced");
+    fenced.setDistrusts("*");
+    fenced.setTrusts("org.trusted");
+    fenced.setRationale("Fenced is dangerous");
+
+    ClassFence fencedApi = new ClassFence();
+    fencedApi.setName("FencedApi");
+    fencedApi.setDistrusts("*");
+
+    PackageFence examplePkg = new PackageFence();
+    examplePkg.setName("example");
+    examplePkg.setClass(fenced);
+    examplePkg.setClass(fencedApi);
+
+    PackageFence comPkg = new PackageFence();
+    comPkg.setName("com");
+    comPkg.setPackage(examplePkg);
+
+    ApiFence api = new ApiFence();
+    api.setPackage(comPkg);
+    return Policy.fromFence(api);
+  }
+
+  private static final ImmutableList<String> USER_CLASSES = ImmutableList.of(
+      "org/user/UsesString",
+      "org/user/CallsFenced",
+      "org/user/CallsViaSub",
+      "org/user/ReadsViaSub",
+      "org/user/ConstructsFenced",
+      "org/user/CallsViaImpl",
+      "org/user/NamesFenced",
+      "org/user/Other",
+      "org/trusted/Friend");
+
+  static InheritanceGraph graph() {
+    InheritanceGraph.Builder b = InheritanceGraph.builder();
+    // The class path includes the classes being checked.
+    for (String userClass : USER_CLASSES) {
+      b.declare(userClass, Opcodes.ACC_PUBLIC)
+          .superClassName(Optional.of("java/lang/Object"))
+          .methods(ImmutableList.<MethodDetails>of())
+          .fields(ImmutableList.<FieldDetails>of())
+          .commit();
+    }
+    b.declare("java/lang/Object", Opcodes.ACC_PUBLIC)
+        .methods(ImmutableList.of(
+            new MethodDetails("<init>", "()V", Opcodes.ACC_PUBLIC)))
+        .fields(ImmutableList.<FieldDetails>of())
+        .commit();
+    b.declare("java/lang/String", Opcodes.ACC_PUBLIC | Opcodes.ACC_FINAL)
+        .superClassName(Optional.of("java/lang/Object"))
+        .methods(ImmutableList.of(
+            new MethodDetails("length", "()I", Opcodes.ACC_PUBLIC)))
+        .fields(ImmutableList.<FieldDetails>of())
+        .commit();
+    b.declare("com/example/Fenced", Opcodes.ACC_PUBLIC)
+        .superClassName(Optional.of("java/lang/Object"))
+        .methods(ImmutableList.of(
+            new MethodDetails("<init>", "()V", Opcodes.ACC_PUBLIC),
+            new MethodDetails("danger", "()V", Opcodes.ACC_PUBLIC)))
+        .fields(ImmutableList.of(
+            new FieldDetails("secret", Opcodes.ACC_PUBLIC)))
+        .commit();
+    b.declare("com/example/Sub", Opcodes.ACC_PUBLIC)
+        .superClassName(Optional.of("com/example/Fenced"))
+        .methods(ImmutableList.<MethodDetails>of())
+        .fields(ImmutableList.<FieldDetails>of())
+        .commit();
+    b.declare(
+        "com/example/FencedApi",
+        Opcodes.ACC_PUBLIC | Opcodes.ACC_INTERFACE | Opcodes.ACC_ABSTRACT)
+        .superClassName(Optional.of("java/lang/Object"))
+        .methods(ImmutableList.of(
+            new MethodDetails(
+                "call", "()V", Opcodes.ACC_PUBLIC | Opcodes.ACC_ABSTRACT)))
+        .fields(ImmutableList.<FieldDetails>of())
+        .commit();
+    b.declare("com/example/Impl", Opcodes.ACC_PUBLIC)
+        .superClassName(Optional.of("java/lang/Object"))
+        .interfaceNames(ImmutableList.of("com/example/FencedApi"))
+        .methods(ImmutableList.of(
+            new MethodDetails("call", "()V", Opcodes.ACC_PUBLIC)))
+        .fields(ImmutableList.<FieldDetails>of())
+        .commit();
+    return b.build();
+  }
+
+  /** Emits the body of a method in a generated class. */
+  interface Body {
+    void emit(MethodVisitor mv);
+  }
+
+  /**
+   * A class file for a class with one static method per body named
+   * {@code run0}, {@code run1}, ....
+   */
+  static byte[] userClass(String className, Body... bodies) {
+    ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+    cw.visit(
+        Opcodes.V1_6, Opcodes.ACC_PUBLIC, className, null,
+        "java/lang/Object", null);
+    for (int i = 0; i < bodies.length; ++i) {
+      MethodVisitor mv = cw.visitMethod(
+          Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, "run" + i, "()V", null,
+          null);
+      mv.visitCode();
+      bodies[i].emit(mv);
+      mv.visitInsn(Opcodes.RETURN);
+      mv.visitMaxs(0, 0);
+      mv.visitEnd();
+    }
+    cw.visitEnd();
+    return cw.toByteArray();
+  }
+
+  /**
+   * Checks the given class as {@link Checker#makeVisitorForClass} would,
+   * skipping it unless {@link Checker#refersToFencedClass}.
+   */
+  private ImmutableList<Violation> check(byte[] bytes)
+  throws MisconfigurationException {
+    ClassReader reader = new ClassReader(bytes);
+    if (checker.refersToFencedClass(reader)) {
+      reader.accept(checker.new ClassChecker(art, reader), 0);
+    }
+    return checker.getViolations();
+  }
+
+  private Violation violation(
+      String className, ApiElement used, ApiElement sensitive)
+  throws MisconfigurationException {
+    return new Violation(
+        art, Namespace.fromInternalClassName(className), className, -1,
+        used, sensitive, Rationale.EMPTY);
+  }
+
+  private static ApiElement member(
+      String className, String name, ApiElementType type) {
+    return ApiElement.fromInternalClassName(className).child(name, type);
+  }
+
+  public final void testClassWithoutFencedReferencesIsSkipped()
+  throws MisconfigurationException {
+    byte[] bytes = userClass("org/user/UsesString", new Body() {
+      @Override
+      public void emit(MethodVisitor mv) {
+        mv.visitLdcInsn("foo");
+        mv.visitMethodInsn(
+            Opcodes.INVOKEVIRTUAL, "java/lang/String", "length", "()I",
+            false);
+        mv.visitInsn(Opcodes.POP);
+      }
+    });
+    assertFalse(checker.refersToFencedClass(new ClassReader(bytes)));
+    assertEquals(ImmutableList.<Violation>of(), check(bytes));
+  }
+
+  public final void testDirectMethodCall()
+  throws MisconfigurationException {
+    byte[] bytes = userClass("org/user/CallsFenced", new Body() {
+      @Override
+      public void emit(MethodVisitor mv) {
+        mv.visitInsn(Opcodes.ACONST_NULL);
+        mv.visitMethodInsn(
+            Opcodes.INVOKEVIRTUAL, "com/example/Fenced", "danger", "()V",
+            false);
+      }
+    });
+    assertTrue(checker.refersToFencedClass(new ClassReader(bytes)));
+    ApiElement danger = member(
+        "com/example/Fenced", "danger", ApiElementType.METHOD);
+    assertEquals(
+        ImmutableList.of(violation(
+            "org/user/CallsFenced", danger, danger)),
+        check(bytes));
+  }
+
+  public final void testMethodCallOnlyThroughSubType()
+  throws MisconfigurationException {
+    // The constant pool mentions com/example/Sub but not Fenced.
+    byte[] bytes = userClass("org/user/CallsViaSub", new Body() {
+      @Override
+      public void emit(MethodVisitor mv) {
+        mv.visitInsn(Opcodes.ACONST_NULL);
+        mv.visitMethodInsn(
+            Opcodes.INVOKEVIRTUAL, "com/example/Sub", "danger", "()V",
+            false);
+      }
+    });
+    assertTrue(checker.refersToFencedClass(new ClassReader(bytes)));
+    assertEquals(
+        ImmutableList.of(violation(
+            "org/user/CallsViaSub",
+            member("com/example/Sub", "danger", ApiElementType.METHOD),
+            member("com/example/Fenced", "danger", ApiElementType.METHOD))),
+        check(bytes));
+  }
+
+  public final void testFieldReadOnlyThroughSubType()
+  throws MisconfigurationException {
+    byte[] bytes = userClass("org/user/ReadsViaSub", new Body() {
+      @Override
+      public void emit(MethodVisitor mv) {
+        mv.visitInsn(Opcodes.ACONST_NULL);
+        mv.visitFieldInsn(
+            Opcodes.GETFIELD, "com/example/Sub", "secret", "I");
+        mv.visitInsn(Opcodes.POP);
+      }
+    });
+    assertTrue(checker.refersToFencedClass(new ClassReader(bytes)));
+    assertEquals(
+        ImmutableList.of(violation(
+            "org/user/ReadsViaSub",
+            member("com/example/Sub", "secret", ApiElementType.FIELD),
+            member("com/example/Fenced", "secret", ApiElementType.FIELD))),
+        check(bytes));
+  }
+
+  public final void testConstructorCall()
+  throws MisconfigurationException {
+    byte[] bytes = userClass("org/user/ConstructsFenced", new Body() {
+      @Override
+      public void emit(MethodVisitor mv) {
+        mv.visitTypeInsn(Opcodes.NEW, "com/example/Fenced");
+        mv.visitInsn(Opcodes.DUP);
+        mv.visitMethodInsn(
+            Opcodes.INVOKESPECIAL, "com/example/Fenced", "<init>", "()V",
+            false);
+        mv.visitInsn(Opcodes.POP);
+      }
+    });
+    assertTrue(checker.refersToFencedClass(new ClassReader(bytes)));
+    ApiElement init = member(
+        "com/example/Fenced", "<init>", ApiElementType.CONSTRUCTOR);
+    assertEquals(
+        ImmutableList.of(violation("org/user/ConstructsFenced", init, init)),
+        check(bytes));
+  }
+
+  public final void testMethodCallOnlyThroughImplementation()
+  throws MisconfigurationException {
+    // The constant pool mentions com/example/Impl but not FencedApi.
+    byte[] bytes = userClass("org/user/CallsViaImpl", new Body() {
+      @Override
+      public void emit(MethodVisitor mv) {
+        mv.visitInsn(Opcodes.ACONST_NULL);
+        mv.visitMethodInsn(
+            Opcodes.INVOKEVIRTUAL, "com/example/Impl", "call", "()V",
+            false);
+      }
+    });
+    assertTrue(checker.refersToFencedClass(new ClassReader(bytes)));
+    assertEquals(
+        ImmutableList.of(violation(
+            "org/user/CallsViaImpl",
+            member("com/example/Impl", "call", ApiElementType.METHOD),
+            member("com/example/FencedApi", "call", ApiElementType.METHOD))),
+        check(bytes));
+  }
+
+  public final void testClassLiteralIsNotSkipped()
+  throws MisconfigurationException {
+    // A class literal is a CONSTANT_Class entry like an instruction's owner,
+    // so the class is checked, but naming a class is not a use of any of
+    // its members.
+    byte[] bytes = userClass("org/user/NamesFenced", new Body() {
+      @Override
+      public void emit(MethodVisitor mv) {
+        mv.visitLdcInsn(Type.getObjectType("com/example/Fenced"));
+        mv.visitInsn(Opcodes.POP);
+      }
+    });
+    assertTrue(checker.refersToFencedClass(new ClassReader(bytes)));
+    assertEquals(ImmutableList.<Violation>of(), check(bytes));
+  }
+}
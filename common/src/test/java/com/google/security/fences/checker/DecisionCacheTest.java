@@ -0,0 +1,140 @@
+package com.google.security.fences.checker;
+
+import org.apache.maven.artifact.Artifact;
+import org.apache.maven.plugin.logging.Log;
+import org.apache.maven.plugin.logging.SystemStreamLog;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import com.google.common.collect.ImmutableList;
+import com.google.security.fences.inheritance.InheritanceGraph;
+import com.google.security.fences.namespace.Namespace;
+import com.google.security.fences.policy.AccessLevel;
+import com.google.security.fences.policy.ApiElement;
+import com.google.security.fences.policy.ApiElementType;
+import com.google.security.fences.policy.ApplicationOrderCache;
+import com.google.security.fences.policy.CompiledPolicy;
+import com.google.security.fences.policy.FencedClassIndex;
+import com.google.security.fences.policy.Policy;
+import com.google.security.fences.util.MisconfigurationException;
+
+import junit.framework.TestCase;
+
+@SuppressWarnings("javadoc")
+public final class DecisionCacheTest extends TestCase {
+
+  private static CheckerTest.Body call(final String owner) {
+    return new CheckerTest.Body() {
+      @Override
+      public void emit(MethodVisitor mv) {
+        mv.visitInsn(Opcodes.ACONST_NULL);
+        mv.visitMethodInsn(
+            Opcodes.INVOKEVIRTUAL, owner, "danger", "()V", false);
+      }
+    };
+  }
+
+  private static final CheckerTest.Body CONSTRUCT = new CheckerTest.Body() {
+    @Override
+    public void emit(MethodVisitor mv) {
+      mv.visitTypeInsn(Opcodes.NEW, "com/example/Fenced");
+      mv.visitInsn(Opcodes.DUP);
+      mv.visitMethodInsn(
+          Opcodes.INVOKESPECIAL, "com/example/Fenced", "<init>", "()V",
+          false);
+      mv.visitInsn(Opcodes.POP);
+    }
+  };
+
+  /** The number of violations the checker has found so far. */
+  private static int check(Checker checker, Artifact art, byte[] bytes)
+  throws MisconfigurationException {
+    ClassReader reader = new ClassReader(bytes);
+    reader.accept(checker.new ClassChecker(art, reader), 0);
+    return checker.getViolations().size();
+  }
+
+  public final void testDecisionsSharedAcrossMethodsAndClasses()
+  throws MisconfigurationException {
+    Log log = new SystemStreamLog();
+    Artifact art = CheckerTest.artifact();
+    Policy policy = CheckerTest.policy();
+    InheritanceGraph g = CheckerTest.graph();
+    CompiledPolicy compiled = CompiledPolicy.compile(policy);
+    FencedClassIndex fencedClasses = FencedClassIndex.build(policy, g);
+    ApplicationOrderCache orders = new ApplicationOrderCache(g);
+    DecisionCache decisions = new DecisionCache(compiled);
+
+    // Checkers for different class roots share the cache.
+    Checker first = new Checker(
+        log, g, compiled, fencedClasses, decisions, orders);
+    Checker second = new Checker(
+        log, g, compiled, fencedClasses, decisions, orders);
+
+    // The second method reuses the first's decision.
+    assertEquals(3, check(first, art, CheckerTest.userClass(
+        "org/user/CallsFenced",
+        call("com/example/Fenced"), call("com/example/Fenced"), CONSTRUCT)));
+    assertEquals(1, decisions.getHitCount());
+    assertEquals(2, decisions.getMissCount());
+
+    // A class in the same package reuses decisions, but a use via a
+    // sub-type is a different element.
+    assertEquals(2, check(second, art, CheckerTest.userClass(
+        "org/user/Other",
+        call("com/example/Fenced"), call("com/example/Sub"))));
+    assertEquals(2, decisions.getHitCount());
+    assertEquals(3, decisions.getMissCount());
+
+    // A class whose package has its own policy row does not.
+    assertEquals(2, check(second, art, CheckerTest.userClass(
+        "org/trusted/Friend", call("com/example/Fenced"))));
+    assertEquals(2, decisions.getHitCount());
+    assertEquals(4, decisions.getMissCount());
+
+    int userRow = compiled.rowId(
+        Namespace.fromInternalClassName("org/user/CallsFenced"));
+    int trustedRow = compiled.rowId(
+        Namespace.fromInternalClassName("org/trusted/Friend"));
+    assertEquals(
+        userRow,
+        compiled.rowId(Namespace.fromInternalClassName("org/user/Other")));
+    assertTrue(userRow != trustedRow);
+
+    ApiElement fenced = ApiElement.fromInternalClassName("com/example/Fenced");
+    ApiElement danger = fenced.child("danger", ApiElementType.METHOD);
+    ApiElement subDanger = ApiElement.fromInternalClassName("com/example/Sub")
+        .child("danger", ApiElementType.METHOD);
+    ApiElement init = fenced.child("<init>", ApiElementType.CONSTRUCTOR);
+
+    // Cached decisions are the ones a checker with empty caches would make.
+    Checker fresh = new Checker(
+        log, g, compiled, fencedClasses, new DecisionCache(compiled),
+        new ApplicationOrderCache(g));
+    int nCached = 0;
+    for (int row : new int[] { userRow, trustedRow }) {
+      for (ApiElement el : ImmutableList.of(danger, subDanger, init)) {
+        Checker.PolicyResult cached = decisions.get(row, el, "()V");
+        if (cached == null) {
+          continue;
+        }
+        ++nCached;
+        Checker.PolicyResult want = fresh.applyAccessPolicy(row, el, "()V");
+        String message = row + " -> " + el;
+        assertEquals(message, want.accessLevel, cached.accessLevel);
+        assertEquals(message, want.target, cached.target);
+        assertEquals(message, want.rationale.get(), cached.rationale.get());
+      }
+    }
+    assertEquals(4, nCached);
+    assertEquals(
+        AccessLevel.DISALLOWED,
+        decisions.get(userRow, danger, "()V").accessLevel);
+    assertEquals(
+        AccessLevel.ALLOWED,
+        decisions.get(trustedRow, danger, "()V").accessLevel);
+    // Decisions are per descriptor.
+    assertNull(decisions.get(userRow, danger, "(I)V"));
+  }
+}
@@ -0,0 +1,725 @@
+package com.google.security.fences.classpath;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+
+import org.apache.maven.artifact.Artifact;
+import org.apache.maven.artifact.DefaultArtifact;
+import org.apache.maven.artifact.handler.DefaultArtifactHandler;
+import org.apache.maven.artifact.versioning.VersionRange;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Opcodes;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.hash.HashFunction;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+import com.google.security.fences.inheritance.ClassNode;
+import com.google.security.fences.inheritance.InheritanceGraph;
+import com.google.security.fences.inheritance.InheritanceGraphExtractor;
+import com.google.security.fences.inheritance.UnreadableClassException;
+
+import junit.framework.TestCase;
+
+@SuppressWarnings("javadoc")
+public final class AbstractClassesVisitorTest extends TestCase {
+
+  private File tmpDir;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    tmpDir = Files.createTempDir();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    deleteRecursively(tmpDir);
+    super.tearDown();
+  }
+
+  static final class A {
+    // This class left intentionally blank.
+  }
+
+  static final class B {
+    // This class left intentionally blank.
+  }
+
+  static final class C {
+    // This class left intentionally blank.
+  }
+
+  static Artifact artifact(String artifactId) {
+    return new DefaultArtifact(
+        "com.example", artifactId, VersionRange.createFromVersion("1.0"),
+        Artifact.SCOPE_COMPILE, "jar", null,
+        new DefaultArtifactHandler("jar"));
+  }
+
+  static void deleteRecursively(File f) {
+    File[] children = f.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        deleteRecursively(child);
+      }
+    }
+    assertTrue(f.getPath(), f.delete());
+  }
+
+  /** Makes a directory class root containing the given classes. */
+  ClassRoot dirRoot(String artifactId, Class<?>... classes)
+  throws IOException {
+    File dir = new File(tmpDir, artifactId);
+    assertTrue(dir.mkdirs());
+    for (Class<?> cl : classes) {
+      String relPath = cl.getName().replace('.', '/') + ".class";
+      File classFile = new File(dir, relPath);
+      Files.createParentDirs(classFile);
+      InputStream in = cl.getResourceAsStream("/" + relPath);
+      try {
+        Files.write(ByteStreams.toByteArray(in), classFile);
+      } finally {
+        in.close();
+      }
+    }
+    return new ClassRoot(
+        artifact(artifactId), dir,
+        ClassRoot.ClassRootKind.BUILD_OUTPUT_DIRECTORY);
+  }
+
+  static byte[] trivialClass(String className) {
+    ClassWriter cw = new ClassWriter(0);
+    cw.visit(
+        Opcodes.V1_6, Opcodes.ACC_PUBLIC, className, null,
+        "java/lang/Object", null);
+    cw.visitEnd();
+    return cw.toByteArray();
+  }
+
+  /**
+   * Makes a directory class root containing trivial classes generated with
+   * the given internal names.
+   */
+  ClassRoot generatedDirRoot(String artifactId, Iterable<String> classNames)
+  throws IOException {
+    File dir = new File(tmpDir, artifactId);
+    for (String className : classNames) {
+      File classFile = new File(dir, className + ".class");
+      Files.createParentDirs(classFile);
+      Files.write(trivialClass(className), classFile);
+    }
+    return new ClassRoot(
+        artifact(artifactId), dir,
+        ClassRoot.ClassRootKind.BUILD_OUTPUT_DIRECTORY);
+  }
+
+  /**
+   * Makes an archive class root containing trivial classes generated with
+   * the given internal names.
+   */
+  ClassRoot jarRoot(String artifactId, Iterable<String> classNames)
+  throws IOException {
+    File jar = new File(tmpDir, artifactId + ".jar");
+    JarOutputStream out = new JarOutputStream(new FileOutputStream(jar));
+    try {
+      for (String className : classNames) {
+        out.putNextEntry(new JarEntry(className + ".class"));
+        out.write(trivialClass(className));
+        out.closeEntry();
+      }
+    } finally {
+      out.close();
+    }
+    return new ClassRoot(
+        artifact(artifactId), jar, ClassRoot.ClassRootKind.ZIPFILE);
+  }
+
+  private static class EventRecordingVisitor extends AbstractClassesVisitor {
+    final List<String> events = Lists.newArrayList();
+
+    @Override
+    protected ClassVisitor makeVisitorForClass(
+        ClassRoot root, String relPath, ClassReader r)
+    throws IOException {
+      events.add("class " + r.getClassName());
+      return new ClassVisitor(Opcodes.ASM5) {
+        // Visits nothing.
+      };
+    }
+
+    @Override
+    protected void startClassRoot(ClassRoot cr) {
+      events.add("start " + cr.art.getArtifactId());
+    }
+
+    @Override
+    protected void finishClassRoot(ClassRoot cr) {
+      events.add("finish " + cr.art.getArtifactId());
+    }
+
+    @Override
+    protected AbstractClassesVisitor forkForClassRoot(ClassRoot cr) {
+      return new EventRecordingVisitor();
+    }
+
+    @Override
+    protected void joinClassRoot(ClassRoot cr, AbstractClassesVisitor fork) {
+      events.addAll(((EventRecordingVisitor) fork).events);
+    }
+  }
+
+  public final void testParallelVisitJoinsInClassRootOrder()
+  throws IOException {
+    ImmutableList<ClassRoot> roots = ImmutableList.of(
+        dirRoot("one", A.class),
+        dirRoot("two", B.class),
+        dirRoot("three", C.class),
+        dirRoot("four"));
+
+    EventRecordingVisitor sequential = new EventRecordingVisitor();
+    sequential.visitAll(roots);
+
+    ForkJoinPool pool = new ForkJoinPool(4);
+    EventRecordingVisitor parallel = new EventRecordingVisitor();
+    try {
+      parallel.visitAll(roots, pool);
+    } finally {
+      pool.shutdown();
+    }
+
+    String prefix = "class " + getClass().getName().replace('.', '/');
+    assertEquals(
+        ImmutableList.of(
+            "start one",
+            prefix + "$A",
+            "finish one",
+            "start two",
+            prefix + "$B",
+            "finish two",
+            "start three",
+            prefix + "$C",
+            "finish three",
+            "start four",
+            "finish four"),
+        sequential.events);
+    assertEquals(sequential.events, parallel.events);
+  }
+
+  public final void testLargeArchiveIsSplitIntoChunks() throws IOException {
+    List<String> classNames = Lists.newArrayList();
+    for (int i = 0; i < 1000; ++i) {
+      classNames.add(String.format("com/example/C%04d", i));
+    }
+    ImmutableList<ClassRoot> roots = ImmutableList.of(
+        jarRoot("big", classNames),
+        dirRoot("small", A.class));
+
+    EventRecordingVisitor sequential = new EventRecordingVisitor();
+    sequential.visitAll(roots);
+
+    final AtomicInteger forkCount = new AtomicInteger();
+    EventRecordingVisitor parallel = new EventRecordingVisitor() {
+      @Override
+      protected AbstractClassesVisitor forkForClassRoot(ClassRoot cr) {
+        forkCount.incrementAndGet();
+        return super.forkForClassRoot(cr);
+      }
+    };
+    ForkJoinPool pool = new ForkJoinPool(4);
+    try {
+      parallel.visitAll(roots, pool);
+    } finally {
+      pool.shutdown();
+    }
+
+    assertEquals(1000 + 1 + 4, sequential.events.size());
+    assertEquals("start big", sequential.events.get(0));
+    assertEquals("class com/example/C0000", sequential.events.get(1));
+    assertEquals("finish big", sequential.events.get(1001));
+    assertEquals(sequential.events, parallel.events);
+    // 1000 entries in chunks of 128, and one for the directory.
+    assertEquals(8 + 1, forkCount.get());
+  }
+
+  public final void testChunksOfArchiveWithDuplicateEntryNames()
+  throws IOException {
+    List<String> classNames = Lists.newArrayList();
+    for (int i = 0; i < 300; ++i) {
+      classNames.add(String.format("com/example/C%04d", i));
+    }
+    // ZipOutputStream won't write two entries with the same name, so write
+    // one with a different name of the same length and rename it.
+    classNames.add("com/example/X0000");
+    ClassRoot root = jarRoot("dupes", classNames);
+    byte[] bytes = Files.toByteArray(root.classRoot);
+    byte[] from = "com/example/X0000.class".getBytes(Charsets.UTF_8);
+    byte[] to = "com/example/C0000.class".getBytes(Charsets.UTF_8);
+    int renamed = 0;
+    for (int i = 0; i + from.length <= bytes.length; ++i) {
+      if (Arrays.equals(from, Arrays.copyOfRange(bytes, i, i + from.length))) {
+        System.arraycopy(to, 0, bytes, i, to.length);
+        ++renamed;
+      }
+    }
+    // In the local header and the central directory.
+    assertEquals(2, renamed);
+    Files.write(bytes, root.classRoot);
+    ImmutableList<ClassRoot> roots = ImmutableList.of(root);
+
+    EventRecordingVisitor sequential = new EventRecordingVisitor();
+    sequential.visitAll(roots);
+
+    EventRecordingVisitor parallel = new EventRecordingVisitor();
+    ForkJoinPool pool = new ForkJoinPool(4);
+    try {
+      parallel.visitAll(roots, pool);
+    } finally {
+      pool.shutdown();
+    }
+
+    assertEquals(301 + 2, sequential.events.size());
+    assertEquals(
+        "class com/example/X0000",
+        sequential.events.get(sequential.events.size() - 2));
+    assertEquals(sequential.events, parallel.events);
+
+    // Each entry gets its own bytes back from the cache, not those of the
+    // last entry with the same name.
+    ClassBytesCache cache = new ClassBytesCache(1 << 20);
+    EventRecordingVisitor retaining = new EventRecordingVisitor();
+    retaining.retainClassBytes(cache);
+    retaining.visitAll(roots);
+    EventRecordingVisitor reusing = new EventRecordingVisitor();
+    reusing.reuseClassBytes(cache);
+    pool = new ForkJoinPool(4);
+    try {
+      reusing.visitAll(roots, pool);
+    } finally {
+      pool.shutdown();
+    }
+    assertEquals(sequential.events, reusing.events);
+    assertEquals(301, cache.getHitCount());
+    assertEquals(0, cache.getRetainedByteCount());
+  }
+
+  public final void testLargeDirectoryIsSplitIntoChunks() throws IOException {
+    List<String> classNames = Lists.newArrayList();
+    for (int i = 0; i < 500; ++i) {
+      classNames.add(String.format("com/example/p%d/C%04d", i % 7, i));
+    }
+    ImmutableList<ClassRoot> roots = ImmutableList.of(
+        generatedDirRoot("big", classNames));
+
+    EventRecordingVisitor sequential = new EventRecordingVisitor();
+    sequential.visitAll(roots);
+
+    final AtomicInteger forkCount = new AtomicInteger();
+    EventRecordingVisitor parallel = new EventRecordingVisitor() {
+      @Override
+      protected AbstractClassesVisitor forkForClassRoot(ClassRoot cr) {
+        forkCount.incrementAndGet();
+        return super.forkForClassRoot(cr);
+      }
+    };
+    ForkJoinPool pool = new ForkJoinPool(4);
+    try {
+      parallel.visitAll(roots, pool);
+    } finally {
+      pool.shutdown();
+    }
+
+    assertEquals(500 + 2, sequential.events.size());
+    assertEquals(
+        ImmutableSet.copyOf(classNames).size(),
+        ImmutableSet.copyOf(sequential.events).size() - 2);
+    assertEquals(sequential.events, parallel.events);
+    assertEquals(4, forkCount.get());
+  }
+
+  public final void testClassBytesReusedByLaterPass() throws IOException {
+    List<String> classNames = Lists.newArrayList();
+    for (int i = 0; i < 300; ++i) {
+      classNames.add(String.format("com/example/C%04d", i));
+    }
+    ImmutableList<ClassRoot> roots = ImmutableList.of(
+        jarRoot("big", classNames),
+        dirRoot("small", A.class));
+
+    ClassBytesCache cache = new ClassBytesCache(1 << 20);
+    EventRecordingVisitor first = new EventRecordingVisitor();
+    first.retainClassBytes(cache);
+    first.visitAll(roots);
+    // Only archived classes are retained.
+    assertTrue(cache.getRetainedByteCount() > 0);
+    assertEquals(0, cache.getHitCount());
+
+    EventRecordingVisitor second = new EventRecordingVisitor();
+    second.reuseClassBytes(cache);
+    ForkJoinPool pool = new ForkJoinPool(4);
+    try {
+      second.visitAll(roots, pool);
+    } finally {
+      pool.shutdown();
+    }
+    assertEquals(first.events, second.events);
+    assertEquals(300, cache.getHitCount());
+    assertEquals(0, cache.getRetainedByteCount());
+
+    // Nothing is retained when over budget.
+    ClassBytesCache tiny = new ClassBytesCache(10);
+    EventRecordingVisitor third = new EventRecordingVisitor();
+    third.retainClassBytes(tiny);
+    third.visitAll(roots);
+    assertEquals(0, tiny.getRetainedByteCount());
+    EventRecordingVisitor fourth = new EventRecordingVisitor();
+    fourth.reuseClassBytes(tiny);
+    fourth.visitAll(roots);
+    assertEquals(first.events, fourth.events);
+    assertEquals(0, tiny.getHitCount());
+
+    // Roots that won't be visited again can be dropped.
+    ClassBytesCache discarding = new ClassBytesCache(1 << 20);
+    EventRecordingVisitor fifth = new EventRecordingVisitor();
+    fifth.retainClassBytes(discarding);
+    fifth.visitAll(roots);
+    assertTrue(discarding.getRetainedByteCount() > 0);
+    discarding.discard(roots.get(0));
+    assertEquals(0, discarding.getRetainedByteCount());
+  }
+
+  private static byte[] jarBytes(Iterable<String> classNames)
+  throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    JarOutputStream out = new JarOutputStream(bytes);
+    try {
+      for (String className : classNames) {
+        out.putNextEntry(new JarEntry(className + ".class"));
+        out.write(trivialClass(className));
+        out.closeEntry();
+      }
+    } finally {
+      out.close();
+    }
+    return bytes.toByteArray();
+  }
+
+  public final void testNestedArchives() throws IOException {
+    byte[] stored = jarBytes(
+        ImmutableList.of("com/example/S1", "com/example/S2"));
+    byte[] deflated = jarBytes(ImmutableList.of("com/example/D1"));
+
+    File war = new File(tmpDir, "app.war");
+    JarOutputStream out = new JarOutputStream(new FileOutputStream(war));
+    try {
+      out.putNextEntry(new JarEntry("WEB-INF/classes/com/example/W.class"));
+      out.write(trivialClass("com/example/W"));
+      out.closeEntry();
+
+      JarEntry storedEntry = new JarEntry("WEB-INF/lib/stored.jar");
+      CRC32 crc = new CRC32();
+      crc.update(stored);
+      storedEntry.setMethod(ZipEntry.STORED);
+      storedEntry.setSize(stored.length);
+      storedEntry.setCrc(crc.getValue());
+      out.putNextEntry(storedEntry);
+      out.write(stored);
+      out.closeEntry();
+
+      out.putNextEntry(new JarEntry("WEB-INF/lib/deflated.jar"));
+      out.write(deflated);
+      out.closeEntry();
+    } finally {
+      out.close();
+    }
+
+    Artifact art = artifact("app");
+    ImmutableList<ClassRoot> roots = ImmutableList.of(
+        new ClassRoot(art, war, ClassRoot.ClassRootKind.ZIPFILE),
+        new ClassRoot(
+            art, war, ClassRoot.ClassRootKind.NESTED_ZIPFILE,
+            Optional.of("WEB-INF/lib/stored.jar")),
+        new ClassRoot(
+            art, war, ClassRoot.ClassRootKind.NESTED_ZIPFILE,
+            Optional.of("WEB-INF/lib/deflated.jar")));
+
+    EventRecordingVisitor v = new EventRecordingVisitor();
+    v.visitAll(roots);
+    assertEquals(
+        ImmutableList.of(
+            "start app", "class com/example/W", "finish app",
+            "start app", "class com/example/S1", "class com/example/S2",
+            "finish app",
+            "start app", "class com/example/D1", "finish app"),
+        v.events);
+
+    assertEquals(
+        "com/example/S2.class",
+        roots.get(1).readRelativePath(
+            "com/example/S2.class",
+            new ClassRoot.IOConsumer<InputStream, String>() {
+              @Override
+              public String consume(
+                  ClassRoot root, String relPath, InputStream is)
+              throws IOException {
+                return new ClassReader(is).getClassName() + ".class";
+              }
+            }));
+
+    // Nested archives are identified by their own content, not by anything
+    // the containing archive says about them.
+    HashFunction hf = ClassRoot.CONTENT_HASH_FUNCTION;
+    assertEquals(
+        Optional.of(Files.asByteSource(war).hash(hf)),
+        roots.get(0).contentHash());
+    assertEquals(Optional.of(hf.hashBytes(stored)), roots.get(1).contentHash());
+    ClassRoot deflatedRoot = roots.get(2);
+    assertEquals(
+        Optional.of(hf.hashBytes(deflated)), deflatedRoot.contentHash());
+
+    // Archives are mapped once and reused until released.
+    MappedArchive mappedWar = roots.get(0).tryOpenArchive();
+    assertNotNull(mappedWar);
+    assertSame(mappedWar, roots.get(0).tryOpenArchive());
+    roots.get(0).releaseArchive();
+    assertNotSame(mappedWar, roots.get(0).tryOpenArchive());
+    roots.get(0).releaseArchive();
+
+    // The deflated archive is inflated once and reused until released.
+    MappedArchive inflated = deflatedRoot.tryOpenArchive();
+    assertNotNull(inflated);
+    assertSame(inflated, deflatedRoot.tryOpenArchive());
+    deflatedRoot.releaseArchive();
+    MappedArchive reinflated = deflatedRoot.tryOpenArchive();
+    assertNotNull(reinflated);
+    assertNotSame(inflated, reinflated);
+  }
+
+  public final void testListPackages() throws IOException {
+    ClassRoot jar = jarRoot(
+        "packages",
+        ImmutableList.of(
+            "Top",
+            "com/example/A",
+            "com/example/B",
+            "com/example/sub/C",
+            "META-INF/versions/9/com/example/A",
+            "META-INF/versions/9/org/example/D"));
+    assertEquals(
+        Optional.of(ImmutableSet.of(
+            "", "com/example", "com/example/sub", "org/example")),
+        jar.listPackages());
+
+    ClassRoot repackaged = jarRoot(
+        "repackaged", ImmutableList.of("BOOT-INF/classes/com/example/A"));
+    assertEquals(
+        Optional.<ImmutableSet<String>>absent(),
+        repackaged.listPackages());
+  }
+
+  public final void testIndexClassFiles() throws IOException {
+    ClassRoot jar = jarRoot(
+        "indexed",
+        ImmutableList.of(
+            "Top",
+            "com/example/A",
+            "com/example/A$B",
+            "META-INF/versions/9/com/example/A",
+            "META-INF/versions/9/org/example/D"));
+    Optional<ClassFileIndex> index = jar.indexClassFiles();
+    assertTrue(index.isPresent());
+    assertEquals(
+        ImmutableMap.of(
+            "Top", "Top.class",
+            "com/example/A", "com/example/A.class",
+            "com/example/A$B", "com/example/A$B.class",
+            "org/example/D", "META-INF/versions/9/org/example/D.class"),
+        index.get().classFiles());
+    assertEquals(
+        "com/example/A$B",
+        index.get().read("com/example/A$B.class").getClassName());
+
+    ClassRoot dir = generatedDirRoot(
+        "indexedDir", ImmutableList.of("com/example/C"));
+    Optional<ClassFileIndex> dirIndex = dir.indexClassFiles();
+    assertTrue(dirIndex.isPresent());
+    assertEquals(
+        ImmutableMap.of("com/example/C", "com/example/C.class"),
+        dirIndex.get().classFiles());
+    assertEquals(
+        "com/example/C",
+        dirIndex.get().read("com/example/C.class").getClassName());
+
+    ClassRoot repackaged = jarRoot(
+        "repackagedIndex",
+        ImmutableList.of("BOOT-INF/classes/com/example/A"));
+    assertEquals(
+        Optional.<ClassFileIndex>absent(), repackaged.indexClassFiles());
+  }
+
+  public final void testLazyInheritanceGraphMatchesEager()
+  throws IOException {
+    // The directory declares a/Masked with a different super-type, but the
+    // archive comes first on the class path.
+    File dir = new File(tmpDir, "masked");
+    File maskedFile = new File(dir, "a/Masked.class");
+    Files.createParentDirs(maskedFile);
+    ClassWriter cw = new ClassWriter(0);
+    cw.visit(
+        Opcodes.V1_6, Opcodes.ACC_PUBLIC, "a/Masked", null, "a/Base", null);
+    cw.visitEnd();
+    Files.write(cw.toByteArray(), maskedFile);
+
+    ImmutableList<ClassRoot> roots = ImmutableList.of(
+        jarRoot("first", ImmutableList.of("a/Masked", "a/Base")),
+        new ClassRoot(
+            artifact("masked"), dir,
+            ClassRoot.ClassRootKind.BUILD_OUTPUT_DIRECTORY),
+        dirRoot("classes", A.class, B.class),
+        // Not indexable so extracted eagerly.
+        jarRoot("repackaged", ImmutableList.of("BOOT-INF/classes/b/C")));
+
+    InheritanceGraph eager = InheritanceGraphExtractor.fromClassRoots(roots);
+    InheritanceGraph lazy = InheritanceGraphExtractor.lazilyFromClassRoots(
+        roots);
+    assertFalse(eager.isLazy());
+    assertTrue(lazy.isLazy());
+
+    ImmutableList<String> names = ImmutableList.copyOf(
+        eager.allDeclaredNames());
+    assertEquals(names, ImmutableList.copyOf(lazy.allDeclaredNames()));
+    assertEquals(
+        Optional.of("java/lang/Object"),
+        lazy.named("a/Masked").get().superType);
+    // Sub-types are known once parsed.
+    assertTrue(lazy.directSubTypes("java/lang/Object").contains("a/Masked"));
+    assertFalse(lazy.directSubTypes("java/lang/Object").contains("a/Base"));
+    assertTrue(lazy.directSubTypes("a/Base").isEmpty());
+    for (String name : names) {
+      ClassNode want = eager.named(name).get();
+      ClassNode got = lazy.named(name).get();
+      assertEquals(name, want.superType, got.superType);
+      assertEquals(name, want.outerClass, got.outerClass);
+      assertEquals(name, want.interfaces, got.interfaces);
+      assertEquals(name, want.access, got.access);
+      assertEquals(
+          name, want.methods.toString(), got.methods.toString());
+      assertEquals(name, want.fields.toString(), got.fields.toString());
+    }
+    assertFalse(lazy.named("a/Missing").isPresent());
+  }
+
+  public final void testUnreadableClassInLazyInheritanceGraph()
+  throws IOException {
+    ClassRoot root = generatedDirRoot(
+        "corrupt", ImmutableList.of("a/Corrupt", "a/Fine"));
+    InheritanceGraph lazy = InheritanceGraphExtractor.lazilyFromClassRoots(
+        ImmutableList.of(root));
+    // Corrupt the class file after it has been indexed.
+    Files.write(
+        "Not a class".getBytes(Charsets.UTF_8),
+        new File(root.classRoot, "a/Corrupt.class"));
+
+    assertTrue(lazy.named("a/Fine").isPresent());
+    try {
+      lazy.named("a/Corrupt");
+      fail();
+    } catch (UnreadableClassException ex) {
+      assertTrue(ex.getMessage(), ex.getMessage().contains("a/Corrupt.class"));
+    }
+  }
+
+  public final void testMisfiledClassInLazyInheritanceGraph()
+  throws IOException {
+    // The first root's a/Misfiled.class declares a different class, so a
+    // later root's a/Misfiled.class provides the class.
+    ClassRoot misfiled = generatedDirRoot(
+        "misfiled", ImmutableList.<String>of());
+    File misfiledFile = new File(misfiled.classRoot, "a/Misfiled.class");
+    Files.createParentDirs(misfiledFile);
+    Files.write(trivialClass("a/Other"), misfiledFile);
+
+    File dir = new File(tmpDir, "filed");
+    File filedFile = new File(dir, "a/Misfiled.class");
+    Files.createParentDirs(filedFile);
+    ClassWriter cw = new ClassWriter(0);
+    cw.visit(
+        Opcodes.V1_6, Opcodes.ACC_PUBLIC, "a/Misfiled", null, "a/Base", null);
+    cw.visitEnd();
+    Files.write(cw.toByteArray(), filedFile);
+
+    InheritanceGraph lazy = InheritanceGraphExtractor.lazilyFromClassRoots(
+        ImmutableList.of(
+            misfiled,
+            new ClassRoot(
+                artifact("filed"), dir,
+                ClassRoot.ClassRootKind.BUILD_OUTPUT_DIRECTORY)));
+
+    Optional<ClassNode> node = lazy.named("a/Misfiled");
+    assertTrue(node.isPresent());
+    assertEquals(Optional.of("a/Base"), node.get().superType);
+    assertEquals(ImmutableList.of("a/Misfiled"), lazy.directSubTypes("a/Base"));
+    assertTrue(lazy.directSubTypes("java/lang/Object").isEmpty());
+  }
+
+  public final void testChunkSize() {
+    assertEquals(
+        AbstractClassesVisitor.MIN_CHUNK_SIZE,
+        AbstractClassesVisitor.chunkSize(10, 4));
+    assertEquals(
+        AbstractClassesVisitor.MIN_CHUNK_SIZE,
+        AbstractClassesVisitor.chunkSize(1000, 4));
+    assertEquals(625, AbstractClassesVisitor.chunkSize(10000, 4));
+    assertEquals(626, AbstractClassesVisitor.chunkSize(10001, 4));
+  }
+
+  public final void testFailureOnWorkerIsRethrown() throws IOException {
+    ImmutableList<ClassRoot> roots = ImmutableList.of(
+        dirRoot("one", A.class),
+        dirRoot("two", B.class));
+
+    AbstractClassesVisitor failing = new EventRecordingVisitor() {
+      @Override
+      protected AbstractClassesVisitor forkForClassRoot(ClassRoot cr) {
+        return new EventRecordingVisitor() {
+          @Override
+          protected ClassVisitor makeVisitorForClass(
+              ClassRoot root, String relPath, ClassReader r)
+          throws IOException {
+            throw new IOException("Failed on " + root.art.getArtifactId());
+          }
+        };
+      }
+    };
+
+    ForkJoinPool pool = new ForkJoinPool(2);
+    try {
+      failing.visitAll(roots, pool);
+      fail("Expected IOException");
+    } catch (IOException ex) {
+      // The first root's failure is reported regardless of which worker
+      // finished first.
+      assertEquals("Failed on one", ex.getMessage());
+    } finally {
+      pool.shutdown();
+    }
+  }
+}
@@ -0,0 +1,149 @@
+package com.google.security.fences.classpath;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.maven.artifact.Artifact;
+import org.apache.maven.artifact.DefaultArtifact;
+import org.apache.maven.artifact.handler.DefaultArtifactHandler;
+import org.apache.maven.artifact.repository.ArtifactRepository;
+import org.apache.maven.artifact.resolver.ArtifactResolver;
+import org.apache.maven.artifact.versioning.VersionRange;
+import org.apache.maven.plugin.logging.SystemStreamLog;
+import org.apache.maven.shared.dependency.tree.DependencyTreeBuilder;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+import com.google.security.fences.util.MisconfigurationException;
+
+import junit.framework.TestCase;
+
+@SuppressWarnings("javadoc")
+public final class ArtifactFinderTest extends TestCase {
+
+  private File tmpDir;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    tmpDir = Files.createTempDir();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    AbstractClassesVisitorTest.deleteRecursively(tmpDir);
+    super.tearDown();
+  }
+
+  /** addZipClassRoot doesn't resolve anything. */
+  private static <T> T unused(Class<T> iface) {
+    return iface.cast(Proxy.newProxyInstance(
+        iface.getClassLoader(), new Class<?>[] { iface },
+        new InvocationHandler() {
+          @Override
+          public Object invoke(Object proxy, Method m, Object[] args) {
+            throw new UnsupportedOperationException(m.getName());
+          }
+        }));
+  }
+
+  private static ArtifactFinder finder() {
+    return new ArtifactFinder(
+        unused(ArtifactResolver.class),
+        unused(DependencyTreeBuilder.class),
+        unused(ArtifactRepository.class),
+        ImmutableList.<ArtifactRepository>of(),
+        new SystemStreamLog());
+  }
+
+  private static Artifact artifact(String type, File file) {
+    Artifact art = new DefaultArtifact(
+        "com.example", "example", VersionRange.createFromVersion("1.0"),
+        Artifact.SCOPE_COMPILE, type, null,
+        new DefaultArtifactHandler(type));
+    art.setFile(file);
+    return art;
+  }
+
+  private static List<String> describe(List<ClassRoot> roots) {
+    List<String> descriptions = Lists.newArrayList();
+    for (ClassRoot root : roots) {
+      descriptions.add(
+          root.kind + (root.pathInArchive.isPresent()
+                       ? " " + root.pathInArchive.get() : ""));
+    }
+    return descriptions;
+  }
+
+  /** A WAR-like archive with a stored, empty library under WEB-INF/lib. */
+  private File bundlingArchive(String name) throws IOException {
+    File f = new File(tmpDir, name);
+    ZipOutputStream out = new ZipOutputStream(new FileOutputStream(f));
+    try {
+      ZipEntry e = new ZipEntry("WEB-INF/lib/lib.jar");
+      e.setMethod(ZipEntry.STORED);
+      e.setSize(0);
+      e.setCrc(new CRC32().getValue());
+      out.putNextEntry(e);
+      out.closeEntry();
+    } finally {
+      out.close();
+    }
+    return f;
+  }
+
+  public final void testPomTypedDependency() throws Exception {
+    File pom = new File(tmpDir, "example-1.0.pom");
+    Files.write(
+        "<project><modelVersion>4.0.0</modelVersion></project>",
+        pom, Charsets.UTF_8);
+
+    ArtifactFinder finder = finder();
+    finder.addZipClassRoot(artifact("pom", pom));
+    ImmutableList<ClassRoot> roots = finder.getClassRoots();
+    assertEquals(ImmutableList.of("ZIPFILE"), describe(roots));
+    assertTrue(
+        roots.get(0).listPathsMatching(ClassRoot.IS_CLASS_FILE).isEmpty());
+  }
+
+  public final void testNestedLibrariesOnlyInTypesThatBundleThem()
+  throws Exception {
+    File archive = bundlingArchive("example-1.0.war");
+
+    ArtifactFinder finder = finder();
+    finder.addZipClassRoot(artifact("war", archive));
+    assertEquals(
+        ImmutableList.of("ZIPFILE", "NESTED_ZIPFILE WEB-INF/lib/lib.jar"),
+        describe(finder.getClassRoots()));
+
+    finder = finder();
+    finder.addZipClassRoot(artifact("test-jar", archive));
+    assertEquals(
+        ImmutableList.of("ZIPFILE"), describe(finder.getClassRoots()));
+  }
+
+  public final void testUnreadableArchive() throws Exception {
+    // A directory where a file is expected can't be listed.
+    File notAFile = new File(tmpDir, "example-1.0.war");
+    assertTrue(notAFile.mkdir());
+
+    ArtifactFinder finder = finder();
+    try {
+      finder.addZipClassRoot(artifact("war", notAFile));
+    } catch (MisconfigurationException ex) {
+      fail(ex.toString());
+    }
+    assertEquals(
+        ImmutableList.of("ZIPFILE"), describe(finder.getClassRoots()));
+  }
+}
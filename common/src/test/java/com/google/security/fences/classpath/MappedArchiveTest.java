@@ -0,0 +1,244 @@
+package com.google.security.fences.classpath;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+
+import junit.framework.TestCase;
+
+@SuppressWarnings("javadoc")
+public final class MappedArchiveTest extends TestCase {
+
+  private File zip;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    zip = File.createTempFile("mapped-archive-test", ".zip");
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    assertTrue(zip.delete());
+    super.tearDown();
+  }
+
+  private static byte[] content(String seed, int repetitions) {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < repetitions; ++i) {
+      sb.append(seed).append(i);
+    }
+    return sb.toString().getBytes(Charsets.UTF_8);
+  }
+
+  private void writeZip(String[] names, byte[][] contents, boolean[] stored)
+  throws IOException {
+    ZipOutputStream out = new ZipOutputStream(new FileOutputStream(zip));
+    try {
+      out.setComment("Comments precede the end of central directory record");
+      for (int i = 0; i < names.length; ++i) {
+        ZipEntry e = new ZipEntry(names[i]);
+        if (stored[i]) {
+          CRC32 crc = new CRC32();
+          crc.update(contents[i]);
+          e.setMethod(ZipEntry.STORED);
+          e.setSize(contents[i].length);
+          e.setCrc(crc.getValue());
+        }
+        out.putNextEntry(e);
+        out.write(contents[i]);
+        out.closeEntry();
+      }
+    } finally {
+      out.close();
+    }
+  }
+
+  public final void testStoredAndDeflatedEntries() throws IOException {
+    String[] names = {
+        "dir/", "dir/Stored.class", "dir/Deflated.class", "Empty.class",
+        "dir/été.class",
+    };
+    byte[][] contents = {
+        new byte[0], content("stored", 100), content("deflated", 10000),
+        new byte[0], content("summer", 3),
+    };
+    boolean[] stored = { true, true, false, false, false };
+    writeZip(names, contents, stored);
+
+    MappedArchive archive = MappedArchive.tryOpen(zip);
+    assertNotNull(archive);
+
+    List<String> entryNames = Lists.newArrayList();
+    for (MappedArchive.Entry e : archive.entries()) {
+      entryNames.add(e.name);
+    }
+    assertEquals(Arrays.asList(names), entryNames);
+    assertTrue(archive.entries().get(0).isDirectory());
+
+    MappedArchive.Scratch scratch = MappedArchive.Scratch.acquire();
+    try {
+      // Read in an order different from that in the archive.
+      for (int i : ImmutableList.of(2, 4, 1, 3, 2)) {
+        MappedArchive.Entry e = archive.getEntry(names[i]);
+        assertNotNull(names[i], e);
+        int n = archive.read(e, scratch);
+        assertEquals(
+            names[i],
+            Arrays.toString(contents[i]),
+            Arrays.toString(Arrays.copyOf(scratch.out, n)));
+      }
+    } finally {
+      scratch.release();
+    }
+
+    assertNull(archive.getEntry("NoSuch.class"));
+  }
+
+  /** The position of the end of central directory record. */
+  private static int endRecord(byte[] bytes) {
+    for (int i = bytes.length - 22; i >= 0; --i) {
+      if (bytes[i] == 0x50 && bytes[i + 1] == 0x4b
+          && bytes[i + 2] == 0x05 && bytes[i + 3] == 0x06) {
+        return i;
+      }
+    }
+    throw new AssertionError("No end record");
+  }
+
+  public final void testEntryCountThatWrapped() throws IOException {
+    int n = 0x10000 + 10;
+    ZipOutputStream out = new ZipOutputStream(new FileOutputStream(zip));
+    try {
+      for (int i = 0; i < n; ++i) {
+        out.putNextEntry(new ZipEntry("e" + i));
+        out.closeEntry();
+      }
+    } finally {
+      out.close();
+    }
+    // Mimic tools that let the 16-bit counts wrap instead of using ZIP64.
+    byte[] bytes = Files.toByteArray(zip);
+    int end = endRecord(bytes);
+    for (int off : new int[] { 8, 10 }) {
+      bytes[end + off] = (byte) n;
+      bytes[end + off + 1] = (byte) (n >> 8);
+    }
+    Files.write(bytes, zip);
+
+    MappedArchive archive = MappedArchive.tryOpen(zip);
+    assertNotNull(archive);
+    assertEquals(n, archive.entries().size());
+    assertEquals("e" + (n - 1), archive.entries().get(n - 1).name);
+  }
+
+  public final void testTruncatedCentralDirectory() throws IOException {
+    writeZip(
+        new String[] { "A.class", "B.class" },
+        new byte[][] { content("a", 10), content("b", 10) },
+        new boolean[] { false, false });
+    byte[] bytes = Files.toByteArray(zip);
+    int end = endRecord(bytes);
+    int cdOffset = (bytes[end + 16] & 0xff) | ((bytes[end + 17] & 0xff) << 8);
+    // Make the first entry's name run past the end of the directory.
+    bytes[cdOffset + 28] = (byte) 0xff;
+    bytes[cdOffset + 29] = (byte) 0x7f;
+    Files.write(bytes, zip);
+    // Left to ZipFile.
+    assertNull(MappedArchive.tryOpen(zip));
+  }
+
+  public final void testPrependedLaunchScript() throws IOException {
+    String[] names = { "Stored.class", "Deflated.class" };
+    byte[][] contents = { content("stored", 100), content("deflated", 1000) };
+    writeZip(names, contents, new boolean[] { true, false });
+    // Spring Boot executable JARs start with a shell script, and the offsets
+    // in the archive are relative to the end of the script.
+    byte[] script = (
+        "#!/bin/bash\nexec java -jar \"$0\" \"$@\"\nexit 0\n")
+        .getBytes(Charsets.UTF_8);
+    byte[] archiveBytes = Files.toByteArray(zip);
+    byte[] bytes = new byte[script.length + archiveBytes.length];
+    System.arraycopy(script, 0, bytes, 0, script.length);
+    System.arraycopy(
+        archiveBytes, 0, bytes, script.length, archiveBytes.length);
+    Files.write(bytes, zip);
+
+    MappedArchive archive = MappedArchive.tryOpen(zip);
+    assertNotNull(archive);
+    assertEquals(2, archive.entries().size());
+    MappedArchive.Scratch scratch = MappedArchive.Scratch.acquire();
+    try {
+      for (int i = 0; i < names.length; ++i) {
+        MappedArchive.Entry e = archive.getEntry(names[i]);
+        assertNotNull(names[i], e);
+        int n = archive.read(e, scratch);
+        assertEquals(
+            names[i],
+            Arrays.toString(contents[i]),
+            Arrays.toString(Arrays.copyOf(scratch.out, n)));
+      }
+    } finally {
+      scratch.release();
+    }
+  }
+
+  public final void testNotAnArchive() throws IOException {
+    FileOutputStream out = new FileOutputStream(zip);
+    try {
+      out.write(content("Not a zip", 100));
+    } finally {
+      out.close();
+    }
+    // Like a dependency of type pom, which has no classes.
+    MappedArchive archive = MappedArchive.tryOpen(zip);
+    assertNotNull(archive);
+    assertTrue(archive.entries().isEmpty());
+  }
+
+  public final void testEmptyFile() throws IOException {
+    Files.write(new byte[0], zip);
+    MappedArchive archive = MappedArchive.tryOpen(zip);
+    assertNotNull(archive);
+    assertTrue(archive.entries().isEmpty());
+  }
+
+  public final void testScratchPoolIsBounded() {
+    int n = MappedArchive.Scratch.MAX_POOLED_COUNT + 3;
+    List<MappedArchive.Scratch> scratches = Lists.newArrayList();
+    for (int i = 0; i < n; ++i) {
+      scratches.add(MappedArchive.Scratch.acquire());
+    }
+    // Grow one past the point where it's worth keeping.
+    scratches.get(0).ensureOutCapacity(
+        MappedArchive.Scratch.MAX_POOLED_BUFFER_SIZE + 1);
+    for (MappedArchive.Scratch s : scratches) {
+      s.release();
+    }
+    assertEquals(
+        MappedArchive.Scratch.MAX_POOLED_COUNT,
+        MappedArchive.Scratch.pooledCount());
+
+    scratches.clear();
+    for (int i = MappedArchive.Scratch.pooledCount(); --i >= 0;) {
+      MappedArchive.Scratch s = MappedArchive.Scratch.acquire();
+      assertTrue(s.in.length <= MappedArchive.Scratch.MAX_POOLED_BUFFER_SIZE);
+      assertTrue(
+          s.out.length <= MappedArchive.Scratch.MAX_POOLED_BUFFER_SIZE);
+      scratches.add(s);
+    }
+    for (MappedArchive.Scratch s : scratches) {
+      s.release();
+    }
+  }
+}
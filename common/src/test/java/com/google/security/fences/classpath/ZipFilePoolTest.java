@@ -0,0 +1,113 @@
+package com.google.security.fences.classpath;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.maven.artifact.DefaultArtifact;
+import org.apache.maven.artifact.handler.DefaultArtifactHandler;
+import org.apache.maven.artifact.versioning.VersionRange;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.io.ByteStreams;
+
+import junit.framework.TestCase;
+
+@SuppressWarnings("javadoc")
+public final class ZipFilePoolTest extends TestCase {
+
+  private final List<File> zips = Lists.newArrayList();
+
+  @Override
+  protected void tearDown() throws Exception {
+    for (File f : zips) {
+      assertTrue(f.delete());
+    }
+    super.tearDown();
+  }
+
+  private ClassRoot zipRoot(String name) throws IOException {
+    File f = File.createTempFile("zip-file-pool-test-" + name, ".jar");
+    zips.add(f);
+    ZipOutputStream out = new ZipOutputStream(new FileOutputStream(f));
+    try {
+      out.putNextEntry(new ZipEntry("META-INF/name.txt"));
+      out.write(name.getBytes(Charsets.UTF_8));
+      out.closeEntry();
+    } finally {
+      out.close();
+    }
+    return new ClassRoot(
+        new DefaultArtifact(
+            "com.example", name, VersionRange.createFromVersion("1.0"),
+            "compile", "jar", null, new DefaultArtifactHandler("jar")),
+        f, ClassRoot.ClassRootKind.ZIPFILE);
+  }
+
+  private static final ClassRoot.IOConsumer<InputStream, String> READ_STRING =
+      new ClassRoot.IOConsumer<InputStream, String>() {
+        @Override
+        public String consume(ClassRoot root, String relPath, InputStream is)
+        throws IOException {
+          return new String(ByteStreams.toByteArray(is), Charsets.UTF_8);
+        }
+      };
+
+  public final void testLeastRecentlyUsedIsClosed() throws IOException {
+    ClassRoot a = zipRoot("a");
+    ClassRoot b = zipRoot("b");
+    ClassRoot c = zipRoot("c");
+
+    ZipFilePool pool = new ZipFilePool(2);
+    try {
+      assertEquals(
+          "a", a.readRelativePath("META-INF/name.txt", pool, READ_STRING));
+      assertEquals(
+          "b", b.readRelativePath("META-INF/name.txt", pool, READ_STRING));
+      assertEquals(
+          "a", a.readRelativePath("META-INF/name.txt", pool, READ_STRING));
+      assertEquals(2, pool.getMissCount());
+      assertEquals(1, pool.getHitCount());
+
+      // Evicts b which was used less recently than a.
+      assertEquals(
+          "c", c.readRelativePath("META-INF/name.txt", pool, READ_STRING));
+      assertEquals(2, pool.getOpenCount());
+      assertEquals(
+          "a", a.readRelativePath("META-INF/name.txt", pool, READ_STRING));
+      assertEquals(2, pool.getHitCount());
+      assertEquals(
+          "b", b.readRelativePath("META-INF/name.txt", pool, READ_STRING));
+      assertEquals(4, pool.getMissCount());
+      assertEquals(2, pool.getOpenCount());
+    } finally {
+      pool.close();
+    }
+    assertEquals(0, pool.getOpenCount());
+  }
+
+  public final void testInUseArchiveIsNotClosed() throws IOException {
+    ClassRoot a = zipRoot("a");
+    ClassRoot b = zipRoot("b");
+
+    ZipFilePool pool = new ZipFilePool(1);
+    try {
+      ZipFilePool.Handle ha = pool.acquire(a.classRoot);
+      // Over the cap, but a is still being read.
+      ZipFilePool.Handle hb = pool.acquire(b.classRoot);
+      assertEquals(2, pool.getOpenCount());
+      assertNotNull(ha.zipFile.getEntry("META-INF/name.txt"));
+      pool.release(ha);
+      assertEquals(1, pool.getOpenCount());
+      assertNotNull(hb.zipFile.getEntry("META-INF/name.txt"));
+      pool.release(hb);
+    } finally {
+      pool.close();
+    }
+  }
+}
@@ -0,0 +1,49 @@
+package com.google.security.fences.inheritance;
+
+import org.objectweb.asm.Opcodes;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+
+import junit.framework.TestCase;
+
+@SuppressWarnings("javadoc")
+public final class ClassNodeTest extends TestCase {
+
+  public final void testMemberLookup() {
+    MethodDetails runInt = new MethodDetails(
+        "run", "(I)V", Opcodes.ACC_PUBLIC);
+    MethodDetails runLong = new MethodDetails(
+        "run", "(J)V", Opcodes.ACC_PRIVATE);
+    MethodDetails stop = new MethodDetails(
+        "stop", "()V", Opcodes.ACC_PUBLIC);
+    FieldDetails privateX = new FieldDetails("x", Opcodes.ACC_PRIVATE);
+    FieldDetails y = new FieldDetails("y", Opcodes.ACC_PUBLIC);
+    ClassNode cn = new ClassNode(
+        "com/example/Foo", Opcodes.ACC_PUBLIC,
+        Optional.of("java/lang/Object"), Optional.<String>absent(),
+        ImmutableList.<String>of(),
+        ImmutableList.of(runInt, runLong, stop),
+        ImmutableList.of(privateX, y));
+
+    assertEquals(Optional.of(runInt), cn.getMethod("run", "(I)V"));
+    assertEquals(Optional.of(runLong), cn.getMethod("run", "(J)V"));
+    assertEquals(Optional.of(stop), cn.getMethod("stop", "()V"));
+    assertEquals(
+        Optional.<MethodDetails>absent(), cn.getMethod("run", "()V"));
+    assertEquals(
+        Optional.<MethodDetails>absent(), cn.getMethod("(I)V", "run"));
+
+    assertFalse(cn.isMethodVisibleThrough("run", "(I)V"));
+    // Private methods do not mask.
+    assertTrue(cn.isMethodVisibleThrough("run", "(J)V"));
+    assertTrue(cn.isMethodVisibleThrough("go", "()V"));
+
+    assertEquals(Optional.of(privateX), cn.getField("x"));
+    assertEquals(Optional.of(y), cn.getField("y"));
+    assertEquals(Optional.<FieldDetails>absent(), cn.getField("z"));
+    assertTrue(cn.isFieldVisibleThrough("x"));
+    assertFalse(cn.isFieldVisibleThrough("y"));
+    assertTrue(cn.isFieldVisibleThrough("z"));
+  }
+}
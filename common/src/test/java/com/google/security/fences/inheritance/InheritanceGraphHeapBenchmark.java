@@ -0,0 +1,207 @@
+package com.google.security.fences.inheritance;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.MemoryUsage;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+
+import org.objectweb.asm.Opcodes;
+
+import com.google.common.base.Function;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.sun.management.GarbageCollectionNotificationInfo;
+
+/**
+ * Measures the heap retained by an inheritance graph for a synthetic class
+ * path with 250k classes, with and without
+ * {@linkplain PackedDeclaredClasses packing}, and the peak heap used while
+ * declaring classes and building the graph from them, which is what decides
+ * whether a build runs out of memory.
+ * <p>
+ * The peak is the most heap in use after any collection.  Full collections
+ * are forced every few milliseconds while building so that it is close to
+ * the most live data at any one time.
+ * <p>
+ * This is not run as part of the test suite.  Run it via
+ * {@code java -Xmx4g -cp <test-classpath> ...InheritanceGraphHeapBenchmark}.
+ */
+@SuppressWarnings("javadoc")
+public final class InheritanceGraphHeapBenchmark {
+  private static final int CLASS_COUNT = 250000;
+  private static final int CLASSES_PER_PACKAGE = 50;
+  private static final int METHODS_PER_CLASS = 12;
+  private static final int FIELDS_PER_CLASS = 4;
+  private static final int LOOKUPS = 1000000;
+  private static final long SAMPLE_INTERVAL_MILLIS = 20;
+
+  private static final String[] METHOD_NAMES = {
+    "get", "set", "toString", "hashCode", "equals", "run", "call", "apply",
+    "build", "visit", "accept", "close", "size", "isEmpty", "iterator",
+  };
+  private static final String[] DESCRIPTORS = {
+    "()V", "()I", "()Z", "()Ljava/lang/String;", "(Ljava/lang/Object;)Z",
+    "(I)Ljava/lang/Object;", "(Ljava/lang/String;I)V", "()Ljava/util/List;",
+  };
+
+  public static void main(String... argv) {
+    for (boolean packed : new boolean[] { false, true, false, true }) {
+      measure(packed);
+    }
+  }
+
+  private static void measure(boolean packed) {
+    long before = usedHeap();
+    resetPeakHeap();
+    InheritanceGraph.Builder b = syntheticBuilder();
+    long declared = usedHeap() - before;
+    Thread sampler = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        while (!Thread.currentThread().isInterrupted()) {
+          System.gc();
+          try {
+            Thread.sleep(SAMPLE_INTERVAL_MILLIS);
+          } catch (@SuppressWarnings("unused") InterruptedException ex) {
+            return;
+          }
+        }
+      }
+    });
+    sampler.start();
+    InheritanceGraph g = b.build(packed);
+    b = null;
+    sampler.interrupt();
+    try {
+      sampler.join();
+    } catch (InterruptedException ex) {
+      throw new AssertionError(ex);
+    }
+    long peak = peakHeap() - before;
+    long after = usedHeap();
+    long bytes = after - before;
+
+    long nanosBefore = System.nanoTime();
+    long checksum = 0;
+    for (int i = 0; i < LOOKUPS; ++i) {
+      String name = className((int) ((i * 7919L) % CLASS_COUNT));
+      ClassNode node = g.named(name).get();
+      checksum += node.methods.size();
+    }
+    long nanos = System.nanoTime() - nanosBefore;
+
+    System.out.println(
+        (packed ? "packed:   " : "unpacked: ")
+        + (bytes >> 20) + " MB, " + (bytes / CLASS_COUNT) + " bytes/class, "
+        + "declared " + (declared >> 20) + " MB, "
+        + "peak " + (peak >> 20) + " MB, "
+        + (nanos / LOOKUPS) + " ns/lookup, checksum " + checksum);
+  }
+
+  private static String className(int i) {
+    return "com/example/p" + (i / CLASSES_PER_PACKAGE) + "/C" + i;
+  }
+
+  private static InheritanceGraph.Builder syntheticBuilder() {
+    InheritanceGraph.Builder b = InheritanceGraph.builder(
+        new Function<String, ClassNode>() {
+          @Override
+          public ClassNode apply(String name) {
+            return null;
+          }
+        });
+    for (int i = 0; i < CLASS_COUNT; ++i) {
+      // Build strings afresh as a class file parser would so that equal
+      // strings from different classes are not the same object.
+      int inPackage = i % CLASSES_PER_PACKAGE;
+      String superName = inPackage == 0
+          ? new String("java/lang/Object")
+          : className(i - 1);
+      ImmutableList.Builder<MethodDetails> methods = ImmutableList.builder();
+      for (int j = 0; j < METHODS_PER_CLASS; ++j) {
+        methods.add(new MethodDetails(
+            new String(METHOD_NAMES[(i + j) % METHOD_NAMES.length]),
+            new String(DESCRIPTORS[(i * 3 + j) % DESCRIPTORS.length]),
+            Opcodes.ACC_PUBLIC));
+      }
+      ImmutableList.Builder<FieldDetails> fields = ImmutableList.builder();
+      for (int j = 0; j < FIELDS_PER_CLASS; ++j) {
+        fields.add(new FieldDetails("f" + j, Opcodes.ACC_PRIVATE));
+      }
+      b.declare(className(i), Opcodes.ACC_PUBLIC)
+          .superClassName(Optional.of(superName))
+          .interfaceNames(ImmutableList.of(
+              new String("java/io/Serializable"),
+              className(i - inPackage) + "$Iface"))
+          .methods(methods.build())
+          .fields(fields.build())
+          .commit();
+    }
+    return b;
+  }
+
+  private static long usedHeap() {
+    MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+    for (int i = 0; i < 5; ++i) {
+      System.gc();
+    }
+    return memory.getHeapMemoryUsage().getUsed();
+  }
+
+  /**
+   * The largest heap in use right after any collection since the last call,
+   * so that garbage that a collection would have reclaimed is not counted.
+   */
+  private static final AtomicLong peakAfterCollection = new AtomicLong();
+  static {
+    for (GarbageCollectorMXBean gc
+         : ManagementFactory.getGarbageCollectorMXBeans()) {
+      ((NotificationEmitter) gc).addNotificationListener(
+          new NotificationListener() {
+            @Override
+            public void handleNotification(Notification n, Object handback) {
+              if (!GarbageCollectionNotificationInfo
+                  .GARBAGE_COLLECTION_NOTIFICATION.equals(n.getType())) {
+                return;
+              }
+              GarbageCollectionNotificationInfo info =
+                  GarbageCollectionNotificationInfo.from(
+                      (CompositeData) n.getUserData());
+              long used = 0;
+              for (MemoryUsage u
+                   : info.getGcInfo().getMemoryUsageAfterGc().values()) {
+                used += u.getUsed();
+              }
+              for (long peak; (peak = peakAfterCollection.get()) < used;) {
+                if (peakAfterCollection.compareAndSet(peak, used)) {
+                  break;
+                }
+              }
+            }
+          },
+          null, null);
+    }
+  }
+
+  private static void resetPeakHeap() {
+    peakAfterCollection.set(0);
+  }
+
+  /** The peak heap use since {@link #resetPeakHeap} seen by collections. */
+  private static long peakHeap() {
+    System.gc();
+    // Notifications are delivered asynchronously.
+    try {
+      Thread.sleep(500);
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
+    return peakAfterCollection.get();
+  }
+}
@@ -0,0 +1,169 @@
+package com.google.security.fences.inheritance;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.maven.plugin.logging.SystemStreamLog;
+import org.objectweb.asm.Opcodes;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.HashCode;
+import com.google.common.io.Files;
+
+import junit.framework.TestCase;
+
+@SuppressWarnings("javadoc")
+public final class InheritanceGraphSnapshotsTest extends TestCase {
+
+  private File tmpDir;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    tmpDir = Files.createTempDir();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    deleteRecursively(tmpDir);
+    super.tearDown();
+  }
+
+  private static void deleteRecursively(File f) {
+    File[] children = f.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        deleteRecursively(child);
+      }
+    }
+    assertTrue(f.getPath(), f.delete());
+  }
+
+  private static HashCode key(String s) {
+    return InheritanceGraphSnapshots.HASH_FUNCTION.hashString(
+        s, StandardCharsets.UTF_8);
+  }
+
+  private static String describe(ClassNode node) {
+    return node.name + " " + Integer.toHexString(node.access)
+        + " extends " + node.superType.orNull()
+        + " in " + node.outerClass.orNull()
+        + " implements " + node.interfaces
+        + " methods " + node.methods + " fields " + node.fields;
+  }
+
+  public final void testRoundTrip() {
+    InheritanceGraph.Builder b = InheritanceGraph.builder();
+    b.classContains("a/Outer", "a/Outer$Inner");
+    // Declared by a later class root.
+    b.classContains("b/Outer", "b/Outer$Inner");
+    b.declare("a/Outer", Opcodes.ACC_PUBLIC)
+        .interfaceNames(ImmutableList.of("java/io/Serializable"))
+        .methods(ImmutableList.of(
+            new MethodDetails("<init>", "()V", Opcodes.ACC_PUBLIC),
+            new MethodDetails("run", "(Ljava/lang/String;)V", 0)))
+        .fields(ImmutableList.of(
+            new FieldDetails("serialVersionUID", Opcodes.ACC_STATIC)))
+        .commit();
+    b.declare("a/Outer$Inner", Opcodes.ACC_STATIC)
+        .superClassName(Optional.of("a/Outer"))
+        .commit();
+
+    InheritanceGraphSnapshots snapshots = new InheritanceGraphSnapshots(
+        new File(tmpDir, "snapshots"), new SystemStreamLog());
+    assertFalse(snapshots.load(key("a.jar")).isPresent());
+    snapshots.store(key("a.jar"), b);
+    Optional<InheritanceGraph.Builder> loaded = snapshots.load(key("a.jar"));
+    assertTrue(loaded.isPresent());
+    assertEquals(1, snapshots.getHitCount());
+    assertEquals(1, snapshots.getMissCount());
+
+    InheritanceGraph.Builder later = InheritanceGraph.builder();
+    later.declare("b/Outer$Inner", Opcodes.ACC_PUBLIC).commit();
+    later.declare("a/Outer", Opcodes.ACC_PUBLIC | Opcodes.ACC_FINAL).commit();
+
+    InheritanceGraph.Builder want = InheritanceGraph.builder();
+    want.merge(b);
+    want.merge(later);
+    InheritanceGraph.Builder got = InheritanceGraph.builder();
+    got.merge(loaded.get());
+    got.merge(later);
+
+    InheritanceGraph wantGraph = want.build();
+    InheritanceGraph gotGraph = got.build();
+    assertEquals(
+        ImmutableList.of("a/Outer", "a/Outer$Inner", "b/Outer$Inner"),
+        ImmutableList.copyOf(gotGraph.allDeclaredNames()));
+    for (String name : wantGraph.allDeclaredNames()) {
+      assertEquals(
+          describe(wantGraph.named(name).get()),
+          describe(gotGraph.named(name).get()));
+    }
+    assertEquals(
+        Optional.of("b/Outer"),
+        gotGraph.named("b/Outer$Inner").get().outerClass);
+  }
+
+  public final void testUnreadableSnapshotIsReplaced() throws Exception {
+    File dir = new File(tmpDir, "snapshots");
+    assertTrue(dir.mkdirs());
+    Files.write(
+        "not a snapshot".getBytes(StandardCharsets.UTF_8),
+        new File(dir, key("a.jar") + ".snapshot"));
+
+    InheritanceGraphSnapshots snapshots = new InheritanceGraphSnapshots(
+        dir, new SystemStreamLog());
+    assertFalse(snapshots.load(key("a.jar")).isPresent());
+
+    InheritanceGraph.Builder b = InheritanceGraph.builder();
+    b.declare("a/A", Opcodes.ACC_PUBLIC).commit();
+    snapshots.store(key("a.jar"), b);
+    Optional<InheritanceGraph.Builder> loaded = snapshots.load(key("a.jar"));
+    assertTrue(loaded.isPresent());
+    assertTrue(loaded.get().build().named("a/A").isPresent());
+    // Only the snapshot remains.
+    assertEquals(1, dir.listFiles().length);
+  }
+
+  public final void testPruneDeletesUnusedSnapshots() throws Exception {
+    File dir = new File(tmpDir, "snapshots");
+    InheritanceGraphSnapshots snapshots = new InheritanceGraphSnapshots(
+        dir, new SystemStreamLog());
+    InheritanceGraph.Builder b = InheritanceGraph.builder();
+    b.declare("a/A", Opcodes.ACC_PUBLIC).commit();
+    snapshots.store(key("used.jar"), b);
+    snapshots.store(key("unused.jar"), b);
+    snapshots.store(key("fresh.jar"), b);
+    File stale = new File(dir, "died-while-storing.tmp");
+    Files.write(new byte[] { 1, 2, 3 }, stale);
+    File other = new File(dir, "README");
+    Files.write(new byte[0], other);
+
+    long old = System.currentTimeMillis()
+        - InheritanceGraphSnapshots.MAX_UNUSED_MILLIS - 60000;
+    for (File f : dir.listFiles()) {
+      if (!f.getName().startsWith(key("fresh.jar").toString())) {
+        assertTrue(f.getPath(), f.setLastModified(old));
+      }
+    }
+    // Loading marks a snapshot used.
+    assertTrue(snapshots.load(key("used.jar")).isPresent());
+
+    assertEquals(
+        2, snapshots.prune(InheritanceGraphSnapshots.MAX_UNUSED_MILLIS));
+    assertFalse(stale.exists());
+    assertTrue(other.exists());
+    assertTrue(snapshots.load(key("used.jar")).isPresent());
+    assertTrue(snapshots.load(key("fresh.jar")).isPresent());
+    assertFalse(snapshots.load(key("unused.jar")).isPresent());
+    assertEquals(
+        0, snapshots.prune(InheritanceGraphSnapshots.MAX_UNUSED_MILLIS));
+  }
+
+  public final void testPruneMissingDirectory() {
+    InheritanceGraphSnapshots snapshots = new InheritanceGraphSnapshots(
+        new File(tmpDir, "never-stored"), new SystemStreamLog());
+    assertEquals(0, snapshots.prune(0));
+  }
+}
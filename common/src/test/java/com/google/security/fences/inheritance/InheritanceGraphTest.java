@@ -0,0 +1,270 @@
+package com.google.security.fences.inheritance;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.objectweb.asm.Opcodes;
+
+import com.google.common.base.Function;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+import junit.framework.TestCase;
+
+@SuppressWarnings("javadoc")
+public final class InheritanceGraphTest extends TestCase {
+
+  public final void testConcurrentLookupsFetchOnce() throws Exception {
+    final AtomicInteger fetchCount = new AtomicInteger();
+    Function<String, ClassNode> fallback = new Function<String, ClassNode>() {
+      @Override
+      public ClassNode apply(String name) {
+        fetchCount.incrementAndGet();
+        if (!name.startsWith("sys/")) {
+          return null;
+        }
+        return new ClassNode(
+            name, Opcodes.ACC_PUBLIC, Optional.of("java/lang/Object"),
+            Optional.<String>absent(), ImmutableList.<String>of(),
+            ImmutableList.<MethodDetails>of(),
+            ImmutableList.<FieldDetails>of());
+      }
+    };
+    final InheritanceGraph g = InheritanceGraph.builder(fallback)
+        .declare("com/example/Foo", Opcodes.ACC_PUBLIC)
+        .superClassName(Optional.of("sys/Base"))
+        .commit()
+        .build();
+
+    final int nThreads = 8;
+    final int nNames = 100;
+    ExecutorService executor = Executors.newFixedThreadPool(nThreads);
+    try {
+      List<Future<List<ClassNode>>> results = Lists.newArrayList();
+      for (int t = 0; t < nThreads; ++t) {
+        results.add(executor.submit(new Callable<List<ClassNode>>() {
+          @Override
+          public List<ClassNode> call() {
+            List<ClassNode> nodes = Lists.newArrayList();
+            for (int i = 0; i < nNames; ++i) {
+              nodes.add(g.named("sys/C" + i).get());
+              assertFalse(g.named("missing/C" + i).isPresent());
+              assertTrue(g.named("com/example/Foo").isPresent());
+            }
+            return nodes;
+          }
+        }));
+      }
+      List<ClassNode> first = results.get(0).get();
+      for (Future<List<ClassNode>> result : results) {
+        List<ClassNode> nodes = result.get();
+        for (int i = 0; i < nNames; ++i) {
+          assertSame(first.get(i), nodes.get(i));
+        }
+      }
+    } finally {
+      executor.shutdown();
+    }
+    // Each missing name was fetched once no matter how many threads asked.
+    assertEquals(nNames * 2, fetchCount.get());
+
+    assertEquals(
+        ImmutableList.of("com/example/Foo"), g.directSubTypes("sys/Base"));
+    assertEquals(
+        nNames, g.directSubTypes("java/lang/Object").size());
+    assertEquals(
+        "com/example/Foo", g.allDeclaredNames().iterator().next());
+  }
+
+  public final void testFetchedClassesListedInFetchOrder() {
+    InheritanceGraph g = InheritanceGraph.builder(
+        new Function<String, ClassNode>() {
+          @Override
+          public ClassNode apply(String name) {
+            if (!name.startsWith("sys/")) {
+              return null;
+            }
+            return new ClassNode(
+                name, Opcodes.ACC_PUBLIC, Optional.of("java/lang/Object"),
+                Optional.<String>absent(), ImmutableList.<String>of(),
+                ImmutableList.<MethodDetails>of(),
+                ImmutableList.<FieldDetails>of());
+          }
+        })
+        .declare("com/example/Foo", Opcodes.ACC_PUBLIC)
+        .commit()
+        .build();
+    List<String> fetched = Lists.newArrayList();
+    for (int i = 0; i < 50; ++i) {
+      String name = "sys/C" + ((i * 17) % 50);
+      fetched.add(name);
+      assertTrue(g.named(name).isPresent());
+      assertFalse(g.named("missing/C" + i).isPresent());
+    }
+    List<String> want = Lists.newArrayList("com/example/Foo");
+    want.addAll(fetched);
+    assertEquals(want, ImmutableList.copyOf(g.allDeclaredNames()));
+    List<String> nodeNames = Lists.newArrayList();
+    for (ClassNode node : g.allDeclaredNodes()) {
+      nodeNames.add(node.name);
+    }
+    assertEquals(want, nodeNames);
+  }
+
+  /**
+   * Events as seen while visiting class files in class path order.
+   * {"D", name, superName} declares a class and {"C", outer, inner} says
+   * that outer contains inner.
+   */
+  private static final ImmutableList<String[]> EVENTS = ImmutableList.of(
+      new String[] { "C", "a/Outer", "a/Outer$Inner" },
+      new String[] { "D", "a/Outer", "java/lang/Object" },
+      new String[] { "D", "a/Masked", "java/lang/Object" },
+      new String[] { "D", "a/Outer$Inner", "a/Masked" },
+      // A later copy of a/Masked with a different super-type.
+      new String[] { "D", "a/Masked", "a/Outer" },
+      new String[] { "C", "a/Other", "a/Masked" },
+      new String[] { "C", "b/Outer", "b/Outer$Inner" },
+      new String[] { "C", "b/Other", "b/Outer$Inner" },
+      new String[] { "D", "a/Outer$Inner", "java/lang/Object" },
+      new String[] { "D", "b/Outer$Inner", "a/Masked" },
+      new String[] { "D", "b/Outer", "a/Outer$Inner" });
+
+  private static void replay(
+      InheritanceGraph.Builder b, List<String[]> events) {
+    for (String[] event : events) {
+      if ("D".equals(event[0])) {
+        b.declare(event[1], Opcodes.ACC_PUBLIC)
+            .superClassName(Optional.of(event[2]))
+            .commit();
+      } else {
+        b.classContains(event[1], event[2]);
+      }
+    }
+  }
+
+  private static String describe(InheritanceGraph g) {
+    StringBuilder sb = new StringBuilder();
+    for (String name : g.allDeclaredNames()) {
+      ClassNode node = g.named(name).get();
+      sb.append(node.name)
+          .append(" extends ").append(node.superType.orNull())
+          .append(" in ").append(node.outerClass.orNull())
+          .append('\n');
+    }
+    return sb.toString();
+  }
+
+  private static InheritanceGraph.Builder builder() {
+    return InheritanceGraph.builder(new Function<String, ClassNode>() {
+      @Override
+      public ClassNode apply(String name) {
+        return null;
+      }
+    });
+  }
+
+  public final void testMergeMatchesSequentialBuild() {
+    InheritanceGraph.Builder sequential = builder();
+    replay(sequential, EVENTS);
+    String want = describe(sequential.build());
+    assertEquals(
+        ""
+        + "a/Outer extends java/lang/Object in null\n"
+        + "a/Masked extends java/lang/Object in a/Other\n"
+        + "a/Outer$Inner extends a/Masked in a/Outer\n"
+        + "b/Outer$Inner extends a/Masked in b/Other\n"
+        + "b/Outer extends a/Outer$Inner in null\n",
+        want);
+
+    // Split the events between three builders at every pair of points.
+    int n = EVENTS.size();
+    for (int i = 0; i <= n; ++i) {
+      for (int j = i; j <= n; ++j) {
+        InheritanceGraph.Builder first = builder();
+        InheritanceGraph.Builder second = builder();
+        InheritanceGraph.Builder third = builder();
+        replay(first, EVENTS.subList(0, i));
+        replay(second, EVENTS.subList(i, j));
+        replay(third, EVENTS.subList(j, n));
+        first.merge(second);
+        first.merge(third);
+        assertEquals(i + ", " + j, want, describe(first.build()));
+      }
+    }
+  }
+
+  private static InheritanceGraph.Builder builderForPacking() {
+    InheritanceGraph.Builder b = builder();
+    replay(b, EVENTS);
+    b.declare("c/Iface", Opcodes.ACC_PUBLIC | Opcodes.ACC_INTERFACE)
+        .methods(ImmutableList.of(
+            new MethodDetails(
+                "run", "()V", Opcodes.ACC_PUBLIC | Opcodes.ACC_ABSTRACT)))
+        .commit();
+    b.declare("c/Impl", Opcodes.ACC_PUBLIC | Opcodes.ACC_FINAL)
+        .superClassName(Optional.of("a/Outer"))
+        .interfaceNames(ImmutableList.of("c/Iface", "java/io/Serializable"))
+        .methods(ImmutableList.of(
+            new MethodDetails("run", "()V", Opcodes.ACC_PUBLIC),
+            new MethodDetails("run", "(I)V", Opcodes.ACC_PRIVATE),
+            new MethodDetails("<init>", "()V", Opcodes.ACC_PUBLIC)))
+        .fields(ImmutableList.of(
+            new FieldDetails("x", Opcodes.ACC_PRIVATE),
+            new FieldDetails("serialVersionUID", Opcodes.ACC_STATIC)))
+        .commit();
+    return b;
+  }
+
+  public final void testPackedMatchesUnpacked() {
+    InheritanceGraph unpacked = builderForPacking().build(false);
+    InheritanceGraph.Builder b = builderForPacking();
+    InheritanceGraph packed = b.build(true);
+    // Classes are dropped from the builder as they are packed.
+    assertTrue(b.declaredNodes().isEmpty());
+    assertTrue(b.outerClasses().isEmpty());
+
+    assertEquals(
+        ImmutableList.copyOf(unpacked.allDeclaredNames()),
+        ImmutableList.copyOf(packed.allDeclaredNames()));
+    List<String> names = Lists.newArrayList(unpacked.allDeclaredNames());
+    names.add("java/lang/Object");
+    names.add("java/io/Serializable");
+    names.add("c/Missing");
+    for (String name : names) {
+      Optional<ClassNode> want = unpacked.named(name);
+      Optional<ClassNode> got = packed.named(name);
+      assertEquals(name, want.isPresent(), got.isPresent());
+      if (want.isPresent()) {
+        ClassNode w = want.get();
+        ClassNode g = got.get();
+        assertEquals(name, w.name, g.name);
+        assertEquals(name, w.access, g.access);
+        assertEquals(name, w.superType, g.superType);
+        assertEquals(name, w.outerClass, g.outerClass);
+        assertEquals(name, w.interfaces, g.interfaces);
+        assertEquals(name, w.methods.toString(), g.methods.toString());
+        assertEquals(name, w.fields.toString(), g.fields.toString());
+      }
+      assertEquals(
+          name, unpacked.directSubTypes(name), packed.directSubTypes(name));
+    }
+    assertEquals(
+        ImmutableList.of("a/Outer$Inner", "b/Outer$Inner"),
+        packed.directSubTypes("a/Masked"));
+
+    // Classes asked for again keep one node, and so its member indices.
+    ClassNode kept = packed.named("a/Masked").get();
+    assertSame(kept, packed.named("a/Masked").get());
+
+    ClassNode impl = packed.named("c/Impl").get();
+    assertTrue(impl.getMethod("run", "()V").isPresent());
+    assertTrue(impl.isMethodVisibleThrough("run", "(I)V"));
+    assertFalse(impl.isFieldVisibleThrough("serialVersionUID"));
+  }
+}
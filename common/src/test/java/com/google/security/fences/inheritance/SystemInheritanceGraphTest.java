@@ -73,6 +73,16 @@ public final class SystemInheritanceGraphTest extends TestCase {
         );
 
     assertFalse(g.named("java/lang/NoSuchClass").isPresent());
+
+    assertEquals(
+        ImmutableList.of("com/example/SillyInputStream"),
+        g.directSubTypes("java/io/InputStream"));
+    // Lazily fetched system classes are sub-types too.
+    assertTrue(
+        g.directSubTypes("java/io/Closeable").contains("java/io/InputStream"));
+    assertEquals(
+        ImmutableList.of(),
+        g.directSubTypes("com/example/SillyInputStream"));
   }
 
   public static void testFieldsAndMethods() {
@@ -0,0 +1,38 @@
+package com.google.security.fences.namespace;
+
+import com.google.security.fences.util.MisconfigurationException;
+
+import junit.framework.TestCase;
+
+@SuppressWarnings("javadoc")
+public final class NamespaceTest extends TestCase {
+
+  public static final void testFromInternalClassName()
+  throws MisconfigurationException {
+    Namespace foo = Namespace.fromInternalClassName("com/example/Foo");
+    assertSame(foo, Namespace.fromInternalClassName("com/example/Foo"));
+    assertEquals("com.example.Foo", foo.toString());
+
+    // Classes in the same package share ancestors.
+    Namespace bar = Namespace.fromInternalClassName("com/example/Bar");
+    assertSame(foo.getParent().get(), bar.getParent().get());
+
+    Namespace dotted = Namespace.fromDottedString("com.example.Foo");
+    assertEquals(dotted, foo);
+    assertEquals(dotted.hashCode(), foo.hashCode());
+
+    assertSame(
+        Namespace.DEFAULT_PACKAGE, Namespace.fromInternalClassName(""));
+  }
+
+  public static final void testMalformedInternalClassName() {
+    for (int i = 0; i < 2; ++i) {
+      try {
+        Namespace.fromInternalClassName("com//Foo");
+        fail();
+      } catch (MisconfigurationException ex) {
+        // Ok, every time.
+      }
+    }
+  }
+}
@@ -57,4 +57,57 @@ public final class ApiElementTest extends TestCase {
         ImmutableList.of("Foo", "$", "Bar"),
         ApiElement.splitClassName("Foo$$$Bar"));
   }
+
+  public static final void testFromInternalClassNameIsCanonical() {
+    ApiElement fooBar = ApiElement.fromInternalClassName("com/example/Foo$Bar");
+    assertSame(
+        fooBar, ApiElement.fromInternalClassName("com/example/Foo$Bar"));
+    assertSame(
+        fooBar.parent.get(),
+        ApiElement.fromInternalClassName("com/example/Foo"));
+    assertEquals("com/example/Foo$Bar", fooBar.toInternalName());
+    assertEquals("com.example.Foo.Bar", fooBar.toDottedName());
+
+    // Elements built piecemeal are equal to the canonical ones.
+    ApiElement built = ApiElement.DEFAULT_PACKAGE
+        .child("com", ApiElementType.PACKAGE)
+        .child("example", ApiElementType.PACKAGE)
+        .child("Foo", ApiElementType.CLASS)
+        .child("Bar", ApiElementType.CLASS);
+    assertEquals(built, fooBar);
+    assertEquals(built.hashCode(), fooBar.hashCode());
+
+    // A trailing slash is not a package.
+    ApiElement example = ApiElement.fromInternalClassName("com/example/");
+    assertEquals(ApiElementType.CLASS, example.type);
+    assertEquals("com/example", example.toInternalName());
+  }
+
+  public static final void testMembersOfCanonicalClassesAreCanonical() {
+    ApiElement foo = ApiElement.fromInternalClassName("com/example/Foo");
+    ApiElement run = foo.child("run", ApiElementType.METHOD);
+    assertSame(run, foo.child("run", ApiElementType.METHOD));
+    assertSame(
+        run,
+        ApiElement.fromInternalClassName("com/example/Foo")
+        .child("run", ApiElementType.METHOD));
+
+    // Members with the same name but different types are different.
+    ApiElement runField = foo.child("run", ApiElementType.FIELD);
+    assertSame(runField, foo.child("run", ApiElementType.FIELD));
+    assertFalse(run.equals(runField));
+    assertFalse(
+        run.equals(foo.child("walk", ApiElementType.METHOD)));
+
+    // Members of elements built piecemeal are still equal.
+    ApiElement built = ApiElement.DEFAULT_PACKAGE
+        .child("com", ApiElementType.PACKAGE)
+        .child("example", ApiElementType.PACKAGE)
+        .child("Foo", ApiElementType.CLASS)
+        .child("run", ApiElementType.METHOD);
+    assertNotSame(run, built);
+    assertEquals(built, run);
+    assertEquals(run, built);
+    assertEquals(built.hashCode(), run.hashCode());
+  }
 }
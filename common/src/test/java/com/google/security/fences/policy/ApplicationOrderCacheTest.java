@@ -0,0 +1,59 @@
+package com.google.security.fences.policy;
+
+import org.apache.maven.plugin.logging.Log;
+import org.apache.maven.plugin.logging.SystemStreamLog;
+import org.objectweb.asm.Opcodes;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.security.fences.inheritance.FieldDetails;
+import com.google.security.fences.inheritance.InheritanceGraph;
+import com.google.security.fences.inheritance.MethodDetails;
+
+import junit.framework.TestCase;
+
+@SuppressWarnings("javadoc")
+public final class ApplicationOrderCacheTest extends TestCase {
+
+  public final void testSameOrderAsPolicyApplicationOrder() {
+    Log log = new SystemStreamLog();
+    InheritanceGraph g = InheritanceGraph.builder()
+        .declare("com/example/Base", Opcodes.ACC_PUBLIC)
+        .superClassName(Optional.of("java/lang/Object"))
+        .methods(ImmutableList.of(
+            new MethodDetails("run", "()V", Opcodes.ACC_PUBLIC)))
+        .fields(ImmutableList.<FieldDetails>of())
+        .commit()
+        .declare("com/example/Sub", Opcodes.ACC_PUBLIC)
+        .superClassName(Optional.of("com/example/Base"))
+        .interfaceNames(ImmutableList.of("java/lang/Runnable"))
+        .methods(ImmutableList.<MethodDetails>of())
+        .fields(ImmutableList.<FieldDetails>of())
+        .commit()
+        .build();
+
+    ApplicationOrderCache cache = new ApplicationOrderCache(g);
+    ApiElement run = ApiElement.fromInternalClassName("com/example/Sub")
+        .child("run", ApiElementType.METHOD);
+
+    ImmutableList<ApiElement> order = cache.applicationOrder(run, "()V", log);
+    assertEquals(
+        ImmutableList.copyOf(new PolicyApplicationOrder(run, "()V", g, log)),
+        order);
+    // Computed once per use and descriptor.
+    assertSame(order, cache.applicationOrder(run, "()V", log));
+    assertSame(
+        order,
+        cache.applicationOrder(
+            ApiElement.fromInternalClassName("com/example/Sub")
+            .child("run", ApiElementType.METHOD),
+            "()V", log));
+    assertNotSame(order, cache.applicationOrder(run, "(I)V", log));
+    // Elements are shared with other orders and with checkers' lookups.
+    ApiElement baseRun = ApiElement.fromInternalClassName("com/example/Base")
+        .child("run", ApiElementType.METHOD);
+    assertTrue(order.toString(), order.contains(baseRun));
+    assertSame(baseRun, order.get(order.indexOf(baseRun)));
+    assertSame(run, order.get(0));
+  }
+}
@@ -0,0 +1,188 @@
+package com.google.security.fences.policy;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.security.fences.config.ApiFence;
+import com.google.security.fences.config.ClassFence;
+import com.google.security.fences.config.FieldFence;
+import com.google.security.fences.config.HumanReadableText;
+import com.google.security.fences.config.PackageFence;
+import com.google.security.fences.namespace.Namespace;
+import com.google.security.fences.namespace.NamespaceTrie;
+import com.google.security.fences.util.MisconfigurationException;
+
+import junit.framework.TestCase;
+
+import static com.google.security.fences.policy.ApiElement.Factory.clazz;
+import static com.google.security.fences.policy.ApiElement.Factory.field;
+import static com.google.security.fences.policy.ApiElement.Factory.method;
+import static com.google.security.fences.policy.ApiElement.Factory.pkg;
+
+@SuppressWarnings("javadoc")
+public final class CompiledPolicyTest extends TestCase {
+
+  private static Policy policy() throws MisconfigurationException {
+    FieldFence serialVersionUid = new FieldFence();
+    serialVersionUid.setName("SERIAL_VERSION_UID");
+    serialVersionUid.setTrusts("*");
+
+    ClassFence unsafeClazz = new ClassFence();
+    unsafeClazz.setName("Unsafe");
+    unsafeClazz.setField(serialVersionUid);
+    unsafeClazz.setDistrusts("*");
+    unsafeClazz.setTrusts("org.example.ExceptionToRule");
+    unsafeClazz.setRationale("Unsafe is unsafe");
+
+    PackageFence examplePkg = new PackageFence();
+    examplePkg.setName("example");
+    examplePkg.setClass(unsafeClazz);
+    examplePkg.setDistrusts("org.example");
+    examplePkg.setRationale("Keep out");
+
+    PackageFence comPkg = new PackageFence();
+    comPkg.setName("com");
+    comPkg.setPackage(examplePkg);
+
+    ApiFence api = new ApiFence();
+    api.setPackage(comPkg);
+    return Policy.fromFence(api);
+  }
+
+  /** The decision as made by walking the uncompiled policy. */
+  private static Optional<Policy.AccessControlDecision> interpreted(
+      Policy p, Namespace from, ApiElement to) {
+    Policy.AccessControlDecision first = null;
+    for (Policy.NamespacePolicy nsp : p.forNamespace(from)) {
+      Optional<Policy.AccessControlDecision> d =
+          nsp.accessPolicyForApiElement(to);
+      if (d.isPresent()) {
+        if (first == null) {
+          first = d.get();
+        }
+        if (d.get().accessLevel == first.accessLevel
+            && !d.get().rationale.isEmpty()) {
+          return d;
+        }
+      }
+    }
+    return Optional.fromNullable(first);
+  }
+
+  public final void testSameDecisionsAsPolicy()
+  throws MisconfigurationException {
+    Policy p = policy();
+    CompiledPolicy compiled = CompiledPolicy.compile(p);
+
+    ApiElement example = pkg("example", pkg("com"));
+    ApiElement unsafe = clazz("Unsafe", example);
+    ImmutableList<ApiElement> elements = ImmutableList.of(
+        example,
+        unsafe,
+        field("SERIAL_VERSION_UID", unsafe),
+        method("allocate", unsafe),
+        method("m", clazz("Inner", unsafe)),
+        method("m", clazz("Other", example)),
+        method("equals", clazz("String", pkg("lang", pkg("java")))));
+    ImmutableList<String> namespaces = ImmutableList.of(
+        "org.example.ExceptionToRule",
+        "org.example.ExceptionToRule.Inner",
+        "org.example.Other",
+        "org.other.Other",
+        "*");
+
+    for (String nsName : namespaces) {
+      Namespace ns = Namespace.fromDottedString(nsName);
+      int row = compiled.rowId(ns);
+      for (ApiElement el : elements) {
+        Optional<Policy.AccessControlDecision> want = interpreted(p, ns, el);
+        int column = compiled.columnId(el);
+        String message = nsName + " -> " + el;
+        if (want.isPresent()) {
+          assertEquals(
+              message, want.get().accessLevel,
+              compiled.accessLevel(row, column));
+          assertEquals(
+              message, want.get().rationale,
+              compiled.rationale(row, column));
+        } else {
+          assertNull(message, compiled.accessLevel(row, column));
+          assertEquals(
+              message, HumanReadableText.EMPTY,
+              compiled.rationale(row, column));
+        }
+      }
+    }
+
+    assertEquals(
+        compiled.columnId(example),
+        compiled.columnId(clazz("Other", example)));
+    assertEquals(
+        CompiledPolicy.NO_COLUMN,
+        compiled.columnId(clazz("String", pkg("lang", pkg("java")))));
+    // The root for *, org.example, and org.example.ExceptionToRule.
+    assertEquals(3, compiled.getRowCount());
+  }
+
+  public final void testRowsAreFixedWhenCompiled()
+  throws MisconfigurationException {
+    Policy p = policy();
+    CompiledPolicy compiled = CompiledPolicy.compile(p);
+    Namespace added = Namespace.fromDottedString("org.added");
+    p.getTrie().put(
+        added,
+        new Policy.AccessControlDecision(
+            pkg("example", pkg("com")), AccessLevel.ALLOWED,
+            HumanReadableText.EMPTY));
+    // Code in org.added shares the root's row as when compiled.
+    assertEquals(
+        compiled.rowId(Namespace.DEFAULT_PACKAGE), compiled.rowId(added));
+  }
+
+  public final void testRowsMemoizedByDifferentPolicies()
+  throws MisconfigurationException {
+    CompiledPolicy compiled = CompiledPolicy.compile(policy());
+    PackageFence orgPkg = new PackageFence();
+    orgPkg.setName("org");
+    orgPkg.setDistrusts("org.other");
+    ApiFence api = new ApiFence();
+    api.setPackage(orgPkg);
+    Policy otherPolicy = Policy.fromFence(api);
+    CompiledPolicy other = CompiledPolicy.compile(otherPolicy);
+
+    // Interned namespaces are shared by both policies.
+    ImmutableList<String> classNames = ImmutableList.of(
+        "org/example/ExceptionToRule",
+        "org/example/ExceptionToRule$Inner",
+        "org/example/Other",
+        "org/other/Other",
+        "Other");
+    for (int pass = 0; pass < 2; ++pass) {
+      for (String className : classNames) {
+        Namespace ns = Namespace.fromInternalClassName(className);
+        assertSame(ns, Namespace.fromInternalClassName(className));
+        for (CompiledPolicy c : ImmutableList.of(compiled, other)) {
+          assertEquals(
+              className,
+              c.rowId(ns),
+              rowOf(c, c.policy.deepestEntryWithValue(ns)));
+        }
+      }
+    }
+  }
+
+  /** The row of the namespace whose own trie entry is e. */
+  private static int rowOf(
+      CompiledPolicy c, NamespaceTrie.Entry<Policy.NamespacePolicy> e) {
+    NamespaceTrie<Policy.AccessControlDecision, Policy.NamespacePolicy> trie =
+        c.policy.getTrie();
+    if (e == trie.get(Namespace.DEFAULT_PACKAGE)) {
+      return c.rowId(Namespace.DEFAULT_PACKAGE);
+    }
+    for (Namespace ns : trie.overlapping(Namespace.DEFAULT_PACKAGE).keySet()) {
+      if (trie.get(ns) == e) {
+        return c.rowId(ns);
+      }
+    }
+    throw new AssertionError(e);
+  }
+}
@@ -0,0 +1,105 @@
+package com.google.security.fences.policy;
+
+import org.objectweb.asm.Opcodes;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.security.fences.config.ApiFence;
+import com.google.security.fences.config.ClassFence;
+import com.google.security.fences.config.PackageFence;
+import com.google.security.fences.inheritance.FieldDetails;
+import com.google.security.fences.inheritance.InheritanceGraph;
+import com.google.security.fences.inheritance.MethodDetails;
+import com.google.security.fences.util.MisconfigurationException;
+
+import junit.framework.TestCase;
+
+@SuppressWarnings("javadoc")
+public final class FencedClassIndexTest extends TestCase {
+
+  private static Policy policy() throws MisconfigurationException {
+    ClassFence unsafeClazz = new ClassFence();
+    unsafeClazz.setName("Unsafe");
+    unsafeClazz.setDistrusts("*");
+
+    PackageFence examplePkg = new PackageFence();
+    examplePkg.setName("example");
+    examplePkg.setClass(unsafeClazz);
+
+    PackageFence comPkg = new PackageFence();
+    comPkg.setName("com");
+    comPkg.setPackage(examplePkg);
+
+    PackageFence internalPkg = new PackageFence();
+    internalPkg.setName("internal");
+    internalPkg.setDistrusts("*");
+
+    PackageFence orgPkg = new PackageFence();
+    orgPkg.setName("org");
+    orgPkg.setPackage(internalPkg);
+
+    // Only allowing access cannot lead to a violation.
+    ClassFence friendly = new ClassFence();
+    friendly.setName("Friendly");
+    friendly.setTrusts("*");
+
+    ApiFence api = new ApiFence();
+    api.setPackage(comPkg);
+    api.setPackage(orgPkg);
+    api.setClass(friendly);
+    return Policy.fromFence(api);
+  }
+
+  private static void declare(
+      InheritanceGraph.Builder b, String name, Optional<String> superName,
+      String... interfaceNames) {
+    b.declare(name, Opcodes.ACC_PUBLIC)
+        .superClassName(superName)
+        .interfaceNames(ImmutableList.copyOf(interfaceNames))
+        .methods(ImmutableList.<MethodDetails>of())
+        .fields(ImmutableList.<FieldDetails>of())
+        .commit();
+  }
+
+  public final void testMightBeFenced() throws MisconfigurationException {
+    Optional<String> object = Optional.of("java/lang/Object");
+    InheritanceGraph.Builder b = InheritanceGraph.builder();
+    declare(b, "com/example/Unsafe", object);
+    declare(b, "com/example/Safe", object);
+    declare(b, "com/example/Unsafe$Inner", object);
+    declare(b, "com/example/UnsafeToo", object);
+    declare(b, "foo/Sub", Optional.of("com/example/Unsafe"));
+    declare(b, "foo/SubSub", Optional.of("foo/Sub"));
+    declare(b, "foo/Api", object);
+    declare(b, "foo/Impl", object, "foo/Api", "org/internal/Marker");
+    declare(b, "org/internal/Marker", object);
+    declare(b, "org/internal/deeper/Thing", object);
+    declare(b, "org/internals/Thing", object);
+    declare(b, "Friendly", object);
+    declare(b, "foo/ExtendsUndeclared", Optional.of("org/internal/Gone"));
+    InheritanceGraph g = b.build();
+
+    FencedClassIndex index = FencedClassIndex.build(policy(), g);
+
+    assertTrue(index.mightBeFenced("com/example/Unsafe"));
+    assertTrue(index.mightBeFenced("com/example/Unsafe$Inner"));
+    assertFalse(index.mightBeFenced("com/example/Safe"));
+    assertFalse(index.mightBeFenced("com/example/UnsafeToo"));
+    // Sub-types are fenced by fences on super-types.
+    assertTrue(index.mightBeFenced("foo/Sub"));
+    assertTrue(index.mightBeFenced("foo/SubSub"));
+    assertTrue(index.mightBeFenced("foo/Impl"));
+    assertFalse(index.mightBeFenced("foo/Api"));
+    // Packages contain their sub-packages but not others with the same
+    // prefix.
+    assertTrue(index.mightBeFenced("org/internal/Marker"));
+    assertTrue(index.mightBeFenced("org/internal/deeper/Thing"));
+    assertFalse(index.mightBeFenced("org/internals/Thing"));
+    assertFalse(index.mightBeFenced("Friendly"));
+    assertTrue(index.mightBeFenced("foo/ExtendsUndeclared"));
+    // Classes not declared in the graph are looked up lazily.
+    assertFalse(index.mightBeFenced("java/lang/String"));
+    assertTrue(index.mightBeFenced("org/internal/Undeclared"));
+    assertFalse(index.mightBeFenced("[Ljava/lang/Object;"));
+  }
+}
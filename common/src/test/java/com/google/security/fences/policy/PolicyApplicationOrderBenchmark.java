@@ -0,0 +1,128 @@
+package com.google.security.fences.policy;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.List;
+
+import org.apache.maven.plugin.logging.Log;
+import org.apache.maven.plugin.logging.SystemStreamLog;
+import org.objectweb.asm.Opcodes;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.security.fences.inheritance.FieldDetails;
+import com.google.security.fences.inheritance.InheritanceGraph;
+import com.google.security.fences.inheritance.MethodDetails;
+
+/**
+ * Times iterating over {@link PolicyApplicationOrder}s for uses of members
+ * of classes with deep class and interface hierarchies, and compares them to
+ * {@link BaselinePolicyApplicationOrder}s for the same uses.
+ * <p>
+ * This is not run as part of the test suite.  Run it via
+ * {@code java -cp <test-classpath> ...PolicyApplicationOrderBenchmark}.
+ */
+@SuppressWarnings("javadoc")
+public final class PolicyApplicationOrderBenchmark {
+  private static final int DEPTH = 12;
+  private static final int INTERFACES_PER_CLASS = 3;
+  private static final int WARMUP_ROUNDS = 5;
+  private static final int ROUNDS = 10;
+  private static final int ORDERS_PER_ROUND = 20000;
+
+  public static void main(String... argv) {
+    Log log = new SystemStreamLog();
+    InheritanceGraph.Builder b = InheritanceGraph.builder();
+    String superName = "java/lang/Object";
+    List<ApiElement> uses = Lists.newArrayList();
+    for (int depth = 0; depth < DEPTH; ++depth) {
+      String pkg = "com/example/p" + depth;
+      ImmutableList.Builder<String> interfaceNames = ImmutableList.builder();
+      for (int i = 0; i < INTERFACES_PER_CLASS; ++i) {
+        String interfaceName = pkg + "/I" + i;
+        b.declare(interfaceName, Opcodes.ACC_PUBLIC | Opcodes.ACC_INTERFACE)
+            .methods(ImmutableList.of(new MethodDetails(
+                "m", "()V", Opcodes.ACC_PUBLIC | Opcodes.ACC_ABSTRACT)))
+            .fields(ImmutableList.<FieldDetails>of())
+            .commit();
+        interfaceNames.add(interfaceName);
+      }
+      String name = pkg + "/C$Inner";
+      b.declare(name, Opcodes.ACC_PUBLIC)
+          .superClassName(Optional.of(superName))
+          .interfaceNames(interfaceNames.build())
+          .methods(
+              depth % 3 == 0
+              ? ImmutableList.of(
+                  new MethodDetails("m", "()V", Opcodes.ACC_PUBLIC))
+              : ImmutableList.<MethodDetails>of())
+          .fields(ImmutableList.of(new FieldDetails("f", Opcodes.ACC_PUBLIC)))
+          .commit();
+      superName = name;
+      ApiElement classEl = ApiElement.fromInternalClassName(name);
+      uses.add(classEl.child("m", ApiElementType.METHOD));
+      uses.add(classEl.child("f", ApiElementType.FIELD));
+    }
+    InheritanceGraph g = b.build();
+
+    for (ApiElement use : uses) {
+      String descriptor = descriptorFor(use);
+      ImmutableList<ApiElement> want = ImmutableList.copyOf(
+          new BaselinePolicyApplicationOrder(use, descriptor, g, log));
+      ImmutableList<ApiElement> got = ImmutableList.copyOf(
+          new PolicyApplicationOrder(use, descriptor, g, log));
+      if (!want.equals(got)) {
+        throw new AssertionError(use + "\n\t" + want + "\n\t" + got);
+      }
+    }
+
+    for (boolean baseline : new boolean[] { true, false }) {
+      System.out.println(
+          baseline
+          ? "BaselinePolicyApplicationOrder" : "PolicyApplicationOrder");
+      time(uses, g, log, baseline);
+    }
+  }
+
+  private static String descriptorFor(ApiElement use) {
+    return use.type == ApiElementType.METHOD ? "()V" : "I";
+  }
+
+  private static void time(
+      List<ApiElement> uses, InheritanceGraph g, Log log, boolean baseline) {
+    ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    com.sun.management.ThreadMXBean allocations =
+        threads instanceof com.sun.management.ThreadMXBean
+        ? (com.sun.management.ThreadMXBean) threads
+        : null;
+    long threadId = Thread.currentThread().getId();
+
+    long checksum = 0;
+    for (int round = 0; round < WARMUP_ROUNDS + ROUNDS; ++round) {
+      long bytesBefore = allocations != null
+          ? allocations.getThreadAllocatedBytes(threadId) : 0;
+      long nanosBefore = System.nanoTime();
+      for (int i = 0; i < ORDERS_PER_ROUND; ++i) {
+        ApiElement use = uses.get(i % uses.size());
+        String descriptor = descriptorFor(use);
+        Iterable<ApiElement> order = baseline
+            ? new BaselinePolicyApplicationOrder(use, descriptor, g, log)
+            : new PolicyApplicationOrder(use, descriptor, g, log);
+        for (ApiElement el : order) {
+          checksum += el.hashCode();
+        }
+      }
+      long nanos = System.nanoTime() - nanosBefore;
+      long bytes = allocations != null
+          ? allocations.getThreadAllocatedBytes(threadId) - bytesBefore : -1;
+      if (round >= WARMUP_ROUNDS) {
+        System.out.println(
+            "round " + (round - WARMUP_ROUNDS)
+            + ": " + (nanos / ORDERS_PER_ROUND) + " ns/order, "
+            + (bytes / ORDERS_PER_ROUND) + " bytes/order");
+      }
+    }
+    System.out.println("checksum " + checksum);
+  }
+}
@@ -1,5 +1,6 @@
 package com.google.security.fences.policy;
 
+import java.util.Iterator;
 import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -63,12 +64,39 @@ public class PolicyApplicationOrderTest extends TestCase {
 
     void test() {
       InheritanceGraph graph = inheritanceGraphBuilder.build();
-      ImmutableList<ApiElement> got = ImmutableList.copyOf(
-          new PolicyApplicationOrder(useElement, descriptor, graph, log));
+      PolicyApplicationOrder order = new PolicyApplicationOrder(
+          useElement, descriptor, graph, log);
+      ImmutableList<ApiElement> got = ImmutableList.copyOf(order);
       assertEquals(  // Produces a better diff.
           internalFormOnePerLine(wanted),
           internalFormOnePerLine(got));
       assertEquals(wanted, got);  // What we actually want to check.
+
+      // Iterators that are abandoned part way or interleaved do not share
+      // state.
+      order.iterator().next();
+      Iterator<ApiElement> it1 = order.iterator();
+      Iterator<ApiElement> it2 = order.iterator();
+      List<ApiElement> got1 = Lists.newArrayList();
+      List<ApiElement> got2 = Lists.newArrayList();
+      while (it1.hasNext() || it2.hasNext()) {
+        if (it1.hasNext()) { got1.add(it1.next()); }
+        if (it2.hasNext()) { got2.add(it2.next()); }
+      }
+      assertEquals(wanted, got1);
+      assertEquals(wanted, got2);
+
+      // Scratch space is reused once an iterator is exhausted, even if
+      // hasNext() is asked again.
+      Iterator<ApiElement> it = order.iterator();
+      while (it.hasNext()) {
+        it.next();
+      }
+      assertFalse(it.hasNext());
+      Iterator<ApiElement> reusing = order.iterator();
+      assertFalse(it.hasNext());
+      assertEquals(wanted, ImmutableList.copyOf(reusing));
+      assertEquals(wanted, ImmutableList.copyOf(order));
     }
   }
 
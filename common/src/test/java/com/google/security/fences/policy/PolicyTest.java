@@ -4,6 +4,7 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.security.fences.config.ClassFence;
 import com.google.security.fences.config.FieldFence;
+import com.google.security.fences.config.HumanReadableText;
 import com.google.security.fences.config.PackageFence;
 import com.google.security.fences.namespace.Namespace;
 import com.google.security.fences.policy.Policy.NamespacePolicy;
@@ -93,6 +94,106 @@ public final class PolicyTest extends TestCase {
     assertNamespacePolicyEqual(
         ImmutableList.of(defaultNamespacePolicy),
         otherNmspPol);
+
+    // Chains are computed once per trie entry, not per query.
+    assertSame(scNmspPol, otherNmspPol);
+  }
+
+  public void testMightDenyAccessWithin() {
+    ApiElement example = pkg("example", pkg("com"));
+    ApiElement unsafe = clazz("Unsafe", example);
+    assertTrue(p.mightDenyAccessWithin(unsafe));
+    // Inner classes are in scope of a fence on their outer class.
+    assertTrue(p.mightDenyAccessWithin(clazz("Inner", unsafe)));
+    assertFalse(p.mightDenyAccessWithin(clazz("Safe", example)));
+    assertFalse(p.mightDenyAccessWithin(
+        clazz("String", pkg("lang", pkg("java")))));
+  }
+
+  public void testDeepestEntryWithValue() throws MisconfigurationException {
+    // Classes that no fence names share decisions.
+    assertSame(
+        p.deepestEntryWithValue(
+            Namespace.fromDottedString("org.example.SomeClass")),
+        p.deepestEntryWithValue(
+            Namespace.fromDottedString("java.lang.String")));
+    assertNotSame(
+        p.deepestEntryWithValue(
+            Namespace.fromDottedString("org.example.SomeClass")),
+        p.deepestEntryWithValue(
+            Namespace.fromDottedString("org.example.ExceptionToRule")));
+    assertSame(
+        p.deepestEntryWithValue(
+            Namespace.fromDottedString("org.example.ExceptionToRule")),
+        p.deepestEntryWithValue(
+            Namespace.fromDottedString("org.example.ExceptionToRule.Inner")));
+  }
+
+  public void testGetAddenda() throws MisconfigurationException {
+    ClassFence unsafeClazz = new ClassFence();
+    unsafeClazz.setName("Unsafe");
+    unsafeClazz.setDistrusts("*");
+    unsafeClazz.setAddendum("See Safe");
+
+    PackageFence examplePkg = new PackageFence();
+    examplePkg.setName("example");
+    examplePkg.setClass(unsafeClazz);
+    examplePkg.setAddendum("Ask the example team");
+
+    PackageFence comPkg = new PackageFence();
+    comPkg.setName("com");
+    comPkg.setPackage(examplePkg);
+
+    Policy withAddenda = Policy.fromFence(comPkg);
+
+    ApiElement example = pkg("example", pkg("com"));
+    ApiElement unsafe = clazz("Unsafe", example);
+    HumanReadableText pkgAddendum = withAddenda.getAddenda(example);
+    assertEquals("Ask the example team", pkgAddendum.text);
+    // Addenda from containing elements come first.
+    HumanReadableText allAddenda = pkgAddendum.concat(
+        HumanReadableText.fromXmlTextNode("See Safe"));
+    assertEquals(allAddenda, withAddenda.getAddenda(unsafe));
+    assertEquals(allAddenda, withAddenda.getAddenda(field("f", unsafe)));
+    assertEquals(
+        pkgAddendum, withAddenda.getAddenda(clazz("Safe", example)));
+    assertEquals(
+        HumanReadableText.EMPTY,
+        withAddenda.getAddenda(clazz("String", pkg("lang", pkg("java")))));
   }
 
+  public void testMightDenyAccessFromPackage()
+  throws MisconfigurationException {
+    // Everything is distrusted.
+    assertTrue(p.mightDenyAccessFromPackage(
+        Namespace.fromDottedString("java.lang")));
+
+    ClassFence unsafeClazz = new ClassFence();
+    unsafeClazz.setName("Unsafe");
+    unsafeClazz.setDistrusts("org.example");
+    unsafeClazz.setDistrusts("org.other.Client");
+
+    PackageFence examplePkg = new PackageFence();
+    examplePkg.setName("example");
+    examplePkg.setClass(unsafeClazz);
+
+    PackageFence comPkg = new PackageFence();
+    comPkg.setName("com");
+    comPkg.setPackage(examplePkg);
+
+    Policy fewDistrusted = Policy.fromFence(comPkg);
+    assertTrue(fewDistrusted.mightDenyAccessFromPackage(
+        Namespace.fromDottedString("org.example")));
+    assertTrue(fewDistrusted.mightDenyAccessFromPackage(
+        Namespace.fromDottedString("org.example.sub")));
+    // A fence names a class in org.other.
+    assertTrue(fewDistrusted.mightDenyAccessFromPackage(
+        Namespace.fromDottedString("org.other")));
+    assertFalse(fewDistrusted.mightDenyAccessFromPackage(
+        Namespace.fromDottedString("org.other.sub")));
+    assertFalse(fewDistrusted.mightDenyAccessFromPackage(
+        Namespace.fromDottedString("com.example")));
+    assertFalse(fewDistrusted.mightDenyAccessFromPackage(
+        Namespace.DEFAULT_PACKAGE));
+  }
 }
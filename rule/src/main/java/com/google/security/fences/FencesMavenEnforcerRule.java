@@ -21,31 +21,41 @@ import org.w3c.dom.Element;
 
 import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 import com.google.common.hash.HashCode;
-import com.google.common.hash.HashFunction;
-import com.google.common.hash.Hashing;
 import com.google.common.io.ByteSink;
 import com.google.common.io.ByteSource;
 import com.google.common.io.Files;
 import com.google.security.fences.RecordingLog.Entry;
 import com.google.security.fences.checker.Checker;
+import com.google.security.fences.checker.DecisionCache;
 import com.google.security.fences.classpath.ArtifactFinder;
+import com.google.security.fences.classpath.ClassBytesCache;
 import com.google.security.fences.classpath.ClassRoot;
 import com.google.security.fences.classpath.ConfigurationImport;
+import com.google.security.fences.classpath.ZipFilePool;
 import com.google.security.fences.config.ApiFence;
 import com.google.security.fences.config.ClassFence;
 import com.google.security.fences.config.Fence;
 import com.google.security.fences.config.PackageFence;
 import com.google.security.fences.inheritance.InheritanceGraph;
 import com.google.security.fences.inheritance.InheritanceGraphExtractor;
+import com.google.security.fences.inheritance.InheritanceGraphSnapshots;
+import com.google.security.fences.inheritance.UnreadableClassException;
+import com.google.security.fences.namespace.Namespace;
 import com.google.security.fences.policy.ApiElement;
+import com.google.security.fences.policy.ApplicationOrderCache;
+import com.google.security.fences.policy.CompiledPolicy;
+import com.google.security.fences.policy.FencedClassIndex;
 import com.google.security.fences.policy.Policy;
 import com.google.security.fences.reporting.PolicyViolationReporter;
 import com.google.security.fences.reporting.Violation;
+import com.google.security.fences.util.DeferredLog;
 import com.google.security.fences.util.LazyString;
 import com.google.security.fences.util.MisconfigurationException;
 import com.google.security.fences.util.RelevantSystemProperties;
@@ -67,7 +77,12 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
+import javax.annotation.Nullable;
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.transform.OutputKeys;
 import javax.xml.transform.Transformer;
@@ -200,15 +215,79 @@ public final class FencesMavenEnforcerRule implements EnforcerRule {
     }
 
     ImmutableList<ClassRoot> classRoots = finder.getClassRoots();
+    // Imports, and a lazy inheritance graph, may read many files from the
+    // same archives that can't be mapped, so keep them open until the rule
+    // is done.
+    ZipFilePool zipFiles = new ZipFilePool(ZipFilePool.DEFAULT_MAX_OPEN);
+    try {
+      checkClassRoots(
+          log, project, buildDirectory, configurator, classRoots, zipFiles);
+    } finally {
+      // Archives are kept open, and nested ones may have been inflated into
+      // memory, while the rule reads them.
+      for (ClassRoot classRoot : classRoots) {
+        classRoot.releaseArchive();
+      }
+      try {
+        zipFiles.close();
+      } catch (IOException ex) {
+        log.warn("Failed to close archives", ex);
+      }
+    }
+  }
 
+  private void checkClassRoots(
+      Log log, MavenProject project, File buildDirectory,
+      ComponentConfigurator configurator, ImmutableList<ClassRoot> classRoots,
+      ZipFilePool zipFiles)
+  throws EnforcerRuleException {
+    // Class files read to build the inheritance graph are kept around, within
+    // a budget, so that checking them does not read each archive again.
+    ClassBytesCache classBytesCache = new ClassBytesCache(
+        RelevantSystemProperties.getClassBytesCacheSize());
+    // Class roots are extracted on worker threads and merged in class path
+    // order so that earlier declarations still mask later ones.
+    // Archives that have not changed since a previous build are loaded from
+    // snapshots instead.
+    // In lazy mode, only class file names are read up front.
     InheritanceGraph inheritanceGraph;
-    try {
-      inheritanceGraph = InheritanceGraphExtractor
-          .fromClassRoots(classRoots);
-    } catch (IOException ex) {
-      throw new EnforcerRuleException(
-          "Failed to read classes to find inheritance relationships",
-          ex);
+    if (RelevantSystemProperties.useLazyInheritanceGraph()) {
+      try {
+        inheritanceGraph = InheritanceGraphExtractor.lazilyFromClassRoots(
+            classRoots, zipFiles);
+      } catch (IOException ex) {
+        throw new EnforcerRuleException(
+            "Failed to index classes to find inheritance relationships",
+            ex);
+      }
+    } else {
+      InheritanceGraphSnapshots graphSnapshots = new InheritanceGraphSnapshots(
+          RelevantSystemProperties.getGraphSnapshotDirectory(buildDirectory),
+          log);
+      int threadCount = RelevantSystemProperties.getThreadCount();
+      ForkJoinPool extractionPool = threadCount > 1
+          ? new ForkJoinPool(threadCount) : null;
+      try {
+        inheritanceGraph = extractionPool != null
+            ? InheritanceGraphExtractor.fromClassRoots(
+                classRoots, classBytesCache, extractionPool, graphSnapshots)
+            : InheritanceGraphExtractor.fromClassRoots(
+                classRoots, classBytesCache, graphSnapshots);
+      } catch (IOException ex) {
+        throw new EnforcerRuleException(
+            "Failed to read classes to find inheritance relationships",
+            ex);
+      } finally {
+        if (extractionPool != null) {
+          extractionPool.shutdownNow();
+        }
+      }
+      int nPruned = graphSnapshots.prune(
+          InheritanceGraphSnapshots.MAX_UNUSED_MILLIS);
+      log.debug(
+          "Loaded " + graphSnapshots.getHitCount() + " archives' classes from"
+          + " snapshots and extracted " + graphSnapshots.getMissCount()
+          + ".  Deleted " + nPruned + " unused snapshots.");
     }
 
     try {
@@ -226,7 +305,8 @@ public final class FencesMavenEnforcerRule implements EnforcerRule {
           try {
             imp.configure(
                 this, configurator,
-                new ConfigurationImport.ClassRoots(classRoots.iterator()),
+                new ConfigurationImport.ClassRoots(
+                    classRoots.iterator(), zipFiles),
                 log);
           } catch (MisconfigurationException ex) {
             throw new EnforcerRuleException("Failed to import " + imp.key, ex);
@@ -239,6 +319,10 @@ public final class FencesMavenEnforcerRule implements EnforcerRule {
           inheritanceGraph, nAssignedImportOrder, importOrder);
     } catch (MisconfigurationException ex) {
       throw new EnforcerRuleException(ex.getMessage(), ex);
+    } catch (UnreadableClassException ex) {
+      // A lazy inheritance graph reads classes named by fences on demand.
+      throw new EnforcerRuleException(
+          "Failed to read classes named by fences", ex);
     }
 
     ImmutableList<Fence> allFences = ImmutableList.copyOf(fences);
@@ -295,8 +379,17 @@ public final class FencesMavenEnforcerRule implements EnforcerRule {
     ArtifactFindingsHash afHash = ArtifactFindingsHash.readFrom(
         Files.asByteSource(artifactFindingsFile));
 
-    checkAllClasses(
-        project, log, inheritanceGraph, mergedFence, classRoots, afHash);
+    try {
+      checkAllClasses(
+          project, log, inheritanceGraph, mergedFence, classRoots, afHash,
+          classBytesCache);
+    } catch (UnreadableClassException ex) {
+      throw new EnforcerRuleException(
+          "Failed to read classes to find inheritance relationships", ex);
+    }
+    log.debug(
+        "Reused " + classBytesCache.getHitCount()
+        + " class files read while building the inheritance graph");
 
     ignore(artifactFindingsFile.getParentFile().mkdirs());
     afHash.writeTo(Files.asByteSink(artifactFindingsFile));
@@ -319,9 +412,18 @@ public final class FencesMavenEnforcerRule implements EnforcerRule {
   protected static void checkAllClasses(
       MavenProject project, Log backingLog, InheritanceGraph inheritanceGraph,
       ApiFence mergedFence, Iterable<? extends ClassRoot> classRoots,
-      ArtifactFindingsHash afHash)
+      ArtifactFindingsHash afHash, ClassBytesCache classBytesCache)
   throws EnforcerRuleException {
     final Policy p = Policy.fromFence(mergedFence);
+    // Shared by all checks so that the policy is compiled, each class's
+    // super-types are examined, and each application order and decision is
+    // computed once.
+    CompiledPolicy compiledPolicy = CompiledPolicy.compile(p);
+    FencedClassIndex fencedClasses = FencedClassIndex.build(
+        p, inheritanceGraph);
+    DecisionCache decisions = new DecisionCache(compiledPolicy);
+    ApplicationOrderCache applicationOrders = new ApplicationOrderCache(
+        inheritanceGraph);
 
     RecordingLog log = new RecordingLog(backingLog);
 
@@ -332,57 +434,111 @@ public final class FencesMavenEnforcerRule implements EnforcerRule {
       }
     });
 
-    Checker checker = new Checker(log, inheritanceGraph, p);
-
-    for (ClassRoot classRoot : classRoots) {
-      HashCode hashcode = null;
-
-      Artifact art = classRoot.art;
+    // Artifacts without cached findings are checked on worker threads, or
+    // one after another on this thread when there is only one.
+    // Each check records its own log so that findings are logged, cached,
+    // and reported in class root order regardless of which check finishes
+    // first.
+    // Only a few checks run ahead of the one being reported so that the
+    // buffered logs of the whole project are not in memory at once.
+    List<ClassRootCheck> checks = Lists.newArrayList();
+    List<Violation> allViolations = Lists.newArrayList();
+    int threadCount = RelevantSystemProperties.getThreadCount();
+    ForkJoinPool pool = threadCount > 1 ? new ForkJoinPool(threadCount) : null;
+    try {
+      for (ClassRoot classRoot : classRoots) {
+        HashCode hashcode = null;
+
+        Artifact art = classRoot.art;
+        String artId = art.getId();
+
+        if (!mightHaveViolations(classRoot, p)) {
+          log.info(
+              "Skipping " + artId + " from scope " + art.getScope()
+              + " since no fence distrusts code in its packages");
+          // Nothing is going to take the class files read for it.
+          classBytesCache.discard(classRoot);
+          continue;
+        }
 
-      // If we have cached findings for this artifact, replay them instead
-      // of scanning the whole thing again.
-      String artId = art.getId();
-      switch (classRoot.kind) {
-        case ZIPFILE:
-          if (classRoot.classRoot.exists()) {
-            try {
-              hashcode = ArtifactFindingsHash.HASH_FUNCTION.hashBytes(
-                  Files.toByteArray(classRoot.classRoot));
-            } catch (IOException ex) {
-              log.warn("Trouble hashing zipfile", ex);
+        // If we have cached findings for this artifact, replay them instead
+        // of scanning the whole thing again.
+        // This shares the digest computed for inheritance graph snapshots
+        // so that each archive is read and hashed once.
+        switch (classRoot.kind) {
+          case ZIPFILE:
+            if (classRoot.classRoot.exists()) {
+              try {
+                hashcode = classRoot.contentHash().orNull();
+              } catch (IOException ex) {
+                log.warn("Trouble hashing zipfile", ex);
+              }
             }
-          }
-          break;
-        default:
-          break;
-      }
+            break;
+          default:
+            break;
+        }
 
-      if (hashcode != null) {
         Optional<ImmutableList<RecordingLog.Entry>> hashedResults =
-            afHash.get(artId, hashcode);
+            Optional.absent();
+        if (hashcode != null) {
+          hashedResults = afHash.get(artId, hashcode);
+        }
+        ClassRootCheck check = new ClassRootCheck(
+            classRoot, hashcode, hashedResults,
+            backingLog, inheritanceGraph, compiledPolicy, fencedClasses,
+            decisions, applicationOrders, pool);
+        check.checker.reuseClassBytes(classBytesCache);
         if (hashedResults.isPresent()) {
+          classBytesCache.discard(classRoot);
+        }
+        checks.add(check);
+      }
+
+      int maxInFlight = 2 * threadCount;
+      int nSubmitted = 0;
+      for (int i = 0, n = checks.size(); i < n; ++i) {
+        if (pool != null) {
+          for (; nSubmitted < n && nSubmitted < i + maxInFlight;
+               ++nSubmitted) {
+            ClassRootCheck ahead = checks.get(nSubmitted);
+            if (!ahead.hashedResults.isPresent()) {
+              ahead.task = pool.submit(ahead);
+            }
+          }
+        }
+        // Dropped once reported so that its log can be collected.
+        ClassRootCheck check = checks.set(i, null);
+        Artifact art = check.classRoot.art;
+        String artId = art.getId();
+        if (check.hashedResults.isPresent()) {
           backingLog.debug("Replaying cached results for " + artId);
-          for (RecordingLog.Entry e : hashedResults.get()) {
+          for (RecordingLog.Entry e : check.hashedResults.get()) {
             e.apply(backingLog);
           }
           continue;
         }
-      }
 
-      log.info("Checking " + artId + " from scope " + art.getScope());
-      log.reset();
-      try {
-        checker.visitAll(ImmutableList.of(classRoot));
-      } catch (IOException ex) {
-        throw new EnforcerRuleException(
-            "Failed to check " + Utils.artToString(art), ex);
+        log.info("Checking " + artId + " from scope " + art.getScope());
+        check.await();
+        check.deferredLog.flush();
+        if (check.hashcode != null) {
+          afHash.store(
+              artId, check.hashcode,
+              check.recordingLog.getEntriesSinceLastReset());
+        }
+        allViolations.addAll(check.checker.getViolations());
       }
-      if (hashcode != null) {
-        afHash.store(artId, hashcode, log.getEntriesSinceLastReset());
+    } finally {
+      if (pool != null) {
+        pool.shutdownNow();
       }
     }
+    log.debug(
+        "Made " + decisions.getMissCount() + " access decisions and reused "
+        + "them " + decisions.getHitCount() + " times");
 
-    ImmutableList<Violation> violations = checker.getViolations();
+    ImmutableList<Violation> violations = ImmutableList.copyOf(allViolations);
     PolicyViolationReporter reporter = new PolicyViolationReporter(log);
     reporter.interpolator.addValueSource(
         new PropertiesBasedValueSource(project.getProperties()));
@@ -398,6 +554,38 @@ public final class FencesMavenEnforcerRule implements EnforcerRule {
     }
   }
 
+  /**
+   * False if the policy grants all access asked for by code in the packages
+   * of the classes in the class root, so checking it cannot find a violation.
+   * This only looks at the class root's directory structure.
+   */
+  private static boolean mightHaveViolations(ClassRoot classRoot, Policy p) {
+    if (!classRoot.classRoot.exists()) {
+      return true;  // Let the check report the problem.
+    }
+    Optional<ImmutableSet<String>> packages;
+    try {
+      packages = classRoot.listPackages();
+    } catch (IOException ex) {
+      return true;
+    }
+    if (!packages.isPresent()) {
+      return true;
+    }
+    for (String pkg : packages.get()) {
+      Namespace ns;
+      try {
+        ns = Namespace.fromInternalClassName(pkg);
+      } catch (MisconfigurationException ex) {
+        return true;
+      }
+      if (p.mightDenyAccessFromPackage(ns)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
   @Override
   public String getCacheId() {
     return null;
@@ -415,12 +603,82 @@ public final class FencesMavenEnforcerRule implements EnforcerRule {
 
 
 
+  /**
+   * Checks one class root on a worker thread, buffering its log so that the
+   * thread running the rule can replay it in class root order.
+   * Without a pool, the class root is checked on the thread running the rule
+   * when it is awaited.
+   */
+  static final class ClassRootCheck implements Callable<Void> {
+    final ClassRoot classRoot;
+    final @Nullable HashCode hashcode;
+    final Optional<ImmutableList<RecordingLog.Entry>> hashedResults;
+    final DeferredLog deferredLog;
+    final RecordingLog recordingLog;
+    final Checker checker;
+    /** Splits big archives so their classes can be checked in parallel. */
+    final @Nullable ForkJoinPool pool;
+    ForkJoinTask<Void> task;
+
+    ClassRootCheck(
+        ClassRoot classRoot, @Nullable HashCode hashcode,
+        Optional<ImmutableList<RecordingLog.Entry>> hashedResults,
+        Log backingLog, InheritanceGraph inheritanceGraph, CompiledPolicy p,
+        FencedClassIndex fencedClasses, DecisionCache decisions,
+        ApplicationOrderCache applicationOrders,
+        @Nullable ForkJoinPool pool) {
+      this.classRoot = classRoot;
+      this.hashcode = hashcode;
+      this.hashedResults = hashedResults;
+      this.deferredLog = new DeferredLog(backingLog);
+      this.recordingLog = new RecordingLog(deferredLog);
+      this.checker = new Checker(
+          recordingLog, inheritanceGraph, p, fencedClasses, decisions,
+          applicationOrders);
+      this.pool = pool;
+    }
+
+    @Override
+    public Void call() throws IOException {
+      if (pool != null) {
+        checker.visitAll(ImmutableList.of(classRoot), pool);
+      } else {
+        checker.visitAll(ImmutableList.of(classRoot));
+      }
+      return null;
+    }
+
+    void await() throws EnforcerRuleException {
+      if (task == null) {
+        try {
+          call();
+        } catch (IOException ex) {
+          throw new EnforcerRuleException(
+              "Failed to check " + Utils.artToString(classRoot.art), ex);
+        }
+        return;
+      }
+      try {
+        task.get();
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        throw new EnforcerRuleException(
+            "Interrupted checking " + Utils.artToString(classRoot.art), ex);
+      } catch (ExecutionException ex) {
+        Throwable cause = ex.getCause();
+        // Rethrow unchecked exceptions as is so that they are reported the
+        // same way as when the check runs on this thread.
+        Throwables.propagateIfPossible(cause);
+        throw new EnforcerRuleException(
+            "Failed to check " + Utils.artToString(classRoot.art), cause);
+      }
+    }
+  }
+
   static final class ArtifactFindingsHash implements Serializable {
 
     private static final long serialVersionUID = 3323962310197443927L;
 
-    static final HashFunction HASH_FUNCTION = Hashing.sha512();
-
     private final Map<String, HashedResult> hashedResults =
         Maps.newLinkedHashMap();
 